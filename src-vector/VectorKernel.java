@@ -0,0 +1,51 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class is the SIMD kernel, on the Java Vector API (jdk.incubator.vector)
+ * 	- loops run on the widest vectors of the CPU, with a scalar tail
+ * 	- loaded by Kernels through reflection; compile and run with --add-modules jdk.incubator.vector
+ * @author Yibang Chen
+ *
+ */
+class VectorKernel implements Kernels.Kernel {
+	
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	
+	public String getName() {
+		return "vector";
+	}
+	
+	public float dot(float[] a, int aFrom, float[] b, int bFrom, int length) {
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int bound = FLOATS.loopBound(length);
+		int k = 0;
+		for (; k < bound; k += FLOATS.length()) {
+			FloatVector x = FloatVector.fromArray(FLOATS, a, aFrom + k);
+			FloatVector y = FloatVector.fromArray(FLOATS, b, bFrom + k);
+			sum = sum.add(x.mul(y));
+		}
+		float dot = sum.reduceLanes(VectorOperators.ADD);
+		for (; k < length; k++) dot += a[aFrom + k] * b[bFrom + k];
+		return dot;
+	}
+	
+	public void sgdStep(float[] p, int pFrom, float[] q, int qFrom, int length, float lr, float error, float reg) {
+		int bound = FLOATS.loopBound(length);
+		int k = 0;
+		for (; k < bound; k += FLOATS.length()) {
+			FloatVector pk = FloatVector.fromArray(FLOATS, p, pFrom + k);
+			FloatVector qk = FloatVector.fromArray(FLOATS, q, qFrom + k);
+			// the same operations in the same order as the scalar kernel, lane by lane
+			pk.add(qk.mul(error).sub(pk.mul(reg)).mul(lr)).intoArray(p, pFrom + k);
+			qk.add(pk.mul(error).sub(qk.mul(reg)).mul(lr)).intoArray(q, qFrom + k);
+		}
+		for (; k < length; k++) {
+			float pk = p[pFrom + k];
+			float qk = q[qFrom + k];
+			p[pFrom + k] = pk + lr * (error * qk - reg * pk);
+			q[qFrom + k] = qk + lr * (error * pk - reg * qk);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * This class is the regularized baseline predictor: globalMean + userBias + itemBias
+ * 	- itemBias = sum(r - mean) / (itemRegularization + n) over the item's ratings
+ * 	- userBias = sum(r - mean - itemBias) / (userRegularization + n) over the user's ratings
+ * 	- the model keeps the sums and counts, not the biases, so a prediction is O(1):
+ * 	  two array loads per side, with the current global mean of ItemPool
+ * 	- as a RatingListener it follows new and changed ratings in O(1); the item bias of a
+ * 	  user's item is added to the user's sums as it is when the rating arrives, so user biases
+ * 	  drift slightly from an exact fit until the next fit()
+ * Sums are kept by dense internal index of UserPool and ItemPool: per item (sum, count),
+ * per user (sum, sum of item biases, count). Writers are serialized on the model;
+ * readers never lock and may miss an update in flight
+ * @author Yibang Chen
+ *
+ */
+public class BaselineModel implements RatingListener {
+	
+	public static final double DEFAULT_ITEM_REGULARIZATION = 25;
+	public static final double DEFAULT_USER_REGULARIZATION = 10;
+	
+	private static final int ITEM_STRIDE = 2;
+	private static final int USER_STRIDE = 3;
+	
+	private final UserPool users;
+	private final ItemPool items;
+	private final double itemRegularization;
+	private final double userRegularization;
+	private volatile double[] itemStats = new double[0];
+	private volatile double[] userStats = new double[0];
+	
+	private BaselineModel(UserPool users, ItemPool items, double itemRegularization, double userRegularization) {
+		this.users = users;
+		this.items = items;
+		this.itemRegularization = itemRegularization;
+		this.userRegularization = userRegularization;
+	}
+	
+	/**
+	 * This method fits a model on all ratings in the pools, in parallel
+	 * 	- register the model with RatingIngestor.addListener to keep it up to date
+	 * @param users
+	 * @param items
+	 * @param itemRegularization : shrinks the biases of items with few ratings towards 0
+	 * @param userRegularization : shrinks the biases of users with few ratings towards 0
+	 * @return
+	 */
+	public static BaselineModel fit(UserPool users, ItemPool items, double itemRegularization, double userRegularization) {
+		BaselineModel model = new BaselineModel(users, items, itemRegularization, userRegularization);
+		model.fit();
+		return model;
+	}
+	
+	/**
+	 * This method fits a model with the default regularization
+	 */
+	public static BaselineModel fit(UserPool users, ItemPool items) {
+		return fit(users, items, DEFAULT_ITEM_REGULARIZATION, DEFAULT_USER_REGULARIZATION);
+	}
+	
+	/**
+	 * This method recomputes all sums from the pools, e.g. after they are rebuilt
+	 * 	- item sums first, then user sums with the new item biases
+	 */
+	public synchronized void fit() {
+		final double mean = items.getAverage();
+		final int itemCount = items.getItemCount();
+		final double[] itemRows = new double[itemCount * ITEM_STRIDE];
+		IntStream.range(0, itemCount).parallel().forEach(i -> {
+			RaterList raters = items.getRaters(items.getItemId(i));
+			if (raters == null) return;
+			itemRows[i * ITEM_STRIDE] = raters.getAverage() * raters.size();
+			itemRows[i * ITEM_STRIDE + 1] = raters.size();
+		});
+		
+		final int userCount = users.getUserCount();
+		final double[] userRows = new double[userCount * USER_STRIDE];
+		IntStream.range(0, userCount).parallel().forEach(u -> {
+			User.Profile profile = users.getUserByIndex(u).getProfile();
+			double sum = 0, biasSum = 0;
+			for (int r = 0; r < profile.size(); r++) {
+				sum += profile.getRatingAt(r);
+				int i = items.indexOf(profile.getItemIdAt(r));
+				if (i >= 0 && i < itemCount) biasSum += itemBias(itemRows, i, mean);
+			}
+			userRows[u * USER_STRIDE] = sum;
+			userRows[u * USER_STRIDE + 1] = biasSum;
+			userRows[u * USER_STRIDE + 2] = profile.size();
+		});
+		
+		itemStats = itemRows;
+		userStats = userRows;
+	}
+	
+	/**
+	 * This method predicts a user's rating to an item in O(1)
+	 * 	- an unknown user or item contributes no bias
+	 * @param userId
+	 * @param itemId
+	 * @return
+	 */
+	public double predict(int userId, int itemId) {
+		double mean = items.getAverage();
+		return mean + getUserBias(userId, mean) + getItemBias(itemId, mean);
+	}
+	
+	public double getItemBias(int itemId) {
+		return getItemBias(itemId, items.getAverage());
+	}
+	
+	public double getUserBias(int userId) {
+		return getUserBias(userId, items.getAverage());
+	}
+	
+	private double getItemBias(int itemId, double mean) {
+		double[] rows = itemStats;
+		int i = items.indexOf(itemId);
+		if (i < 0 || (i + 1) * ITEM_STRIDE > rows.length) return 0;
+		return itemBias(rows, i, mean);
+	}
+	
+	private double itemBias(double[] rows, int i, double mean) {
+		double count = rows[i * ITEM_STRIDE + 1];
+		return (rows[i * ITEM_STRIDE] - count * mean) / (itemRegularization + count);
+	}
+	
+	private double getUserBias(int userId, double mean) {
+		double[] rows = userStats;
+		int u = users.indexOf(userId);
+		if (u < 0 || (u + 1) * USER_STRIDE > rows.length) return 0;
+		double count = rows[u * USER_STRIDE + 2];
+		return (rows[u * USER_STRIDE] - count * mean - rows[u * USER_STRIDE + 1]) / (userRegularization + count);
+	}
+	
+	/**
+	 * This method updates the sums of the user and the item of a new or changed rating
+	 */
+	public void ratingChanged(int userId, int itemId, float previous, float rating) {
+		int u = users.indexOf(userId);
+		int i = items.indexOf(itemId);
+		if (u < 0 || i < 0) return;
+		
+		synchronized (this) {
+			double[] itemRows = itemStats;
+			if ((i + 1) * ITEM_STRIDE > itemRows.length) {
+				itemRows = Arrays.copyOf(itemRows, Math.max((i + 1) * ITEM_STRIDE, itemRows.length * 2));
+			}
+			double[] userRows = userStats;
+			if ((u + 1) * USER_STRIDE > userRows.length) {
+				userRows = Arrays.copyOf(userRows, Math.max((u + 1) * USER_STRIDE, userRows.length * 2));
+			}
+			
+			if (Float.isNaN(previous)) {
+				itemRows[i * ITEM_STRIDE] += rating;
+				itemRows[i * ITEM_STRIDE + 1]++;
+				userRows[u * USER_STRIDE] += rating;
+				userRows[u * USER_STRIDE + 1] += itemBias(itemRows, i, items.getAverage());
+				userRows[u * USER_STRIDE + 2]++;
+			} else {
+				itemRows[i * ITEM_STRIDE] += rating - previous;
+				userRows[u * USER_STRIDE] += rating - previous;
+			}
+			itemStats = itemRows;
+			userStats = userRows;
+		}
+	}
+}
@@ -0,0 +1,472 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This is a micro-benchmark runner for the hot paths of the recommending system.
+ * It generates a synthetic data set, loads it, and times each benchmark:
+ * 	- parse: FileReader.parseRatingData of the whole ratings file
+ * 	- similarity / cosineSimilarity: UserPool.findSimilarity / findCosineSimilarity
+ * 	- predict / cosinePredict / baseline: Prediction.predictRating / predictCosineRating / getBaselineRating
+ * 	- baselineModel: Prediction.getBaselineRating with a fitted BaselineModel; the fit time is printed
+ * 	- recommend: Prediction.recommendItems
+ * 	- recommendCandidates: Prediction.recommendItems with the default CandidateGenerator;
+ * 	  the per-stage timing is printed after the run
+ * 	- recommendCached: Prediction.recommendItems through a RecommendationCache that holds every
+ * 	  sampled user, so nearly every call is a hit; the cache statistics are printed after the run
+ * 	- recommendGenre / recommendDecade / recommendGenreDecade: Prediction.recommendItems with an
+ * 	  ItemFilter of one genre, the 1990s, or both; the share of items that pass is printed
+ * 	- exactNeighbors / lshNeighbors / minhashNeighbors: top-K Pearson neighbors of a user, exact
+ * 	  (NeighborGraph.findNeighbors) or from UserLshIndex candidates; the LSH runs also print
+ * 	  build time, candidates per query and recall against the exact search
+ * Every benchmark runs warm-up iterations, then measured iterations, and reports
+ * throughput (ops/s), average time (us/op), allocation (bytes/op, all threads) and GC activity.
+ * Before the benchmarks, the memory footprint of the loaded data is printed: heap used after
+ * a full GC, the time of that full GC, direct / memory-mapped buffer usage, and the bytes per
+ * rating of the user profiles
+ *
+ * Arguments are key=value pairs, all optional:
+ * 	users=1000 items=1700 density=0.06 skew=1.0 seed=42
+ * 	warmup=3 iterations=5 time=1000 (ms per iteration) neighbors=20 recommend=10
+ * 	bands=16 rows=4 (LSH index shape) budget=300 (candidates per recommendation)
+ * 	backend=heap|offheap|compact (ratings in heap arrays, read in place from a memory-mapped snapshot,
+ * 	or encoded as CompactRatings)
+ * 	benchmarks=parse,similarity,... (default: all)
+ * Run with -Drecommender.metrics=true to also print the built-in latency histograms
+ * @author Yibang Chen
+ *
+ */
+public class BenchmarkInterface {
+
+	private static final String[] ALL_BENCHMARKS = {"parse", "similarity", "cosineSimilarity",
+			"predict", "cosinePredict", "baseline", "baselineModel", "recommend", "recommendCandidates",
+			"recommendCached", "recommendGenre", "recommendDecade", "recommendGenreDecade", "exactNeighbors",
+			"lshNeighbors", "minhashNeighbors"};
+	private static final int SAMPLE_SIZE = 4096;
+
+	private static volatile double sink;
+
+	/**
+	 * This interface is one operation of a benchmark
+	 */
+	public interface Operation {
+		/**
+		 * @param i : index of the operation, used to pick the input
+		 * @return a value that is consumed so the JIT cannot drop the work
+		 */
+		public double run(int i);
+	}
+
+	public static void main(String args[]) throws IOException {
+		Map<String, String> options = parseOptions(args);
+		int userCount = Integer.parseInt(option(options, "users", "1000"));
+		int itemCount = Integer.parseInt(option(options, "items", "1700"));
+		double density = Double.parseDouble(option(options, "density", "0.06"));
+		double skew = Double.parseDouble(option(options, "skew", "1.0"));
+		long seed = Long.parseLong(option(options, "seed", "42"));
+		int warmup = Integer.parseInt(option(options, "warmup", "3"));
+		int iterations = Integer.parseInt(option(options, "iterations", "5"));
+		long time = Long.parseLong(option(options, "time", "1000"));
+		final int neighbors = Integer.parseInt(option(options, "neighbors", "20"));
+		final int recommendSize = Integer.parseInt(option(options, "recommend", "10"));
+		int bands = Integer.parseInt(option(options, "bands", "16"));
+		int rows = Integer.parseInt(option(options, "rows", "4"));
+		int budget = Integer.parseInt(option(options, "budget", String.valueOf(CandidateGenerator.DEFAULT_BUDGET)));
+		String backend = option(options, "backend", "heap");
+		List<String> benchmarks = Arrays.asList(option(options, "benchmarks", String.join(",", ALL_BENCHMARKS)).split(","));
+
+		File folder = Files.createTempDirectory("movie-bench").toFile();
+		folder.deleteOnExit();
+		final String path = folder.getAbsolutePath() + File.separator;
+		writeSyntheticData(folder, userCount, itemCount, density, skew, seed);
+		new File(folder, "movies.csv").deleteOnExit();
+		new File(folder, "ratings.csv").deleteOnExit();
+
+		System.out.println("Synthetic data: " + userCount + " users, " + itemCount + " items, density "
+				+ density + ", skew " + skew + ", seed " + seed);
+		System.out.println(String.format("%-18s %14s %12s %14s %8s %10s",
+				"Benchmark", "ops/s", "us/op", "bytes/op", "GCs", "GC ms"));
+
+		final UserPool users = UserPool.getInstance();
+		final ItemPool items = ItemPool.getInstance();
+
+		if (benchmarks.contains("parse")) {
+			run("parse", warmup, iterations, time, new Operation() {
+				public double run(int i) {
+					return loadQuietly(path, users, items);
+				}
+			});
+		}
+		loadQuietly(path, users, items);
+		if (backend.equals("offheap")) attachOffHeap(path, users, items);
+		users.setCompact(backend.equals("compact"));
+		printMemory(backend);
+		System.out.println(String.format("Ratings (%s): %d, %.2f bytes/rating in user profiles", backend,
+				items.getRatingCount(), (double) users.getRatingBytes() / items.getRatingCount()));
+
+		final Prediction pr = new Prediction();
+		Random random = new Random(seed);
+		final int[] userIds = sampleUsers(users, random, SAMPLE_SIZE);
+		final int[] otherIds = sampleUsers(users, random, SAMPLE_SIZE);
+		final int[] itemIds = sampleItems(items, random, SAMPLE_SIZE);
+		final int mask = SAMPLE_SIZE - 1;
+
+		Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+		operations.put("similarity", new Operation() {
+			public double run(int i) {
+				return users.findSimilarity(userIds[i & mask], otherIds[i & mask]);
+			}
+		});
+		operations.put("cosineSimilarity", new Operation() {
+			public double run(int i) {
+				return users.findCosineSimilarity(userIds[i & mask], otherIds[i & mask]);
+			}
+		});
+		operations.put("predict", new Operation() {
+			public double run(int i) {
+				return pr.predictRating(userIds[i & mask], itemIds[i & mask], neighbors);
+			}
+		});
+		operations.put("cosinePredict", new Operation() {
+			public double run(int i) {
+				return pr.predictCosineRating(userIds[i & mask], itemIds[i & mask], neighbors);
+			}
+		});
+		operations.put("baseline", new Operation() {
+			public double run(int i) {
+				return pr.getBaselineRating(userIds[i & mask], itemIds[i & mask]);
+			}
+		});
+		final Prediction baselinePr = new Prediction();
+		if (benchmarks.contains("baselineModel")) {
+			long start = System.nanoTime();
+			baselinePr.setBaselineModel(BaselineModel.fit(users, items));
+			System.out.println(String.format("BaselineModel fitted in %.1f ms", (System.nanoTime() - start) / 1e6));
+		}
+		operations.put("baselineModel", new Operation() {
+			public double run(int i) {
+				return baselinePr.getBaselineRating(userIds[i & mask], itemIds[i & mask]);
+			}
+		});
+		operations.put("recommend", new Operation() {
+			public double run(int i) {
+				return pr.recommendItems(userIds[i & mask], recommendSize, neighbors).size();
+			}
+		});
+		final CandidateGenerator generator = CandidateGenerator.createDefault(items, budget, neighbors);
+		final Prediction candidatePr = new Prediction();
+		candidatePr.setCandidateGenerator(generator);
+		operations.put("recommendCandidates", new Operation() {
+			public double run(int i) {
+				return candidatePr.recommendItems(userIds[i & mask], recommendSize, neighbors).size();
+			}
+		});
+		final RecommendationCache cache = new RecommendationCache(pr, userIds.length, 3600 * 1000L,
+				RecommendationCache.Invalidation.USER);
+		operations.put("recommendCached", new Operation() {
+			public double run(int i) {
+				return cache.recommendItems(userIds[i & mask], recommendSize, neighbors).size();
+			}
+		});
+		Map<String, ItemFilter> filters = new LinkedHashMap<String, ItemFilter>();
+		filters.put("recommendGenre", ItemFilter.ALL.withAnyGenre("Comedy"));
+		filters.put("recommendDecade", ItemFilter.ALL.withYears(1990, 1999));
+		filters.put("recommendGenreDecade", ItemFilter.ALL.withAnyGenre("Comedy").withYears(1990, 1999));
+		for (Map.Entry<String, ItemFilter> filter : filters.entrySet()) {
+			if (!benchmarks.contains(filter.getKey())) continue;
+			
+			final ItemFilter itemFilter = filter.getValue();
+			System.out.println(String.format("# %s: %s, %d of %d items pass", filter.getKey(), itemFilter,
+					items.getFilterIndex().select(itemFilter).length, items.getItemCount()));
+			operations.put(filter.getKey(), new Operation() {
+				public double run(int i) {
+					return pr.recommendItems(userIds[i & mask], recommendSize, neighbors, itemFilter).size();
+				}
+			});
+		}
+		operations.put("exactNeighbors", new Operation() {
+			public double run(int i) {
+				return NeighborGraph.findNeighbors(users, items, userIds[i & mask], neighbors, false).size();
+			}
+		});
+		for (final UserLshIndex.Kind kind : UserLshIndex.Kind.values()) {
+			String name = kind == UserLshIndex.Kind.HYPERPLANE ? "lshNeighbors" : "minhashNeighbors";
+			if (!benchmarks.contains(name)) continue;
+
+			long start = System.nanoTime();
+			final UserLshIndex index = UserLshIndex.build(users, kind, bands, rows, seed);
+			long buildNanos = System.nanoTime() - start;
+			long candidates = 0;
+			for (int userId : userIds) candidates += index.getCandidates(users.getUser(userId)).length;
+			int[] recallSample = Arrays.copyOf(userIds, Math.min(userIds.length, 512));
+			System.out.println(String.format("# %s index (%d bands x %d rows): built in %.1f ms, "
+					+ "%.1f candidates/query of %d users, recall@%d %.3f", kind, bands, rows, buildNanos / 1e6,
+					(double) candidates / userIds.length, index.getUserCount(), neighbors,
+					index.measureRecall(users, items, recallSample, neighbors, false)));
+			operations.put(name, new Operation() {
+				public double run(int i) {
+					return index.findNeighbors(users, userIds[i & mask], neighbors, false).size();
+				}
+			});
+		}
+
+		for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+			if (benchmarks.contains(operation.getKey())) {
+				generator.resetTimings();
+				run(operation.getKey(), warmup, iterations, time, operation.getValue());
+				if (operation.getKey().equals("recommendCandidates")) System.out.print(generator.getTimingReport());
+				if (operation.getKey().equals("recommendCached")) System.out.println("# " + cache);
+			}
+		}
+		if (Metrics.ENABLED) System.out.print(Metrics.dump());
+	}
+
+	/**
+	 * This method times one benchmark and prints a result line
+	 * @param name
+	 * @param warmup : number of warm-up iterations, not reported
+	 * @param iterations : number of measured iterations
+	 * @param time : length of an iteration in milliseconds
+	 * @param operation
+	 */
+	public static void run(String name, int warmup, int iterations, long time, Operation operation) {
+		for (int w = 0; w < warmup; w++) {
+			iterate(operation, time);
+		}
+
+		long gcCount = gcCount(), gcTime = gcTime();
+		long allocated = allocatedBytes();
+		long ops = 0, nanos = 0;
+		for (int it = 0; it < iterations; it++) {
+			long start = System.nanoTime();
+			ops += iterate(operation, time);
+			nanos += System.nanoTime() - start;
+		}
+		allocated = allocatedBytes() - allocated;
+		gcCount = gcCount() - gcCount;
+		gcTime = gcTime() - gcTime;
+
+		System.out.println(String.format("%-18s %14.1f %12.3f %14.1f %8d %10d", name,
+				ops * 1e9 / nanos, nanos / 1e3 / ops, (double) allocated / ops, gcCount, gcTime));
+	}
+
+	/**
+	 * This method runs an operation repeatedly for the given time
+	 * @return the number of operations run
+	 */
+	private static int iterate(Operation operation, long time) {
+		long deadline = System.nanoTime() + time * 1000000L;
+		double result = 0;
+		int ops = 0;
+		do {
+			result += operation.run(ops++);
+		} while (System.nanoTime() < deadline);
+		sink += result;
+		return ops;
+	}
+
+	/**
+	 * This method returns the bytes allocated so far by all live threads
+	 * 	- threads that ended are not counted, so parallel benchmarks are approximate
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+		long total = 0;
+		for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (bytes > 0) total += bytes;
+		}
+		return total;
+	}
+
+	private static long gcCount() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionCount());
+		}
+		return total;
+	}
+
+	private static long gcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * This method prints the memory held by the loaded data
+	 * 	- heap used is measured after a full GC; the time of that GC grows with the live heap
+	 * 	- direct and mapped are the JVM buffer pools, where an off-heap backend keeps its ratings
+	 * @param backend : name of the backend, for the report
+	 */
+	static void printMemory(String backend) {
+		long start = System.nanoTime();
+		System.gc();
+		long fullGcNanos = System.nanoTime() - start;
+		long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		long direct = 0, mapped = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) direct += pool.getMemoryUsed();
+			else if (pool.getName().equals("mapped")) mapped += pool.getMemoryUsed();
+		}
+		System.out.println(String.format("Memory (%s): heap used %.1f MB after full GC (%.1f ms), "
+				+ "direct %.1f MB, mapped %.1f MB", backend, heapUsed / 1048576.0, fullGcNanos / 1e6,
+				direct / 1048576.0, mapped / 1048576.0));
+	}
+
+	/**
+	 * This method moves the loaded ratings off the heap
+	 * 	- the pools are written to a snapshot in the data folder, cleared,
+	 * 	  and reloaded with every user and posting list reading the mapped snapshot in place
+	 * @throws IOException
+	 */
+	static void attachOffHeap(String path, UserPool users, ItemPool items) throws IOException {
+		File file = new File(path + "ratings.snapshot");
+		RatingSnapshot.write(file.getPath(), users, items);
+		file.deleteOnExit();
+		RatingSnapshot snapshot = RatingSnapshot.open(file.getPath());
+		users.clear();
+		items.clear();
+		items.loadSnapshot(snapshot, true);
+		users.loadSnapshot(snapshot, true);
+	}
+
+	/**
+	 * This method clears the pools and imports the synthetic files, without console output
+	 * @return the number of users loaded
+	 */
+	static double loadQuietly(String path, UserPool users, ItemPool items) {
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+		}));
+		try {
+			users.clear();
+			items.clear();
+			FileReader reader = new FileReader(path);
+			reader.parseMovieData("movies.csv", items, ",");
+			reader.parseRatingData("ratings.csv", users, ",");
+		} finally {
+			System.setOut(out);
+		}
+		return users.getUsers().size();
+	}
+
+	/**
+	 * This method writes movies.csv and ratings.csv in the MovieLens layout
+	 * 	- every user rates about density * itemCount items, at least 1
+	 * 	- item popularity follows a power law: item i is picked with weight 1/(i+1)^skew
+	 * 	- ratings are half stars around a per-user and a per-item bias
+	 * @param folder
+	 * @param userCount
+	 * @param itemCount
+	 * @param density : fraction of the rating matrix that is filled
+	 * @param skew : 0 for uniform popularity; larger is more skewed
+	 * @param seed
+	 * @throws IOException
+	 */
+	public static void writeSyntheticData(File folder, int userCount, int itemCount, double density,
+			double skew, long seed) throws IOException {
+		Random random = new Random(seed);
+		String[] genres = {"Action", "Adventure", "Animation", "Children", "Comedy", "Crime",
+				"Documentary", "Drama", "Fantasy", "Horror", "Musical", "Mystery", "Romance",
+				"Sci-Fi", "Thriller", "War", "Western"};
+
+		double[] itemBias = new double[itemCount];
+		PrintWriter movies = new PrintWriter(new File(folder, "movies.csv"), "UTF-8");
+		try {
+			movies.println("movieId,title,genres");
+			for (int i = 0; i < itemCount; i++) {
+				itemBias[i] = random.nextGaussian() * 0.5;
+				StringBuilder categories = new StringBuilder(genres[random.nextInt(genres.length)]);
+				if (random.nextBoolean()) categories.append('|').append(genres[random.nextInt(genres.length)]);
+				movies.println((i + 1) + ",Movie " + (i + 1) + " (" + (1950 + random.nextInt(70)) + ")," + categories);
+			}
+		} finally {
+			movies.close();
+		}
+
+		double[] cumulative = new double[itemCount];
+		double total = 0;
+		for (int i = 0; i < itemCount; i++) {
+			total += 1 / Math.pow(i + 1, skew);
+			cumulative[i] = total;
+		}
+
+		int perUser = Math.max(1, (int) Math.round(density * itemCount));
+		PrintWriter ratings = new PrintWriter(new File(folder, "ratings.csv"), "UTF-8");
+		try {
+			ratings.println("userId,movieId,rating,timestamp");
+			for (int u = 1; u <= userCount; u++) {
+				double userBias = 3.5 + random.nextGaussian() * 0.5;
+				int count = Math.min(itemCount, Math.max(1, (int) (perUser * (0.5 + random.nextDouble()))));
+
+				HashMap<Integer, Boolean> picked = new HashMap<Integer, Boolean>();
+				while (picked.size() < count) {
+					int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+					if (index < 0) index = -index - 1;
+					picked.put(Math.min(index, itemCount - 1), true);
+				}
+
+				int[] rated = new int[picked.size()];
+				int n = 0;
+				for (int index : picked.keySet()) rated[n++] = index;
+				Arrays.sort(rated);
+
+				for (int index : rated) {
+					double score = userBias + itemBias[index] + random.nextGaussian() * 0.8;
+					double rating = Math.max(0.5, Math.min(5.0, Math.round(score * 2) / 2.0));
+					ratings.println(u + "," + (index + 1) + "," + rating + "," + (1000000000 + random.nextInt(100000000)));
+				}
+			}
+		} finally {
+			ratings.close();
+		}
+	}
+
+	private static int[] sampleUsers(UserPool users, Random random, int n) {
+		List<Integer> ids = new ArrayList<Integer>(users.getUsers());
+		int[] sample = new int[n];
+		for (int i = 0; i < n; i++) sample[i] = ids.get(random.nextInt(ids.size()));
+		return sample;
+	}
+
+	private static int[] sampleItems(ItemPool items, Random random, int n) {
+		List<Integer> ids = new ArrayList<Integer>(items.getItemIds());
+		int[] sample = new int[n];
+		for (int i = 0; i < n; i++) sample[i] = ids.get(random.nextInt(ids.size()));
+		return sample;
+	}
+
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq > 0) options.put(arg.substring(0, eq), arg.substring(eq + 1));
+			else System.out.println("Ignoring argument: " + arg);
+		}
+		return options;
+	}
+
+	static String option(Map<String, String> options, String key, String defaultValue) {
+		return options.containsKey(key) ? options.get(key) : defaultValue;
+	}
+}
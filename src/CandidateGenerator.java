@@ -0,0 +1,389 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is the candidate-generation stage of a recommendation
+ * 	- sources run in order and add item ids until the candidate budget is full
+ * 	- only the candidates reach the (expensive) scoring stage of Prediction.recommendItems
+ * 	- time spent in every source, in scoring and in ranking is summed over all requests
+ * Built-in sources: items rated by the top neighbors, items of the user's favorite genres,
+ * and the most popular items; any CandidateSource can be added
+ * @author Yibang Chen
+ *
+ */
+public class CandidateGenerator {
+	
+	public static final int DEFAULT_BUDGET = 300;
+	
+	/**
+	 * This interface is one source of candidate items
+	 */
+	public interface CandidateSource {
+		public String getName();
+		
+		/**
+		 * This method adds candidate items for a user, best first, until the set is full
+		 * @param user
+		 * @param neighbors : one-row graph of the user's neighbors, most similar first
+		 * @param candidates
+		 */
+		public void addCandidates(User user, NeighborGraph neighbors, Candidates candidates);
+	}
+	
+	/**
+	 * This class collects the candidates of one request
+	 * 	- items the user rated, unknown items, repeated items and items that fail the filter are ignored
+	 */
+	public static class Candidates {
+		private final ItemPool items;
+		private final int itemCount;
+		private final boolean[] chosen;
+		private final User user;
+		private final int budget;
+		private final ItemFilterIndex filterIndex;
+		private final ItemFilter filter;
+		private final int[] indexes;
+		private int size = 0;
+		
+		/**
+		 * @param items
+		 * @param itemCount : items with an internal index below itemCount can be candidates
+		 * @param chosen : all false, by internal item index; flags of the chosen items
+		 * @param user
+		 * @param budget : maximum number of candidates
+		 */
+		Candidates(ItemPool items, int itemCount, boolean[] chosen, User user, int budget) {
+			this(items, itemCount, chosen, user, budget, null, null);
+		}
+		
+		/**
+		 * @param items
+		 * @param itemCount : items with an internal index below itemCount can be candidates
+		 * @param chosen : all false, by internal item index; flags of the chosen items
+		 * @param user
+		 * @param budget : maximum number of candidates
+		 * @param filterIndex : index to check the filter with; null for no filter
+		 * @param filter : only items that pass are taken; null for no filter
+		 */
+		Candidates(ItemPool items, int itemCount, boolean[] chosen, User user, int budget,
+				ItemFilterIndex filterIndex, ItemFilter filter) {
+			this.items = items;
+			this.itemCount = itemCount;
+			this.chosen = chosen;
+			this.user = user;
+			this.budget = budget;
+			this.filterIndex = filterIndex;
+			this.filter = filterIndex == null ? null : filter;
+			this.indexes = new int[Math.max(0, Math.min(budget, itemCount))];
+		}
+		
+		/**
+		 * This method adds an item
+		 * @param itemId
+		 * @return false if the set is full
+		 */
+		public boolean add(int itemId) {
+			if (isFull()) return false;
+			addIndex(items.indexOf(itemId));
+			return true;
+		}
+		
+		/**
+		 * This method adds an item by internal index, if the set is not full
+		 */
+		void addIndex(int j) {
+			if (isFull() || j < 0 || j >= itemCount || chosen[j]) return;
+			if (filter != null && !filterIndex.matches(j, filter)) return;
+			if (user.isRated(items.getItemId(j))) return;
+			chosen[j] = true;
+			indexes[size++] = j;
+		}
+		
+		public boolean isFull() {
+			return size >= indexes.length;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public int getBudget() {
+			return budget;
+		}
+		
+		/**
+		 * This method returns the internal item index of the i-th candidate
+		 */
+		int getIndex(int i) {
+			return indexes[i];
+		}
+		
+		/**
+		 * This method clears the flags of the chosen items, so the flag array can be reused
+		 */
+		void reset() {
+			for (int i = 0; i < size; i++) {
+				chosen[indexes[i]] = false;
+			}
+			size = 0;
+		}
+	}
+	
+	private final List<CandidateSource> sources = new ArrayList<CandidateSource>();
+	private final int budget;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder candidateCount = new LongAdder();
+	private LongAdder[] sourceNanos = new LongAdder[0];
+	private final LongAdder neighborNanos = new LongAdder();
+	private final LongAdder scoreNanos = new LongAdder();
+	private final LongAdder rankNanos = new LongAdder();
+	
+	/**
+	 * The constructor
+	 * @param budget : maximum number of candidates per request
+	 */
+	public CandidateGenerator(int budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * This method creates a generator with the built-in sources:
+	 * neighbor items, then genre items, then popular items
+	 * @param items
+	 * @param budget : maximum number of candidates per request
+	 * @param neighbors : number of top neighbors whose items are candidates
+	 * @return
+	 */
+	public static CandidateGenerator createDefault(ItemPool items, int budget, int neighbors) {
+		CandidateGenerator generator = new CandidateGenerator(budget);
+		generator.addSource(neighborItems(neighbors));
+		generator.addSource(genreItems(items));
+		generator.addSource(popularItems(items));
+		return generator;
+	}
+	
+	/**
+	 * This method appends a source; sources run in the order they are added
+	 * 	- not thread-safe: add all sources before the generator is used
+	 */
+	public void addSource(CandidateSource source) {
+		sources.add(source);
+		LongAdder[] nanos = Arrays.copyOf(sourceNanos, sources.size());
+		nanos[sources.size() - 1] = new LongAdder();
+		sourceNanos = nanos;
+	}
+	
+	public int getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * This method runs all sources for a user
+	 * @param user
+	 * @param neighbors : one-row graph of the user's neighbors
+	 * @param candidates : receives the candidates
+	 */
+	void generate(User user, NeighborGraph neighbors, Candidates candidates) {
+		for (int s = 0; s < sources.size() && !candidates.isFull(); s++) {
+			long start = System.nanoTime();
+			sources.get(s).addCandidates(user, neighbors, candidates);
+			sourceNanos[s].add(System.nanoTime() - start);
+		}
+		requests.increment();
+		candidateCount.add(candidates.size());
+	}
+	
+	void recordNeighbors(long nanos) {
+		neighborNanos.add(nanos);
+	}
+	
+	void recordScore(long nanos) {
+		scoreNanos.add(nanos);
+	}
+	
+	void recordRank(long nanos) {
+		rankNanos.add(nanos);
+	}
+	
+	/**
+	 * This method resets the timings
+	 */
+	public void resetTimings() {
+		requests.reset();
+		candidateCount.reset();
+		for (LongAdder nanos : sourceNanos) nanos.reset();
+		neighborNanos.reset();
+		scoreNanos.reset();
+		rankNanos.reset();
+	}
+	
+	/**
+	 * This method reports the average time per request of every stage
+	 * @return one line per stage
+	 */
+	public String getTimingReport() {
+		long n = Math.max(1, requests.sum());
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d requests, %.1f candidates/request (budget %d)%n",
+				requests.sum(), (double) candidateCount.sum() / n, budget));
+		report.append(String.format("  %-16s %10.1f us%n", "neighbors", neighborNanos.sum() / 1e3 / n));
+		for (int s = 0; s < sources.size(); s++) {
+			report.append(String.format("  %-16s %10.1f us%n", "source:" + sources.get(s).getName(),
+					sourceNanos[s].sum() / 1e3 / n));
+		}
+		report.append(String.format("  %-16s %10.1f us%n", "score", scoreNanos.sum() / 1e3 / n));
+		report.append(String.format("  %-16s %10.1f us%n", "rank", rankNanos.sum() / 1e3 / n));
+		return report.toString();
+	}
+	
+	/**
+	 * This method creates a source of the items rated by a user's top neighbors
+	 * 	- neighbors are taken most similar first; positive similarities only
+	 * @param neighbors : number of top neighbors
+	 */
+	public static CandidateSource neighborItems(final int neighbors) {
+		return new CandidateSource() {
+			public String getName() {
+				return "neighbors";
+			}
+			
+			public void addCandidates(User user, NeighborGraph graph, Candidates candidates) {
+				int index = graph.indexOf(user.getUserId());
+				if (index < 0) return;
+				
+				UserPool users = UserPool.getInstance();
+				int end = Math.min(graph.getEnd(index), graph.getStart(index) + neighbors);
+				for (int p = graph.getStart(index); p < end && graph.getSimilarity(p) > 0; p++) {
+					User.Profile neighbor = users.getUser(graph.getNeighborId(p)).getProfile();
+					double average = neighbor.getAverageRating();
+					for (int r = 0; r < neighbor.size(); r++) {
+						if (neighbor.getRatingAt(r) >= average && !candidates.add(neighbor.getItemIdAt(r))) return;
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * This method creates a source of the most popular items (most raters first)
+	 * 	- the ranking is computed once, when the source is created
+	 */
+	public static CandidateSource popularItems(ItemPool items) {
+		final int[] ranked = rankByPopularity(items, items.getItemIds());
+		return new CandidateSource() {
+			public String getName() {
+				return "popular";
+			}
+			
+			public void addCandidates(User user, NeighborGraph graph, Candidates candidates) {
+				for (int itemId : ranked) {
+					if (!candidates.add(itemId)) return;
+				}
+			}
+		};
+	}
+	
+	/**
+	 * This method creates a source of popular items in the genres the user rated above average
+	 * 	- genres are weighted by the user's liked items; the room left in the budget is split
+	 * 	  in proportion before any item is added (largest remainder, so the shares add up to the room)
+	 * 	- genres are taken by weight (descending), ties by name, so the candidates do not depend
+	 * 	  on HashMap order
+	 * 	- the per-genre rankings are computed once, when the source is created
+	 */
+	public static CandidateSource genreItems(ItemPool items) {
+		Map<String, List<Integer>> byGenre = new HashMap<String, List<Integer>>();
+		for (int itemId : items.getItemIds()) {
+			for (String genre : genresOf(items, itemId)) {
+				byGenre.computeIfAbsent(genre, g -> new ArrayList<Integer>()).add(itemId);
+			}
+		}
+		final Map<String, int[]> ranked = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<Integer>> genre : byGenre.entrySet()) {
+			ranked.put(genre.getKey(), rankByPopularity(items, genre.getValue()));
+		}
+		
+		return new CandidateSource() {
+			public String getName() {
+				return "genres";
+			}
+			
+			public void addCandidates(User user, NeighborGraph graph, Candidates candidates) {
+				Map<String, Integer> liked = new HashMap<String, Integer>();
+				int total = 0;
+				User.Profile profile = user.getProfile();
+				double average = profile.getAverageRating();
+				for (int r = 0; r < profile.size(); r++) {
+					if (profile.getRatingAt(r) < average) continue;
+					for (String genre : genresOf(items, profile.getItemIdAt(r))) {
+						liked.merge(genre, 1, Integer::sum);
+						total++;
+					}
+				}
+				if (total == 0) return;
+				
+				List<Map.Entry<String, Integer>> genres = new ArrayList<Map.Entry<String, Integer>>(liked.entrySet());
+				genres.sort((a, b) -> a.getValue().equals(b.getValue())
+						? a.getKey().compareTo(b.getKey()) : b.getValue() - a.getValue());
+				
+				int room = candidates.getBudget() - candidates.size();
+				int[] shares = new int[genres.size()];
+				long[] remainders = new long[genres.size()];
+				int assigned = 0;
+				for (int g = 0; g < shares.length; g++) {
+					long weighted = (long) room * genres.get(g).getValue();
+					shares[g] = (int) (weighted / total);
+					remainders[g] = weighted % total;
+					assigned += shares[g];
+				}
+				// the rest, one each, to the genres with the largest remainders; the sort is stable,
+				// so equal remainders go to the heavier genre
+				Integer[] order = new Integer[shares.length];
+				for (int g = 0; g < order.length; g++) order[g] = g;
+				Arrays.sort(order, (a, b) -> Long.compare(remainders[b], remainders[a]));
+				for (int g = 0; assigned < room && g < order.length; g++, assigned++) shares[order[g]]++;
+				
+				for (int g = 0; g < shares.length; g++) {
+					int[] genreItems = ranked.get(genres.get(g).getKey());
+					if (genreItems == null) continue;
+					int start = candidates.size();
+					for (int i = 0; i < genreItems.length && candidates.size() - start < shares[g]; i++) {
+						if (!candidates.add(genreItems[i])) return;
+					}
+				}
+			}
+		};
+	}
+	
+	private static Set<String> genresOf(ItemPool items, int itemId) {
+		Item item = items.getItem(itemId);
+		if (item instanceof MovieItem && ((MovieItem) item).getCategories() != null) {
+			return ((MovieItem) item).getCategories();
+		}
+		return Collections.emptySet();
+	}
+	
+	/**
+	 * This method orders items by number of raters (descending), ties by item id (ascending)
+	 */
+	private static int[] rankByPopularity(ItemPool items, Collection<Integer> itemIds) {
+		int n = itemIds.size();
+		int[] ids = new int[n];
+		double[] counts = new double[n];
+		int i = 0;
+		for (int itemId : itemIds) {
+			ids[i] = itemId;
+			RaterList raters = items.getRaters(itemId);
+			counts[i++] = raters == null ? 0 : raters.size();
+		}
+		int count = TopK.selectDescending(ids, counts, n, n);
+		return Arrays.copyOf(ids, count);
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * This class is the compact encoding of a user's ratings, the layout of the compact backend of UserPool
+ * 	- a rating that is a multiple of 0.5 between 0 and 127.5 (MovieLens: 0.5 to 5.0) is one byte,
+ * 	  twice the rating; a user with any other rating is not encoded and keeps the heap layout
+ * 	- the sorted item ids are varints (7 bits per byte, high bit set if more follow): the first id
+ * 	  of every block of BLOCK_SIZE ids in full, the others as the gap to the previous id, which is
+ * 	  a single byte for most gaps of a catalog of some thousand items
+ * 	- the byte offset of every block is kept, so the id at a position is found by decoding at most
+ * 	  BLOCK_SIZE varints, and an id by a binary search over the first ids of the blocks
+ * Merges that walk the ids in order read them through User.Cursor, which decodes one varint per step.
+ * Instances are immutable
+ * @author Yibang Chen
+ *
+ */
+public final class CompactRatings {
+	
+	public static final int BLOCK_SIZE = 16;
+	
+	final byte[] itemBytes;
+	final byte[] ratingCodes;
+	private final int[] blockOffsets;
+	
+	private CompactRatings(byte[] itemBytes, byte[] ratingCodes, int[] blockOffsets) {
+		this.itemBytes = itemBytes;
+		this.ratingCodes = ratingCodes;
+		this.blockOffsets = blockOffsets;
+	}
+	
+	/**
+	 * This method encodes the ratings of a profile
+	 * 	- two passes: the length of every varint, then the bytes
+	 * @param profile : a heap or off-heap profile
+	 * @return the encoding; null if a rating is not a multiple of 0.5 in range
+	 */
+	static CompactRatings encode(User.Profile profile) {
+		int size = profile.size();
+		byte[] ratingCodes = new byte[size];
+		int length = 0;
+		int previous = 0;
+		for (int i = 0; i < size; i++) {
+			float doubled = profile.getRatingAt(i) * 2;
+			int code = (int) doubled;
+			if (code != doubled || code < 0 || code > 255) return null;
+			ratingCodes[i] = (byte) code;
+			
+			int itemId = profile.getItemIdAt(i);
+			length += varintLength(i % BLOCK_SIZE == 0 ? itemId : itemId - previous);
+			previous = itemId;
+		}
+		
+		byte[] itemBytes = new byte[length];
+		int[] blockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		int offset = 0;
+		for (int i = 0; i < size; i++) {
+			int itemId = profile.getItemIdAt(i);
+			int value = itemId - previous;
+			if (i % BLOCK_SIZE == 0) {
+				blockOffsets[i / BLOCK_SIZE] = offset;
+				value = itemId;
+			}
+			while ((value & ~0x7F) != 0) {
+				itemBytes[offset++] = (byte) (value | 0x80);
+				value >>>= 7;
+			}
+			itemBytes[offset++] = (byte) value;
+			previous = itemId;
+		}
+		return new CompactRatings(itemBytes, ratingCodes, blockOffsets);
+	}
+	
+	private static int varintLength(int value) {
+		int length = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+	
+	public int size() {
+		return ratingCodes.length;
+	}
+	
+	/**
+	 * This method returns the item id at a position, decoding from the start of its block
+	 * @param position : 0 <= position < size()
+	 * @return
+	 */
+	public int getItemIdAt(int position) {
+		int offset = blockOffsets[position / BLOCK_SIZE];
+		int itemId = 0;
+		for (int i = position - position % BLOCK_SIZE; i <= position; i++) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = itemBytes[offset++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			itemId = i % BLOCK_SIZE == 0 ? value : itemId + value;
+		}
+		return itemId;
+	}
+	
+	/**
+	 * This method returns the rating at a position, parallel to getItemIdAt
+	 * @param position : 0 <= position < size()
+	 * @return
+	 */
+	public float getRatingAt(int position) {
+		return (ratingCodes[position] & 0xFF) * 0.5f;
+	}
+	
+	/**
+	 * This method finds the position of an item
+	 * 	- a binary search over the first ids of the blocks, then a scan of one block
+	 * @param itemId
+	 * @return the position; -(insertion point + 1) if the item is not rated, as Arrays.binarySearch
+	 */
+	public int indexOf(int itemId) {
+		int low = 0, high = blockOffsets.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (getItemIdAt(mid * BLOCK_SIZE) <= itemId) low = mid + 1;
+			else high = mid - 1;
+		}
+		if (high < 0) return -1;
+		
+		int start = high * BLOCK_SIZE;
+		int end = Math.min(size(), start + BLOCK_SIZE);
+		int offset = blockOffsets[high];
+		int value = 0;
+		for (int position = start; position < end; position++) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = itemBytes[offset++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			value = position == start ? gap : value + gap;
+			if (value == itemId) return position;
+			if (value > itemId) return -(position + 1);
+		}
+		return -(end + 1);
+	}
+	
+	/**
+	 * This method returns the bytes of the encoded arrays, without object headers
+	 * @return
+	 */
+	public int getByteSize() {
+		return itemBytes.length + ratingCodes.length + 4 * blockOffsets.length;
+	}
+}
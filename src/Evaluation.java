@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * This class evaluates rating predictors on held-out ratings
+ * 	- the ratings are split into a training and a test set (seeded k-fold or temporal)
+ * 	- the pools are rebuilt from the training set only, so test ratings are never seen
+ * 	- all test pairs are scored in parallel on all cores
+ * For each predictor it reports RMSE, MAE and predictions per second
+ * @author Yibang Chen
+ *
+ */
+public class Evaluation {
+
+	private static final int PAIRS_PER_TASK = 256;
+
+	/**
+	 * This interface is a rating predictor under evaluation
+	 */
+	public interface Predictor {
+		/**
+		 * This method is called after the pools are rebuilt from a training set
+		 * 	- predictors with an offline model (re)build it here
+		 */
+		public default void train() {
+		}
+
+		public double predict(int userId, int itemId);
+	}
+
+	private final RatingTable ratings;
+	private final UserPool users;
+	private final ItemPool items;
+	private final List<String> names = new ArrayList<String>();
+	private final List<Predictor> predictors = new ArrayList<Predictor>();
+
+	/**
+	 * The constructor
+	 * @param ratings : all ratings of the data set; items must already be imported
+	 */
+	public Evaluation(RatingTable ratings) {
+		this.ratings = ratings;
+		this.users = UserPool.getInstance();
+		this.items = ItemPool.getInstance();
+	}
+
+	public void addPredictor(String name, Predictor predictor) {
+		names.add(name);
+		predictors.add(predictor);
+	}
+
+	/**
+	 * This method runs a seeded k-fold cross validation and prints the results
+	 * 	- every rating is in the test set of exactly one fold
+	 * @param folds : number of folds, at least 2
+	 * @param seed : seed of the shuffle that assigns ratings to folds
+	 */
+	public void crossValidate(int folds, long seed) {
+		int n = ratings.size();
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Random random = new Random(seed);
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		int[] foldOf = new int[n];
+		for (int i = 0; i < n; i++) foldOf[order[i]] = i % folds;
+
+		Result total = new Result(predictors.size());
+		for (int f = 0; f < folds; f++) {
+			boolean[] isTest = new boolean[n];
+			for (int i = 0; i < n; i++) isTest[i] = foldOf[i] == f;
+
+			Result result = evaluate(isTest);
+			result.print("Fold " + (f + 1) + "/" + folds, names);
+			total.add(result);
+		}
+		total.print(folds + "-fold cross validation (seed " + seed + ")", names);
+	}
+
+	/**
+	 * This method trains on the oldest ratings, tests on the newest ones and prints the results
+	 * @param testFraction : share of the ratings, by time, that is held out
+	 */
+	public void temporalSplit(double testFraction) {
+		int n = ratings.size();
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+		Arrays.sort(order, (a, b) -> {
+			int c = Long.compare(ratings.getTimestamp(a), ratings.getTimestamp(b));
+			return c != 0 ? c : Integer.compare(a, b);
+		});
+
+		int testSize = (int) Math.ceil(n * testFraction);
+		boolean[] isTest = new boolean[n];
+		for (int i = n - testSize; i < n; i++) isTest[order[i]] = true;
+
+		evaluate(isTest).print("Temporal split (newest " + testFraction + " held out)", names);
+	}
+
+	/**
+	 * This method rebuilds the pools from the training ratings and scores the test ratings
+	 * @param isTest : true for ratings of the test set
+	 * @return the errors and timings of all predictors
+	 */
+	private Result evaluate(final boolean[] isTest) {
+		long trainStart = System.nanoTime();
+		users.clear();
+		items.clearRatings();
+		RatingIngestor ingestor = RatingIngestor.getInstance();
+		int testCount = 0;
+		for (int i = 0; i < ratings.size(); i++) {
+			if (isTest[i]) testCount++;
+			else ingestor.addRating(ratings.getUserId(i), ratings.getItemId(i), ratings.getRating(i));
+		}
+		users.trimToSize();
+		items.trimToSize();
+		for (Predictor predictor : predictors) {
+			predictor.train();
+		}
+		long trainNanos = System.nanoTime() - trainStart;
+
+		final int[] tests = new int[testCount];
+		testCount = 0;
+		for (int i = 0; i < ratings.size(); i++) {
+			if (isTest[i]) tests[testCount++] = i;
+		}
+
+		long start = System.nanoTime();
+		int tasks = (tests.length + PAIRS_PER_TASK - 1) / PAIRS_PER_TASK;
+		Result[] partial = IntStream.range(0, tasks).parallel().mapToObj(task -> {
+			Result result = new Result(predictors.size());
+			int end = Math.min(tests.length, (task + 1) * PAIRS_PER_TASK);
+			for (int t = task * PAIRS_PER_TASK; t < end; t++) {
+				score(tests[t], result);
+			}
+			return result;
+		}).toArray(Result[]::new);
+
+		Result result = new Result(predictors.size());
+		for (Result r : partial) result.add(r);
+		result.wallNanos = System.nanoTime() - start;
+		result.trainNanos = trainNanos;
+		return result;
+	}
+
+	/**
+	 * This method scores one test rating with every predictor
+	 * 	- pairs whose user or item has no training rating are counted as skipped
+	 */
+	private void score(int index, Result result) {
+		int userId = ratings.getUserId(index);
+		int itemId = ratings.getItemId(index);
+		if (!users.isUserAdded(userId) || !items.isValidItem(itemId) || items.getRaters(itemId).isEmpty()) {
+			result.skipped++;
+			return;
+		}
+
+		float actual = ratings.getRating(index);
+		for (int p = 0; p < predictors.size(); p++) {
+			long start = System.nanoTime();
+			double predicted = predictors.get(p).predict(userId, itemId);
+			result.nanos[p] += System.nanoTime() - start;
+
+			double error = predicted - actual;
+			result.squaredErrors[p] += error * error;
+			result.absoluteErrors[p] += Math.abs(error);
+		}
+		result.count++;
+	}
+
+	/**
+	 * This class sums the errors and timings of the predictors over scored pairs
+	 */
+	private static class Result {
+		final double[] squaredErrors;
+		final double[] absoluteErrors;
+		final long[] nanos;
+		long count = 0;
+		long skipped = 0;
+		long wallNanos = 0;
+		long trainNanos = 0;
+
+		Result(int predictors) {
+			squaredErrors = new double[predictors];
+			absoluteErrors = new double[predictors];
+			nanos = new long[predictors];
+		}
+
+		void add(Result other) {
+			for (int p = 0; p < nanos.length; p++) {
+				squaredErrors[p] += other.squaredErrors[p];
+				absoluteErrors[p] += other.absoluteErrors[p];
+				nanos[p] += other.nanos[p];
+			}
+			count += other.count;
+			skipped += other.skipped;
+			wallNanos += other.wallNanos;
+			trainNanos += other.trainNanos;
+		}
+
+		void print(String title, List<String> names) {
+			long predictions = count * nanos.length;
+			System.out.println("***********" + title + ": " + count + " pairs scored, " + skipped
+					+ " skipped (no training data)");
+			System.out.println(String.format("Training: %.1f s, scoring: %.1f s wall, %.0f predictions/s",
+					trainNanos / 1e9, wallNanos / 1e9, wallNanos == 0 ? 0 : predictions * 1e9 / wallNanos));
+			System.out.println(String.format("%-24s %10s %10s %14s %12s", "Predictor", "RMSE", "MAE",
+					"predictions/s", "us/predict"));
+			for (int p = 0; p < nanos.length; p++) {
+				System.out.println(String.format("%-24s %10.5f %10.5f %14.0f %12.2f", names.get(p),
+						count == 0 ? 0 : Math.sqrt(squaredErrors[p] / count),
+						count == 0 ? 0 : absoluteErrors[p] / count,
+						nanos[p] == 0 ? 0 : count * 1e9 / nanos[p],
+						count == 0 ? 0 : nanos[p] / 1e3 / count));
+			}
+			System.out.println();
+		}
+	}
+}
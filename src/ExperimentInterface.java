@@ -5,65 +5,113 @@ public class ExperimentInterface {
 	
 	public static final Scanner sc = new Scanner(System.in);
 	
+	private static final int FOLDS = 5;
+	private static final long SEED = 42;
+	private static final double TEST_FRACTION = 0.2;
+	private static final int SIMILAR_ITEMS = 100;
+	private static final int FACTORS = 50;
+	private static final int EPOCHS = 20;
+	private static final float LEARNING_RATE = 0.01f;
+	private static final float REGULARIZATION = 0.05f;
+	
 	/**
 	 * This is a tester to experiment different recommending algorithms.
-	 * The experiment compares variance of different recommending algorithms:
-	 * - variance: square_root ( Sum((rating - predicted rating)^2) / total count)
-	 * 1. Baseline Model: 
+	 * The experiment compares the errors of different recommending algorithms on held-out ratings:
+	 * - RMSE: square_root ( Sum((rating - predicted rating)^2) / total count)
+	 * - MAE: Sum(|rating - predicted rating|) / total count
+	 * 1. Baseline Model: global mean + regularized user and item biases (BaselineModel);
+	 *    it is also the fallback of the other models when they have no neighbors to go on
 	 * 2. Pearson Model - using simplest weighted average: 
 	 * 3. Pearson Model - using cosine similarity
+	 * 4. Item-based Model - using adjusted cosine similarity between items
+	 * 5. Matrix Factorization Model - user and item biases plus latent factors, trained with
+	 *    parallel SGD (FactorModel)
+	 * Held-out ratings are chosen by a seeded k-fold or a temporal split (see Evaluation)
 	 * @param args
 	 */
 	public static void main(String args[]){
 		
 		String path = getDataFolder(); //"/Users/user/Downloads/ml-latest-small/";
 		String dataType = getDelim();
+		String method = getMethod();
 				
 		FileReader reader = new FileReader(path);
-		UserPool users = UserPool.getInstance();
-		ItemPool movies = ItemPool.getInstance();
+		final ItemPool movies = ItemPool.getInstance();
+		RatingTable ratings = null;
 
-		if (dataType.equals(".data")) {			
+		if (dataType.equals(".dat")) {
 			reader.parseMovieData("movies.dat", movies, "::");
-			reader.parseRatingData("ratings_sample.dat", users, "::");
-		} else if (dataType.equals(".csv")) {			
+			ratings = reader.readRatings("ratings_sample.dat", "::");
+		} else if (dataType.equals(".csv")) {
 			reader.parseMovieData("movies.csv", movies, ",");
-			reader.parseRatingData("ratings.csv", users, ",");
+			ratings = reader.readRatings("ratings.csv", ",");
 		}
-				
-		Prediction pr = new Prediction();
-				
-		int counter = 0;
-		double baseVariance = 0, pearsonVariance = 0, cosineVariance = 0;
-		for (int userId : users.getUsers()){
-			User user = users.getUser(userId);
-			for (int itemId : user.getRatedItems()) {
-				if (counter++ >= 1000) break;
-
-				float score = user.getRating(itemId);
-				
-				double base = pr.getBaselineRating(userId, itemId);
-				baseVariance += (base - score)*(base - score);
-				
-				double pearson = pr.predictRating(userId, itemId);
-				pearsonVariance += (pearson - score)*(pearson - score);
-				
-				double cosine = pr.predictCosineRating(userId, itemId);
-				cosineVariance += (cosine - score)*(cosine - score);
-				}
+		if (ratings == null) {
+			sc.close();
+			return;
 		}
+				
+		final Prediction pr = new Prediction();
+		Evaluation evaluation = new Evaluation(ratings);
+		evaluation.addPredictor("Baseline", new Evaluation.Predictor() {
+			public void train() {
+				pr.setBaselineModel(BaselineModel.fit(UserPool.getInstance(), movies));
+			}
+			
+			public double predict(int userId, int itemId) {
+				return pr.getBaselineRating(userId, itemId);
+			}
+		});
+		evaluation.addPredictor("Pearson", (userId, itemId) -> pr.predictRating(userId, itemId));
+		evaluation.addPredictor("Cosine", (userId, itemId) -> pr.predictCosineRating(userId, itemId));
+		evaluation.addPredictor("Item-based", new Evaluation.Predictor() {
+			public void train() {
+				movies.buildSimilarityMatrix(SIMILAR_ITEMS);
+			}
+			
+			public double predict(int userId, int itemId) {
+				return pr.predictItemBasedRating(userId, itemId);
+			}
+		});
+		evaluation.addPredictor("Matrix factorization", new Evaluation.Predictor() {
+			public void train() {
+				pr.setFactorModel(FactorModel.train(UserPool.getInstance(), movies,
+						FACTORS, EPOCHS, LEARNING_RATE, REGULARIZATION, SEED));
+			}
+			
+			public double predict(int userId, int itemId) {
+				return pr.predictFactorRating(userId, itemId);
+			}
+		});
 		
-		baseVariance = Math.sqrt(baseVariance/counter);
-		pearsonVariance = Math.sqrt(pearsonVariance/counter);
-		cosineVariance = Math.sqrt(cosineVariance/counter);
-		
-		System.out.println("Variance of Baseline Model: "+baseVariance
-				+	"\r\nVariance of Pearson Model with weighted average: " + pearsonVariance
-				+ 	"\r\nVariance of Pearson Model with cosine similarity: " + cosineVariance);
+		if (method.equals("kfold")) {
+			evaluation.crossValidate(FOLDS, SEED);
+		} else {
+			evaluation.temporalSplit(TEST_FRACTION);
+		}
 
 		sc.close();
 	}
 	
+	/**
+	 * This method asks the user how to hold out test ratings
+	 * @return "kfold" or "temporal"
+	 */
+	private static String getMethod() {
+		String method = "";
+		
+		while (method.equals("")) {
+			System.out.println(	"***********How would you like to hold out test ratings?\r\n"
+					+ 		"Type 1 for " + FOLDS + "-fold cross validation\r\n"
+					+ 		"Type 2 for temporal split (newest " + TEST_FRACTION + " of ratings)\r\n");
+			String ans = sc.next();
+			if (ans.equals("1"))	method = "kfold";
+			else if (ans.equals("2"))	method = "temporal";
+		}
+		
+		return method;
+	}
+	
 	/**
 	 * This method asks the user for a data type of import files
 	 * @return
@@ -0,0 +1,279 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * This class is a biased matrix factorization model (SVD-style latent factors)
+ * 	- prediction: globalMean + userBias + itemBias + dot(userFactors, itemFactors), O(f)
+ * 	- factors live in flat float arrays: row u of the user factors is [u*f, (u+1)*f)
+ * 	- training is lock-free parallel SGD (Hogwild): every core walks its own slice of the
+ * 	  shuffled ratings and updates the shared arrays without locks; since ratings are sparse,
+ * 	  two cores rarely touch the same row at once and the occasional lost update is harmless
+ * 	- dot products and SGD steps of the factor rows run on Kernels (SIMD when available)
+ * The model can be saved to and loaded from disk
+ * @author Yibang Chen
+ *
+ */
+public class FactorModel {
+	
+	private static final int MAGIC = 0x464d4f44; // "FMOD"
+	private static final int VERSION = 1;
+	private static final float INIT_DEVIATION = 0.1f;
+	private static final float LEARNING_RATE_DECAY = 0.95f;
+	
+	private final int factors;
+	private final int[] userIds;
+	private final int[] itemIds;
+	private final float[] userFactors;
+	private final float[] itemFactors;
+	private final float[] userBias;
+	private final float[] itemBias;
+	private final float globalMean;
+	private final float minRating;
+	private final float maxRating;
+	
+	private FactorModel(int factors, int[] userIds, int[] itemIds, float[] userFactors, float[] itemFactors,
+			float[] userBias, float[] itemBias, float globalMean, float minRating, float maxRating) {
+		this.factors = factors;
+		this.userIds = userIds;
+		this.itemIds = itemIds;
+		this.userFactors = userFactors;
+		this.itemFactors = itemFactors;
+		this.userBias = userBias;
+		this.itemBias = itemBias;
+		this.globalMean = globalMean;
+		this.minRating = minRating;
+		this.maxRating = maxRating;
+	}
+	
+	/**
+	 * This method trains a model on all ratings in the pools
+	 * @param users
+	 * @param items
+	 * @param factors : number of latent factors f
+	 * @param epochs : number of passes over the ratings
+	 * @param learningRate : initial SGD step; it decays by LEARNING_RATE_DECAY every epoch
+	 * @param regularization : L2 penalty on biases and factors
+	 * @param seed : seed of the initial factors and of the shuffles
+	 * @return the trained model
+	 */
+	public static FactorModel train(UserPool users, ItemPool items, int factors, int epochs,
+			float learningRate, float regularization, long seed) {
+		int[] userIds = sortedIds(users.getUsers().toArray(new Integer[0]));
+		int[] itemIds = sortedIds(items.getItemIds().toArray(new Integer[0]));
+		
+		User.Profile[] profiles = new User.Profile[userIds.length];
+		int total = 0;
+		for (int u = 0; u < userIds.length; u++) {
+			profiles[u] = users.getUser(userIds[u]).getProfile();
+			total += profiles[u].size();
+		}
+		final int[] ratingUsers = new int[total];
+		final int[] ratingItems = new int[total];
+		final float[] ratingValues = new float[total];
+		double sum = 0;
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		int n = 0;
+		for (int u = 0; u < userIds.length; u++) {
+			User.Profile user = profiles[u];
+			for (int r = 0; r < user.size(); r++) {
+				int i = Arrays.binarySearch(itemIds, user.getItemIdAt(r));
+				if (i < 0) continue;
+				ratingUsers[n] = u;
+				ratingItems[n] = i;
+				float value = user.getRatingAt(r);
+				ratingValues[n] = value;
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				n++;
+			}
+		}
+		final int count = n;
+		
+		Random random = new Random(seed);
+		final float[] userFactors = randomFactors(userIds.length * factors, random);
+		final float[] itemFactors = randomFactors(itemIds.length * factors, random);
+		final float[] userBias = new float[userIds.length];
+		final float[] itemBias = new float[itemIds.length];
+		final float mean = count == 0 ? 0 : (float) (sum / count);
+		if (count == 0) {
+			min = 0;
+			max = 0;
+		}
+		
+		final int[] order = new int[count];
+		for (int r = 0; r < count; r++) order[r] = r;
+		final int f = factors;
+		final float reg = regularization;
+		final int slices = Runtime.getRuntime().availableProcessors();
+		float rate = learningRate;
+		
+		for (int epoch = 0; epoch < epochs; epoch++) {
+			for (int r = count - 1; r > 0; r--) {
+				int j = random.nextInt(r + 1);
+				int t = order[r];
+				order[r] = order[j];
+				order[j] = t;
+			}
+			
+			final float lr = rate;
+			IntStream.range(0, slices).parallel().forEach(slice -> {
+				int end = (int) ((long) count * (slice + 1) / slices);
+				for (int s = (int) ((long) count * slice / slices); s < end; s++) {
+					int r = order[s];
+					int u = ratingUsers[r];
+					int i = ratingItems[r];
+					int uRow = u * f, iRow = i * f;
+					
+					float dot = Kernels.dot(userFactors, uRow, itemFactors, iRow, f);
+					float error = ratingValues[r] - (mean + userBias[u] + itemBias[i] + dot);
+					
+					userBias[u] += lr * (error - reg * userBias[u]);
+					itemBias[i] += lr * (error - reg * itemBias[i]);
+					Kernels.sgdStep(userFactors, uRow, itemFactors, iRow, f, lr, error, reg);
+				}
+			});
+			rate *= LEARNING_RATE_DECAY;
+		}
+		
+		return new FactorModel(factors, userIds, itemIds, userFactors, itemFactors,
+				userBias, itemBias, mean, min, max);
+	}
+	
+	private static float[] randomFactors(int size, Random random) {
+		float[] values = new float[size];
+		for (int i = 0; i < size; i++) values[i] = (float) random.nextGaussian() * INIT_DEVIATION;
+		return values;
+	}
+	
+	private static int[] sortedIds(Integer[] ids) {
+		int[] result = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) result[i] = ids[i];
+		Arrays.sort(result);
+		return result;
+	}
+	
+	public int getFactors() {
+		return factors;
+	}
+	
+	/**
+	 * This method predicts a user's rating to an item
+	 * 	- a user or item unknown to the model contributes no bias and no factors
+	 * @param userId
+	 * @param itemId
+	 * @return the prediction, clipped to the range of the training ratings
+	 */
+	public double predict(int userId, int itemId) {
+		int u = Arrays.binarySearch(userIds, userId);
+		int i = Arrays.binarySearch(itemIds, itemId);
+		
+		float score = globalMean;
+		if (u >= 0) score += userBias[u];
+		if (i >= 0) score += itemBias[i];
+		if (u >= 0 && i >= 0) score += dot(u * factors, i * factors);
+		return Math.max(minRating, Math.min(maxRating, score));
+	}
+	
+	/**
+	 * This method scores every item of the model for a user and keeps the best
+	 * @param userId
+	 * @param numOfItems : number of items to return
+	 * @param exclude : the user whose rated items are skipped; null to skip nothing
+	 * @return item ids, best first; empty if the user is unknown to the model
+	 */
+	public int[] recommend(int userId, int numOfItems, User exclude) {
+		int u = Arrays.binarySearch(userIds, userId);
+		if (u < 0) return new int[0];
+		
+		TopK top = new TopK(numOfItems);
+		int uRow = u * factors;
+		for (int i = 0; i < itemIds.length; i++) {
+			if (exclude != null && exclude.isRated(itemIds[i])) continue;
+			top.offer(itemIds[i], itemBias[i] + dot(uRow, i * factors));
+		}
+		
+		int[] result = new int[top.size()];
+		top.drainDescending(result, new double[top.size()]);
+		return result;
+	}
+	
+	private float dot(int uRow, int iRow) {
+		return Kernels.dot(userFactors, uRow, itemFactors, iRow, factors);
+	}
+	
+	/**
+	 * This method saves the model to a file
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(factors);
+			out.writeInt(userIds.length);
+			out.writeInt(itemIds.length);
+			out.writeFloat(globalMean);
+			out.writeFloat(minRating);
+			out.writeFloat(maxRating);
+			for (int id : userIds) out.writeInt(id);
+			for (int id : itemIds) out.writeInt(id);
+			for (float value : userBias) out.writeFloat(value);
+			for (float value : itemBias) out.writeFloat(value);
+			for (float value : userFactors) out.writeFloat(value);
+			for (float value : itemFactors) out.writeFloat(value);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * This method loads a model saved by save()
+	 * @param path
+	 * @return the model
+	 * @throws IOException if the file is not a factor model or has another version
+	 */
+	public static FactorModel load(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a factor model file");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported factor model version: " + version);
+			
+			int factors = in.readInt();
+			int users = in.readInt();
+			int items = in.readInt();
+			float globalMean = in.readFloat();
+			float minRating = in.readFloat();
+			float maxRating = in.readFloat();
+			
+			int[] userIds = new int[users];
+			int[] itemIds = new int[items];
+			float[] userBias = new float[users];
+			float[] itemBias = new float[items];
+			float[] userFactors = new float[users * factors];
+			float[] itemFactors = new float[items * factors];
+			for (int i = 0; i < users; i++) userIds[i] = in.readInt();
+			for (int i = 0; i < items; i++) itemIds[i] = in.readInt();
+			for (int i = 0; i < users; i++) userBias[i] = in.readFloat();
+			for (int i = 0; i < items; i++) itemBias[i] = in.readFloat();
+			for (int i = 0; i < userFactors.length; i++) userFactors[i] = in.readFloat();
+			for (int i = 0; i < itemFactors.length; i++) itemFactors[i] = in.readFloat();
+			
+			return new FactorModel(factors, userIds, itemIds, userFactors, itemFactors,
+					userBias, itemBias, globalMean, minRating, maxRating);
+		} finally {
+			in.close();
+		}
+	}
+}
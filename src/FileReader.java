@@ -1,8 +1,19 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 /**
  * This class parses movies and ratings files and populates corresponding objects
@@ -11,8 +22,12 @@ import java.util.Set;
  */
 public class FileReader {
 	
+	private static final long CHUNK_BYTES = 16 << 20;
+	private static final double[] POWERS_OF_TEN = {1, 10, 100, 1000, 1e4, 1e5, 1e6, 1e7};
+	
 	private static Set<String> importedFiles;
 	private String folderPath;
+	private boolean offHeap = false;
 	
 	/**
 	 * The constructor
@@ -23,6 +38,22 @@ public class FileReader {
 		folderPath = path;
 	}
 	
+	/**
+	 * This method chooses where ratings read from a snapshot are kept
+	 * 	- heap (default): copied into arrays owned by the users and items
+	 * 	- off-heap: read in place from the memory-mapped snapshot, so the heap holds only the
+	 * 	  User and Item objects and the GC never scans or copies the rating arrays;
+	 * 	  a user or item is copied to the heap when it is first written
+	 * @param offHeap
+	 */
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+	
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
 	/**
 	 * This method checks if certain file is imported
 	 * @param filename : name of file, with extension
@@ -70,7 +101,7 @@ public class FileReader {
 			in.close();
 		}
 		
-		importedFiles.add(filename);
+		importedFiles.add(folderPath+filename);
 		System.out.println(filename + " is successfully parsed and stored");
 		System.out.println("In total: " + c2 + " items parsed, " + c1 + " lines unable to parse\r\n");
 		return movies;
@@ -98,9 +129,9 @@ public class FileReader {
 				} catch (Exception e) {
 					title = rawTitle.trim();
 				}
-				Set<String> categories = new HashSet<String>(Arrays.asList(tokens[2].trim().split("\\|")));
+				long genres = GenreDictionary.getInstance().encode(tokens[2].trim().split("\\|"));
 				
-				newMovie = new MovieItem(itemId,title,year,categories);
+				newMovie = new MovieItem(itemId,title,year,genres);
 			} catch (Exception e) {
 				return null;
 			}
@@ -121,8 +152,8 @@ public class FileReader {
 						title = rawTitle.trim();
 					}					
 					
-					Set<String> categories = new HashSet<String>(Arrays.asList(tokens[2].trim().substring(1).split("\\|")));
-					newMovie = new MovieItem(itemId,title,year,categories);
+					long genres = GenreDictionary.getInstance().encode(tokens[2].trim().substring(1).split("\\|"));
+					newMovie = new MovieItem(itemId,title,year,genres);
 				} catch (Exception e) {
 					System.out.println("Cannot parse item: "+ line);
 					return null;
@@ -135,8 +166,14 @@ public class FileReader {
 	
 	/**
 	 * This method reads and parses the rating data provided by user
+	 * 	- the file is split into newline-aligned chunks that are memory-mapped and parsed
+	 * 	  in parallel on the fork-join pool, byte by byte, into primitive arrays
+	 * 	- the chunks are then merged into the pools in file order
+	 * 	- a line is unreadable unless it has exactly 4 fields (user, item, rating, timestamp),
+	 * 	  its rating is on the scale (see RatingIngestor.isValidRating) and its item is imported
 	 * @param filename : name of the rating file
 	 * @param users : UserPool object of all users
+	 * @param delim : the field delimiter, e.g. "::" or ","
 	 * @return users : added new User objects
 	 */
 	public UserPool parseRatingData(String filename, UserPool users, String delim) {
@@ -145,59 +182,424 @@ public class FileReader {
 			return users;
 		}
 		
-		File inputFile;
-		Scanner in = null;		
+		long start = Metrics.ENABLED ? System.nanoTime() : 0;
 		int c1 = 0, c2 = 0, c3 = 0; //counter of ratings and users
 		ItemPool items = ItemPool.getInstance();
+		RatingIngestor ingestor = RatingIngestor.getInstance();
+		RatingChunk[] chunks;
 		
-		try{
-			inputFile = new File(folderPath+filename);
-			in = new Scanner(inputFile);
-			
-			while (in.hasNextLine()) {
-				String line = in.nextLine();
-				String[] tokens = line.split(delim);
+		try {
+			chunks = readChunks(filename, delim);
+		}
+		catch (Exception e) {
+			System.out.println("*****Cannot read file: " + filename);
+			System.out.println(e.toString());
+			return users;
+		}
+		
+		for (RatingChunk chunk : chunks) {
+			c3 += chunk.badLines;
+			for (int r = 0; r < chunk.size; r++) {
+				int userId = chunk.userIds[r];
 				
-				if (tokens.length == 4) {
-					try {
-						int userId = Integer.parseInt(tokens[0]);
-						int itemId = Integer.parseInt(tokens[1]);
-						float rating = Float.parseFloat(tokens[2]);
-						
-						User user = users.getUser(userId);
-						c1++;
-						if (user == null) {
-							c2++;
-							user = new User(userId);
-						}
-												
-						user.addRating(itemId, rating);
-						users.addUser(user);
-						
-						items.getItem(itemId).addUser(userId);
-						items.updateAverage(rating, itemId, true);
-					}
-					catch (Exception e) {
-						c3++;
+				if (!items.isValidItem(chunk.itemIds[r])) {
+					c3++;
+					continue;
+				}
+				
+				c1++;
+				if (!users.isUserAdded(userId)) c2++;
+				ingestor.addRating(userId, chunk.itemIds[r], chunk.ratings[r]);
+			}
+		}
+		
+		users.trimToSize();
+		items.trimToSize();
+		importedFiles.add(folderPath+filename);
+		if (Metrics.ENABLED) Metrics.PARSE.record(System.nanoTime() - start);
+		System.out.println(filename + " is successfully stored: ");
+		System.out.println("In total: " + c1 + " ratings of " + c2 + " users parsed, " + c3 + " lines unable to read\r\n");
+		return users;
+	}
+	
+	/**
+	 * This method reads a rating file into a table without adding anything to the pools
+	 * 	- lines are parsed like parseRatingData; unreadable lines are skipped
+	 * 	- ratings of items that are not imported are kept
+	 * @param filename : name of the rating file
+	 * @param delim : the field delimiter, e.g. "::" or ","
+	 * @return the ratings in file order; null if the file cannot be read
+	 */
+	public RatingTable readRatings(String filename, String delim) {
+		RatingChunk[] chunks;
+		try {
+			chunks = readChunks(filename, delim);
+		} catch (Exception e) {
+			System.out.println("*****Cannot read file: " + filename);
+			System.out.println(e.toString());
+			return null;
+		}
+		
+		int size = 0;
+		for (RatingChunk chunk : chunks) size += chunk.size;
+		RatingTable table = new RatingTable(size);
+		for (RatingChunk chunk : chunks) {
+			for (int r = 0; r < chunk.size; r++) {
+				table.add(chunk.userIds[r], chunk.itemIds[r], chunk.ratings[r], chunk.timestamps[r]);
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * This method parses a rating file in parallel, one chunk per task
+	 * @param filename
+	 * @param delim
+	 * @return the chunks in file order
+	 * @throws IOException
+	 */
+	private RatingChunk[] readChunks(String filename, String delim) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(folderPath+filename), StandardOpenOption.READ)) {
+			final byte[] delimiter = delim.getBytes(StandardCharsets.UTF_8);
+			final long[] bounds = chunkBounds(channel);
+			return IntStream.range(0, bounds.length - 1).parallel()
+					.mapToObj(c -> parseChunk(channel, bounds[c], bounds[c + 1], delimiter))
+					.toArray(RatingChunk[]::new);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * This method splits a file into chunks of about CHUNK_BYTES that end right after a newline
+	 * @param channel
+	 * @return chunk boundaries: chunk c is [bounds[c], bounds[c+1])
+	 * @throws IOException
+	 */
+	private static long[] chunkBounds(FileChannel channel) throws IOException {
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		
+		long position = 0;
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		while (size - position > CHUNK_BYTES) {
+			position += CHUNK_BYTES;
+			boolean found = false;
+			while (!found && position < size) {
+				window.clear();
+				int read = channel.read(window, position);
+				if (read <= 0) break;
+				for (int i = 0; i < read; i++) {
+					if (window.get(i) == '\n') {
+						position += i + 1;
+						found = true;
+						break;
 					}
+				}
+				if (!found) position += read;
+			}
+			if (position >= size) break;
+			bounds.add(position);
+		}
+		bounds.add(size);
+		
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+		return result;
+	}
+	
+	/**
+	 * This method maps and parses one chunk of a rating file
+	 * @param channel
+	 * @param start : first byte of the chunk, at the start of a line
+	 * @param end : byte after the chunk, at the start of a line or the end of the file
+	 * @param delim : the field delimiter
+	 * @return the parsed ratings and the number of unreadable lines
+	 */
+	private static RatingChunk parseChunk(FileChannel channel, long start, long end, byte[] delim) {
+		MappedByteBuffer buffer;
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		RatingChunk chunk = new RatingChunk((int) ((end - start) / 16) + 16);
+		int limit = buffer.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && buffer.get(lineEnd) != '\n') lineEnd++;
+			int contentEnd = lineEnd;
+			if (contentEnd > lineStart && buffer.get(contentEnd - 1) == '\r') contentEnd--;
+			
+			if (!chunk.parseLine(buffer, lineStart, contentEnd, delim)) {
+				chunk.badLines++;
+			}
+			lineStart = lineEnd + 1;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * This class collects the ratings of one chunk in primitive arrays
+	 */
+	private static class RatingChunk {
+		int[] userIds;
+		int[] itemIds;
+		float[] ratings;
+		long[] timestamps;
+		int size = 0;
+		int badLines = 0;
+		
+		// cursor of the field being parsed; set by the parse* methods
+		private int pos;
+		
+		RatingChunk(int capacity) {
+			userIds = new int[capacity];
+			itemIds = new int[capacity];
+			ratings = new float[capacity];
+			timestamps = new long[capacity];
+		}
+		
+		/**
+		 * This method parses "user delim item delim rating delim timestamp"
+		 * @return true if the line is a rating; false if it is empty or unreadable
+		 */
+		boolean parseLine(ByteBuffer buf, int from, int to, byte[] delim) {
+			if (from >= to) return false;
+			pos = from;
+			long userId = parseInt(buf, to);
+			if (userId == Long.MIN_VALUE || !skipDelim(buf, to, delim)) return false;
+			long itemId = parseInt(buf, to);
+			if (itemId == Long.MIN_VALUE || !skipDelim(buf, to, delim)) return false;
+			float rating = parseFloat(buf, to);
+			if (!RatingIngestor.isValidRating(rating) || !skipDelim(buf, to, delim)) return false;
+			
+			// the timestamp must be present and be the last field; a non-numeric one reads as 0
+			if (pos >= to) return false;
+			long timestamp = 0;
+			for (int i = pos; i < to; i++) {
+				if (matches(buf, i, to, delim)) return false;
+				int d = buf.get(i) - '0';
+				timestamp = (d >= 0 && d <= 9 && timestamp >= 0) ? timestamp * 10 + d : -1;
+			}
+			
+			if (size == userIds.length) {
+				int capacity = size + (size >> 1) + 16;
+				userIds = Arrays.copyOf(userIds, capacity);
+				itemIds = Arrays.copyOf(itemIds, capacity);
+				ratings = Arrays.copyOf(ratings, capacity);
+				timestamps = Arrays.copyOf(timestamps, capacity);
+			}
+			userIds[size] = (int) userId;
+			itemIds[size] = (int) itemId;
+			ratings[size] = rating;
+			timestamps[size] = Math.max(0, timestamp);
+			size++;
+			return true;
+		}
+		
+		private static boolean matches(ByteBuffer buf, int at, int to, byte[] delim) {
+			if (at + delim.length > to) return false;
+			for (int i = 0; i < delim.length; i++) {
+				if (buf.get(at + i) != delim[i]) return false;
+			}
+			return true;
+		}
+		
+		private boolean skipDelim(ByteBuffer buf, int to, byte[] delim) {
+			if (!matches(buf, pos, to, delim)) return false;
+			pos += delim.length;
+			return true;
+		}
+		
+		/**
+		 * This method parses an int at the cursor
+		 * @return the value; Long.MIN_VALUE if there is no valid int
+		 */
+		private long parseInt(ByteBuffer buf, int to) {
+			boolean negative = false;
+			if (pos < to && buf.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			int digitsStart = pos;
+			long value = 0;
+			while (pos < to) {
+				int d = buf.get(pos) - '0';
+				if (d < 0 || d > 9) break;
+				value = value * 10 + d;
+				if (value > Integer.MAX_VALUE + 1L) return Long.MIN_VALUE;
+				pos++;
+			}
+			if (pos == digitsStart) return Long.MIN_VALUE;
+			value = negative ? -value : value;
+			if (value > Integer.MAX_VALUE) return Long.MIN_VALUE;
+			return value;
+		}
+		
+		/**
+		 * This method parses a plain decimal at the cursor, e.g. "4", "3.5"
+		 * 	- anything else (exponents, long mantissas) goes through Float.parseFloat
+		 * @return the value; NaN if there is no valid float
+		 */
+		private float parseFloat(ByteBuffer buf, int to) {
+			int fieldStart = pos;
+			boolean negative = false;
+			if (pos < to && buf.get(pos) == '-') {
+				negative = true;
+				pos++;
+			}
+			long mantissa = 0;
+			int digits = 0, scale = 0;
+			boolean dot = false;
+			while (pos < to) {
+				byte b = buf.get(pos);
+				if (b >= '0' && b <= '9') {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+					if (dot) scale++;
+				} else if (b == '.' && !dot) {
+					dot = true;
 				} else {
-					c3++;
+					break;
 				}
+				pos++;
+			}
+			if (digits == 0) return Float.NaN;
+			
+			boolean plain = digits <= 7 && (pos >= to || (buf.get(pos) != 'e' && buf.get(pos) != 'E'));
+			if (plain) {
+				double value = mantissa / POWERS_OF_TEN[scale];
+				return (float) (negative ? -value : value);
+			}
+			
+			int fieldEnd = fieldStart;
+			while (fieldEnd < to && "0123456789.-+eE".indexOf(buf.get(fieldEnd)) >= 0) fieldEnd++;
+			byte[] bytes = new byte[fieldEnd - fieldStart];
+			for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(fieldStart + i);
+			pos = fieldEnd;
+			try {
+				return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				return Float.NaN;
 			}
 		}
-		catch (Exception e) {
+	}
+	
+	/**
+	 * This method imports a movie file and a rating file, going through a binary snapshot
+	 * 	- if the snapshot exists and was written from the text files as they are now (same size and
+	 * 	  modification time), it is memory-mapped instead of parsing the text files
+	 * 	- otherwise the text files are parsed and the snapshot is written for the next start;
+	 * 	  off-heap, the pools are then reloaded from the snapshot so the parsed arrays can be collected
+	 * @param movieFile : name of the movie file
+	 * @param ratingFile : name of the rating file
+	 * @param delim : delimiter of both text files
+	 * @param snapshotFile : name of the snapshot file
+	 * @param users : UserPool object of all users
+	 * @param items : ItemPool object of all items
+	 */
+	public void importData(String movieFile, String ratingFile, String delim, String snapshotFile,
+			UserPool users, ItemPool items) {
+		File[] sources = {new File(folderPath+movieFile), new File(folderPath+ratingFile)};
+		if (new File(folderPath+snapshotFile).exists() && parseSnapshot(snapshotFile, users, items, sources)) {
+			return;
+		}
+		
+		long[] stats = RatingSnapshot.stat(sources);
+		parseMovieData(movieFile, items, delim);
+		parseRatingData(ratingFile, users, delim);
+		if (writeSnapshot(snapshotFile, users, items, stats) && offHeap) {
+			users.clear();
+			items.clear();
+			parseSnapshot(snapshotFile, users, items);
+		}
+	}
+	
+	/**
+	 * This method writes everything imported so far to a binary snapshot file
+	 * 	- reading the snapshot back with parseSnapshot is much faster than parsing text files
+	 * @param filename : name of the snapshot file
+	 * @param users : UserPool object of all users
+	 * @param items : ItemPool object of all items
+	 * @return true if the snapshot is written
+	 */
+	public boolean writeSnapshot(String filename, UserPool users, ItemPool items) {
+		return writeSnapshot(filename, users, items, new long[0]);
+	}
+	
+	/**
+	 * This method writes everything imported so far to a binary snapshot file, with the source files' state
+	 * @param filename : name of the snapshot file
+	 * @param users : UserPool object of all users
+	 * @param items : ItemPool object of all items
+	 * @param sources : RatingSnapshot.stat of the files the pools were imported from, taken before parsing
+	 * @return true if the snapshot is written
+	 */
+	public boolean writeSnapshot(String filename, UserPool users, ItemPool items, long[] sources) {
+		try {
+			RatingSnapshot.write(folderPath+filename, users, items, sources);
+		} catch (Exception e) {
+			System.out.println("*****Cannot write file: " + filename);
+			System.out.println(e.toString());
+			return false;
+		}
+		
+		System.out.println(filename + " is successfully written\r\n");
+		return true;
+	}
+	
+	/**
+	 * This method reads a binary snapshot written by writeSnapshot
+	 * 	- the file is memory-mapped; users and items are added to the pools, on or off the heap
+	 * 	  (see setOffHeap)
+	 * @param filename : name of the snapshot file
+	 * @param users : UserPool object to add users to
+	 * @param items : ItemPool object to add items to
+	 * @return true if the snapshot is read
+	 */
+	public boolean parseSnapshot(String filename, UserPool users, ItemPool items) {
+		return parseSnapshot(filename, users, items, new File[0]);
+	}
+	
+	/**
+	 * This method reads a binary snapshot written by writeSnapshot, if it is up to date with its sources
+	 * @param filename : name of the snapshot file
+	 * @param users : UserPool object to add users to
+	 * @param items : ItemPool object to add items to
+	 * @param sources : the files the snapshot was written from; none to skip the check
+	 * @return true if the snapshot is read; false if it cannot be read or is out of date
+	 */
+	public boolean parseSnapshot(String filename, UserPool users, ItemPool items, File... sources) {
+		if (isFileImported(filename)) {
+			System.out.println("*****" + filename + " is already imported.");
+			return true;
+		}
+		
+		RatingSnapshot snapshot;
+		try {
+			snapshot = RatingSnapshot.open(folderPath+filename);
+		} catch (Exception e) {
 			System.out.println("*****Cannot read file: " + filename);
 			System.out.println(e.toString());
-			return users;
+			return false;
 		}
-		finally {
-			in.close();
+		if (sources.length > 0 && !snapshot.isCurrent(sources)) {
+			System.out.println("*****" + filename + " is out of date with its source files.");
+			return false;
 		}
 		
-		importedFiles.add(filename);
+		items.loadSnapshot(snapshot, offHeap);
+		users.loadSnapshot(snapshot, offHeap);
+		
+		importedFiles.add(folderPath+filename);
 		System.out.println(filename + " is successfully stored: ");
-		System.out.println("In total: " + c1 + " ratings of " + c2 + " users parsed, " + c3 + " lines unable to read\r\n");
-		return users;
+		System.out.println("In total: " + snapshot.getRatingCount() + " ratings of " + snapshot.getUserCount()
+				+ " users and " + snapshot.getItemCount() + " items read\r\n");
+		return true;
 	}
 	
 	public void readUserData (String filename) {
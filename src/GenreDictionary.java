@@ -0,0 +1,119 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class dictionary-encodes genres: every distinct genre gets one bit of a long mask
+ * 	- bits are given out in the order genres are first seen and never change,
+ * 	  so a mask stays valid for the life of the JVM
+ * 	- at most MAX_GENRES genres (MovieLens has about 20); encoding one more is an error
+ * 	- decoding returns a shared, unmodifiable set per mask, so reading an item's genres
+ * 	  does not allocate
+ * Adding genres is synchronized; lookups never lock
+ * @author Yibang Chen
+ *
+ */
+public class GenreDictionary {
+	
+	public static final int MAX_GENRES = 64;
+	
+	private static final GenreDictionary instance = new GenreDictionary();
+	private final Map<String, Integer> bits = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[0];
+	private final Map<Long, Set<String>> decoded = new ConcurrentHashMap<Long, Set<String>>();
+	
+	private GenreDictionary() {
+	}
+	
+	/**
+	 * This method ensures singleton design
+	 * @return the GenreDictionary instance
+	 */
+	public static GenreDictionary getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * This method gets the bit of a genre, adding the genre if it is new
+	 * @param genre
+	 * @return the bit, 0 <= bit < MAX_GENRES
+	 */
+	public int add(String genre) {
+		Integer bit = bits.get(genre);
+		if (bit != null) return bit;
+		synchronized (this) {
+			bit = bits.get(genre);
+			if (bit != null) return bit;
+			if (names.length == MAX_GENRES) {
+				throw new IllegalStateException("More than " + MAX_GENRES + " genres, cannot add " + genre);
+			}
+			String[] grown = Arrays.copyOf(names, names.length + 1);
+			grown[names.length] = genre;
+			names = grown;
+			bits.put(genre, names.length - 1);
+			return names.length - 1;
+		}
+	}
+	
+	/**
+	 * This method encodes genres as a mask, adding the new ones; empty names are ignored
+	 * @param genres
+	 * @return
+	 */
+	public long encode(String[] genres) {
+		long mask = 0;
+		for (String genre : genres) {
+			if (!genre.isEmpty()) mask |= 1L << add(genre);
+		}
+		return mask;
+	}
+	
+	public long encode(Collection<String> genres) {
+		return encode(genres.toArray(new String[0]));
+	}
+	
+	/**
+	 * This method finds the mask of a genre without adding it
+	 * @param genre
+	 * @return the mask with the genre's bit; 0 if no item has the genre
+	 */
+	public long maskOf(String genre) {
+		Integer bit = bits.get(genre);
+		return bit == null ? 0 : 1L << bit;
+	}
+	
+	/**
+	 * This method decodes a mask
+	 * @param mask
+	 * @return the genres, shared and unmodifiable
+	 */
+	public Set<String> decode(long mask) {
+		Set<String> genres = decoded.get(mask);
+		if (genres != null) return genres;
+		
+		String[] all = names;
+		Set<String> result = new HashSet<String>();
+		for (int bit = 0; bit < all.length; bit++) {
+			if ((mask & (1L << bit)) != 0) result.add(all[bit]);
+		}
+		genres = Collections.unmodifiableSet(result);
+		decoded.put(mask, genres);
+		return genres;
+	}
+	
+	/**
+	 * This method returns the number of genres; their bits are 0 to size() - 1
+	 * @return
+	 */
+	public int size() {
+		return names.length;
+	}
+	
+	public String getName(int bit) {
+		return names[bit];
+	}
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a lock-free histogram of non-negative long values (latencies in nanoseconds, counts)
+ * 	- buckets are log-linear: 16 sub-buckets per power of two, so a reported percentile is
+ * 	  within about 3% of the true value, over the whole long range, in under 8 KB
+ * 	- recording is one atomic increment plus two LongAdder updates; no allocation, no lock
+ * @author Yibang Chen
+ *
+ */
+public class Histogram implements HistogramMBean {
+	
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+	
+	private final String name;
+	private final String unit;
+	private final double scale;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * The constructor
+	 * @param name
+	 * @param unit : display unit, e.g. "us"
+	 * @param scale : recorded values are divided by scale for display, e.g. 1000 for ns to us
+	 */
+	public Histogram(String name, String unit, double scale) {
+		this.name = name;
+		this.unit = unit;
+		this.scale = scale;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getUnit() {
+		return unit;
+	}
+	
+	/**
+	 * This method records a value; negative values are recorded as 0
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / scale / n;
+	}
+	
+	public double getMax() {
+		return max.get() / scale;
+	}
+	
+	public double getP50() {
+		return getPercentile(50);
+	}
+	
+	public double getP90() {
+		return getPercentile(90);
+	}
+	
+	public double getP99() {
+		return getPercentile(99);
+	}
+	
+	public double getP999() {
+		return getPercentile(99.9);
+	}
+	
+	/**
+	 * This method estimates a percentile from the buckets
+	 * @param percent : 0 to 100
+	 * @return the middle of the bucket holding the percentile, in the display unit; 0 if empty
+	 */
+	public double getPercentile(double percent) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+		if (total == 0) return 0;
+		
+		long target = Math.max(1, (long) Math.ceil(total * percent / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				long low = lowerBound(i);
+				long high = lowerBound(i + 1) - 1;
+				return Math.min(low + (high - low) / 2.0, max.get()) / scale;
+			}
+		}
+		return max.get() / scale;
+	}
+	
+	/**
+	 * This method clears all recorded values
+	 * 	- values recorded concurrently with a reset may be partly kept
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+	
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + sub;
+	}
+	
+	private static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) return index;
+		if (index >= BUCKETS) return Long.MAX_VALUE;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = index % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %s", name, getCount(), getMean(),
+				getP50(), getP90(), getP99(), getP999(), getMax(), unit);
+	}
+}
@@ -0,0 +1,24 @@
+/**
+ * This interface is the JMX view of a Histogram, in the histogram's display unit
+ * @author Yibang Chen
+ *
+ */
+public interface HistogramMBean {
+	public String getUnit();
+	
+	public long getCount();
+	
+	public double getMean();
+	
+	public double getP50();
+	
+	public double getP90();
+	
+	public double getP99();
+	
+	public double getP999();
+	
+	public double getMax();
+	
+	public void reset();
+}
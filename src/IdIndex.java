@@ -0,0 +1,178 @@
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * This class maps external ids (MovieLens userId / movieId) to dense internal indexes 0..size()-1,
+ * and stores one value per index
+ * 	- indexes are assigned in the order ids are added and never change, so data about users or
+ * 	  items can be kept in plain arrays indexed by int
+ * 	- a lookup is two array loads: ids in [0, DIRECT_LIMIT) go through a direct table, no hashing,
+ * 	  no boxing; other ids (negative or very large) fall back to a hash map
+ * 	- adding is synchronized; lookups never lock. The volatile size is written last,
+ * 	  so a reader that finds an index also sees its id and value
+ * @author Yibang Chen
+ *
+ * @param <T> : type of the values
+ */
+public class IdIndex<T> {
+	
+	private static final int DIRECT_LIMIT = 1 << 24;
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private volatile int[] table = new int[0];
+	private volatile int[] ids = new int[INITIAL_CAPACITY];
+	private volatile Object[] values = new Object[INITIAL_CAPACITY];
+	private final Map<Integer, Integer> sparse = new ConcurrentHashMap<Integer, Integer>();
+	private volatile int size = 0;
+	
+	/**
+	 * This method finds the index of an id
+	 * @param id
+	 * @return the index; -1 if the id is not added
+	 */
+	public int indexOf(int id) {
+		int index;
+		if (id >= 0 && id < DIRECT_LIMIT) {
+			int[] direct = table;
+			// the table stores index + 1, so 0 means absent
+			index = id < direct.length ? direct[id] - 1 : -1;
+		} else {
+			Integer found = sparse.get(id);
+			index = found == null ? -1 : found;
+		}
+		return index < size ? index : -1;
+	}
+	
+	/**
+	 * This method gets the value of an id
+	 * @param id
+	 * @return the value; null if the id is not added
+	 */
+	public T get(int id) {
+		int index = indexOf(id);
+		return index < 0 ? null : getByIndex(index);
+	}
+	
+	/**
+	 * This method gets the value at an index
+	 * @param index : 0 <= index < size()
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public T getByIndex(int index) {
+		return (T) values[index];
+	}
+	
+	/**
+	 * This method gets the id at an index
+	 * @param index : 0 <= index < size()
+	 * @return
+	 */
+	public int getId(int index) {
+		return ids[index];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * This method adds an id with its value, or replaces the value of an added id
+	 * @param id
+	 * @param value
+	 * @return the index of the id
+	 */
+	public synchronized int put(int id, T value) {
+		int index = indexOf(id);
+		if (index >= 0) {
+			// copied, so the new value is published by the volatile write like a new index
+			Object[] copy = values.clone();
+			copy[index] = value;
+			values = copy;
+			return index;
+		}
+		return append(id, value);
+	}
+	
+	/**
+	 * This method gets the value of an id, adding the id with a new value if it is absent
+	 * 	- atomic: concurrent callers with the same id get the same value
+	 * @param id
+	 * @param factory : creates the value from the id
+	 * @return
+	 */
+	public T computeIfAbsent(int id, IntFunction<T> factory) {
+		T value = get(id);
+		if (value != null) return value;
+		synchronized (this) {
+			value = get(id);
+			if (value == null) {
+				value = factory.apply(id);
+				append(id, value);
+			}
+			return value;
+		}
+	}
+	
+	private int append(int id, T value) {
+		int index = size;
+		if (index == ids.length) {
+			int newCapacity = index + (index >> 1);
+			ids = Arrays.copyOf(ids, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+		}
+		ids[index] = id;
+		values[index] = value;
+		if (id >= 0 && id < DIRECT_LIMIT) {
+			if (id >= table.length) {
+				table = Arrays.copyOf(table, (int) Math.min(DIRECT_LIMIT, Math.max(id + 1L, table.length * 2L)));
+			}
+			table[id] = index + 1;
+		} else {
+			sparse.put(id, index);
+		}
+		size = index + 1;
+		return index;
+	}
+	
+	/**
+	 * This method returns a read-only view of the ids, in index order
+	 * @return
+	 */
+	public Set<Integer> asIdSet() {
+		return new AbstractSet<Integer>() {
+			@Override
+			public boolean contains(Object o) {
+				return (o instanceof Integer) && indexOf((Integer) o) >= 0;
+			}
+			
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<Integer>() {
+					private final int end = size;
+					private int next = 0;
+					
+					public boolean hasNext() {
+						return next < end;
+					}
+					
+					public Integer next() {
+						if (next >= end) throw new NoSuchElementException();
+						return ids[next++];
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
@@ -19,11 +19,27 @@ public interface Item {
 
 	public void setCategories(Set<String> categories);
 	
-	public void updateAverage(double rating, boolean isNew);
-
 	public double getBaseline();
 
 	public Set<Integer> getRatedUsers();
 
-	public void addUser(int userId);
+	public RaterList getRaters();
+
+	/**
+	 * This method adds or replaces a user's rating and keeps the item's average up to date
+	 * @param userId
+	 * @param rating
+	 * @return the previous rating of the user; NaN if the user had not rated the item
+	 */
+	public float addRating(int userId, float rating);
+	
+	/**
+	 * This method removes all ratings of the item and resets its average
+	 */
+	public void clearRatings();
+	
+	/**
+	 * This method releases the spare capacity of the posting list once loading is done
+	 */
+	public void trimToSize();
 }
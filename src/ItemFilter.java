@@ -0,0 +1,154 @@
+/**
+ * This class is a filter on the items a recommendation may return: genres and release years
+ * 	- immutable; every with...() method returns a new filter, starting from ItemFilter.ALL
+ * 	- genres are matched by mask (see GenreDictionary): an item passes if it has at least one
+ * 	  of the "any" genres and every one of the "all" genres
+ * 	- genres are looked up when the filter is made; a genre that no item has then matches nothing
+ * 	- years are an inclusive range; items without a year (0) only pass an unbounded range
+ * Filters are answered by ItemFilterIndex, see ItemPool.getFilterIndex
+ * @author Yibang Chen
+ *
+ */
+public final class ItemFilter {
+	
+	/**
+	 * The filter that every item passes
+	 */
+	public static final ItemFilter ALL = new ItemFilter(false, 0, 0, false, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	
+	private final boolean hasAnyGenres;
+	private final long anyGenres;
+	private final long allGenres;
+	private final boolean unknownGenre;
+	private final int fromYear;
+	private final int toYear;
+	
+	private ItemFilter(boolean hasAnyGenres, long anyGenres, long allGenres, boolean unknownGenre, int fromYear, int toYear) {
+		this.hasAnyGenres = hasAnyGenres;
+		this.anyGenres = anyGenres;
+		this.allGenres = allGenres;
+		this.unknownGenre = unknownGenre;
+		this.fromYear = fromYear;
+		this.toYear = toYear;
+	}
+	
+	/**
+	 * This method returns a filter that also requires one of the genres
+	 * 	- calling it again adds to the same "any" list
+	 * @param genres
+	 * @return
+	 */
+	public ItemFilter withAnyGenre(String... genres) {
+		long mask = anyGenres;
+		for (String genre : genres) mask |= GenreDictionary.getInstance().maskOf(genre);
+		return new ItemFilter(true, mask, allGenres, unknownGenre, fromYear, toYear);
+	}
+	
+	/**
+	 * This method returns a filter that also requires all of the genres
+	 * @param genres
+	 * @return
+	 */
+	public ItemFilter withAllGenres(String... genres) {
+		long mask = allGenres;
+		boolean unknown = unknownGenre;
+		for (String genre : genres) {
+			long bit = GenreDictionary.getInstance().maskOf(genre);
+			if (bit == 0) unknown = true;
+			mask |= bit;
+		}
+		return new ItemFilter(hasAnyGenres, anyGenres, mask, unknown, fromYear, toYear);
+	}
+	
+	/**
+	 * This method returns a filter that also requires a release year in [fromYear, toYear]
+	 * @param fromYear
+	 * @param toYear
+	 * @return
+	 */
+	public ItemFilter withYears(int fromYear, int toYear) {
+		return new ItemFilter(hasAnyGenres, anyGenres, allGenres, unknownGenre,
+				Math.max(this.fromYear, fromYear), Math.min(this.toYear, toYear));
+	}
+	
+	/**
+	 * This method checks an item
+	 * @param genreMask : the item's genres, see GenreDictionary
+	 * @param year : the item's release year
+	 * @return
+	 */
+	public boolean matches(long genreMask, int year) {
+		if (hasAnyGenres && (genreMask & anyGenres) == 0) return false;
+		if ((genreMask & allGenres) != allGenres || unknownGenre) return false;
+		return year >= fromYear && year <= toYear;
+	}
+	
+	/**
+	 * This method tells if every item passes, so that no filtering is needed
+	 * @return
+	 */
+	public boolean isAll() {
+		return !hasAnyGenres && allGenres == 0 && !unknownGenre && !hasYears();
+	}
+	
+	/**
+	 * This method tells if no item can pass, whatever the items are
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return (hasAnyGenres && anyGenres == 0) || unknownGenre || fromYear > toYear;
+	}
+	
+	public boolean hasAnyGenres() {
+		return hasAnyGenres;
+	}
+	
+	public long getAnyGenres() {
+		return anyGenres;
+	}
+	
+	public long getAllGenres() {
+		return allGenres;
+	}
+	
+	public boolean hasYears() {
+		return fromYear != Integer.MIN_VALUE || toYear != Integer.MAX_VALUE;
+	}
+	
+	public int getFromYear() {
+		return fromYear;
+	}
+	
+	public int getToYear() {
+		return toYear;
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof ItemFilter)) return false;
+		ItemFilter filter = (ItemFilter) other;
+		return hasAnyGenres == filter.hasAnyGenres && anyGenres == filter.anyGenres && allGenres == filter.allGenres
+				&& unknownGenre == filter.unknownGenre && fromYear == filter.fromYear && toYear == filter.toYear;
+	}
+	
+	@Override
+	public int hashCode() {
+		int h = Boolean.hashCode(hasAnyGenres);
+		h = 31 * h + Long.hashCode(anyGenres);
+		h = 31 * h + Long.hashCode(allGenres);
+		h = 31 * h + Boolean.hashCode(unknownGenre);
+		h = 31 * h + fromYear;
+		return 31 * h + toYear;
+	}
+	
+	@Override
+	public String toString() {
+		GenreDictionary genres = GenreDictionary.getInstance();
+		StringBuilder sb = new StringBuilder("ItemFilter[");
+		if (hasAnyGenres) sb.append("any=").append(genres.decode(anyGenres)).append(' ');
+		if (allGenres != 0 || unknownGenre) sb.append("all=").append(genres.decode(allGenres))
+				.append(unknownGenre ? "+unknown " : " ");
+		if (hasYears()) sb.append("years=").append(fromYear).append("..").append(toYear).append(' ');
+		return sb.toString().trim() + "]";
+	}
+}
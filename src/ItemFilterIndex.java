@@ -0,0 +1,170 @@
+import java.util.Arrays;
+
+/**
+ * This class indexes items by genre and by release-year bucket, to enumerate the items of an ItemFilter
+ * 	- per item, by internal index of ItemPool: the genre mask and the year, in two plain arrays
+ * 	- per genre and per year bucket (BUCKET_YEARS years): the internal indexes of its items, ascending
+ * 	- a filter is answered from its most selective posting list (the rarest required genre,
+ * 	  the union of the "any" genres, or the buckets of the year range) and every entry is
+ * 	  checked against the arrays, so the cost follows the filtered set, not the catalog
+ * The index covers the items present when it was built; ItemPool drops it when items are added
+ * @author Yibang Chen
+ *
+ */
+public class ItemFilterIndex {
+	
+	public static final int BUCKET_YEARS = 10;
+	
+	private final int itemCount;
+	private final long[] masks;
+	private final int[] years;
+	private final int[][] byGenre;
+	private final int firstBucket;
+	private final int[][] byBucket;
+	
+	private ItemFilterIndex(int itemCount, long[] masks, int[] years, int[][] byGenre, int firstBucket, int[][] byBucket) {
+		this.itemCount = itemCount;
+		this.masks = masks;
+		this.years = years;
+		this.byGenre = byGenre;
+		this.firstBucket = firstBucket;
+		this.byBucket = byBucket;
+	}
+	
+	/**
+	 * This method builds the index of all items of a pool
+	 * 	- two passes: count the items per genre and per bucket, then fill the lists in index order
+	 * @param items
+	 * @return
+	 */
+	public static ItemFilterIndex build(ItemPool items) {
+		int n = items.getItemCount();
+		long[] masks = new long[n];
+		int[] years = new int[n];
+		int minYear = Integer.MAX_VALUE, maxYear = Integer.MIN_VALUE;
+		for (int j = 0; j < n; j++) {
+			Item item = items.getItemByIndex(j);
+			if (item instanceof MovieItem) {
+				masks[j] = ((MovieItem) item).getGenreMask();
+				years[j] = ((MovieItem) item).getYear();
+			}
+			minYear = Math.min(minYear, years[j]);
+			maxYear = Math.max(maxYear, years[j]);
+		}
+		
+		int firstBucket = n == 0 ? 0 : bucketOf(minYear);
+		int bucketCount = n == 0 ? 0 : bucketOf(maxYear) - firstBucket + 1;
+		int[] genreSizes = new int[GenreDictionary.MAX_GENRES];
+		int[] bucketSizes = new int[bucketCount];
+		for (int j = 0; j < n; j++) {
+			for (long mask = masks[j]; mask != 0; mask &= mask - 1) genreSizes[Long.numberOfTrailingZeros(mask)]++;
+			bucketSizes[bucketOf(years[j]) - firstBucket]++;
+		}
+		
+		int[][] byGenre = new int[GenreDictionary.MAX_GENRES][];
+		for (int g = 0; g < byGenre.length; g++) byGenre[g] = new int[genreSizes[g]];
+		int[][] byBucket = new int[bucketCount][];
+		for (int b = 0; b < bucketCount; b++) byBucket[b] = new int[bucketSizes[b]];
+		Arrays.fill(genreSizes, 0);
+		Arrays.fill(bucketSizes, 0);
+		for (int j = 0; j < n; j++) {
+			for (long mask = masks[j]; mask != 0; mask &= mask - 1) {
+				int g = Long.numberOfTrailingZeros(mask);
+				byGenre[g][genreSizes[g]++] = j;
+			}
+			int b = bucketOf(years[j]) - firstBucket;
+			byBucket[b][bucketSizes[b]++] = j;
+		}
+		return new ItemFilterIndex(n, masks, years, byGenre, firstBucket, byBucket);
+	}
+	
+	private static int bucketOf(int year) {
+		return Math.floorDiv(year, BUCKET_YEARS);
+	}
+	
+	/**
+	 * This method returns the number of items indexed; their internal indexes are 0 to getItemCount() - 1
+	 * @return
+	 */
+	public int getItemCount() {
+		return itemCount;
+	}
+	
+	/**
+	 * This method checks an item against a filter
+	 * @param index : internal index of the item
+	 * @param filter
+	 * @return false if the item is not indexed
+	 */
+	public boolean matches(int index, ItemFilter filter) {
+		return index >= 0 && index < itemCount && filter.matches(masks[index], years[index]);
+	}
+	
+	/**
+	 * This method enumerates the items that pass a filter
+	 * @param filter
+	 * @return internal indexes of the items, ascending
+	 */
+	public int[] select(ItemFilter filter) {
+		if (filter.isEmpty()) return new int[0];
+		
+		// the cheapest source of candidates: the whole catalog, the rarest required genre,
+		// the lists of the "any" genres, or the buckets of the year range
+		int[] single = null;
+		int cost = itemCount;
+		for (long mask = filter.getAllGenres(); mask != 0; mask &= mask - 1) {
+			int[] list = byGenre[Long.numberOfTrailingZeros(mask)];
+			if (list.length < cost) {
+				single = list;
+				cost = list.length;
+			}
+		}
+		int anyCost = 0;
+		for (long mask = filter.getAnyGenres(); mask != 0; mask &= mask - 1) {
+			anyCost += byGenre[Long.numberOfTrailingZeros(mask)].length;
+		}
+		int fromBucket = 0, toBucket = -1, yearCost = 0;
+		if (filter.hasYears() && byBucket.length > 0) {
+			fromBucket = Math.max(0, bucketOf(filter.getFromYear()) - firstBucket);
+			toBucket = Math.min(byBucket.length - 1, bucketOf(filter.getToYear()) - firstBucket);
+			for (int b = fromBucket; b <= toBucket; b++) yearCost += byBucket[b].length;
+		}
+		
+		int[] result;
+		int count = 0;
+		if (filter.hasAnyGenres() && anyCost < cost && (!filter.hasYears() || anyCost <= yearCost)) {
+			// an item is in the list of each of its genres; it is taken from the list of its lowest "any" genre
+			result = new int[anyCost];
+			long any = filter.getAnyGenres();
+			for (long mask = any; mask != 0; mask &= mask - 1) {
+				int g = Long.numberOfTrailingZeros(mask);
+				for (int j : byGenre[g]) {
+					if (Long.numberOfTrailingZeros(masks[j] & any) == g && filter.matches(masks[j], years[j])) {
+						result[count++] = j;
+					}
+				}
+			}
+			Arrays.sort(result, 0, count);
+		} else if (filter.hasYears() && yearCost < cost) {
+			// buckets are disjoint and in year order, but indexes are not
+			result = new int[yearCost];
+			for (int b = fromBucket; b <= toBucket; b++) {
+				for (int j : byBucket[b]) {
+					if (filter.matches(masks[j], years[j])) result[count++] = j;
+				}
+			}
+			Arrays.sort(result, 0, count);
+		} else if (single != null) {
+			result = new int[single.length];
+			for (int j : single) {
+				if (filter.matches(masks[j], years[j])) result[count++] = j;
+			}
+		} else {
+			result = new int[itemCount];
+			for (int j = 0; j < itemCount; j++) {
+				if (filter.matches(masks[j], years[j])) result[count++] = j;
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+}
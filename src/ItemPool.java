@@ -1,23 +1,28 @@
 import java.util.Set;
-import java.util.Map;
-import java.util.HashMap;
 
 /**
  * This class is a collection of all items from the data
  * It includes methods that ONLY involves items
+ * Items are kept by dense internal index (see IdIndex): the movieId to index mapping stays at
+ * this boundary, and looking an item up is an array load, not a hash probe.
+ * Reads never lock: every item publishes its posting list through a volatile field;
+ * writers of different items run in parallel
  * @author Yibang Chen
  *
  */
 public class ItemPool {
 	
-	private static ItemPool instance = null;
-	private Map<Integer, Item> items;
+	private static final ItemPool instance = new ItemPool();
+	private volatile IdIndex<Item> items;
 	
-	private double overallAverage = 0;
-	private int ratingCount = 0;
+	private final Object overallLock = new Object();
+	private volatile double overallAverage = 0;
+	private volatile int ratingCount = 0;
+	private volatile ItemSimilarityMatrix similarities = null;
+	private volatile ItemFilterIndex filterIndex = null;
 	
 	private ItemPool() {
-		items = new HashMap<Integer, Item>();
+		items = new IdIndex<Item>();
 	}
 	
 	/**
@@ -25,12 +30,40 @@ public class ItemPool {
 	 * @return the ItemPool instance
 	 */
 	public static ItemPool getInstance() {
-		if (instance == null) instance = new ItemPool();
 		return instance;
 	}
 	
+	/**
+	 * This method removes all items and resets the overall average
+	 */
+	public void clear() {
+		items = new IdIndex<Item>();
+		synchronized (overallLock) {
+			overallAverage = 0;
+			ratingCount = 0;
+		}
+		similarities = null;
+		filterIndex = null;
+	}
+	
+	/**
+	 * This method removes all ratings but keeps the items, e.g. to rebuild from a training set
+	 */
+	public void clearRatings() {
+		IdIndex<Item> all = items;
+		for (int i = 0; i < all.size(); i++) {
+			all.getByIndex(i).clearRatings();
+		}
+		synchronized (overallLock) {
+			overallAverage = 0;
+			ratingCount = 0;
+		}
+		similarities = null;
+	}
+	
 	public void addItem(Item newItem) {
 		items.put(newItem.getItemId(), newItem);
+		filterIndex = null;
 	}
 	
 	public Item getItem(int itemId) {
@@ -42,27 +75,183 @@ public class ItemPool {
 	}
 	
 	public Set<Integer> getItemIds(){
-		return items.keySet();
+		return items.asIdSet();
+	}
+	
+	/**
+	 * This method returns the number of items; their internal indexes are 0 to getItemCount() - 1
+	 * @return
+	 */
+	public int getItemCount() {
+		return items.size();
+	}
+	
+	/**
+	 * This method finds the internal index of an item
+	 * 	- indexes are dense and never change, so per-item data can be kept in arrays
+	 * @param itemId
+	 * @return the index; -1 if the item is not imported
+	 */
+	public int indexOf(int itemId) {
+		return items.indexOf(itemId);
 	}
 	
 	/**
-	 * This method updates the overall average of all imported ratings.
-	 * 	- It also updates the average score received for an items
+	 * This method gets the item id at an internal index
+	 * @param index : 0 <= index < getItemCount()
+	 * @return
+	 */
+	public int getItemId(int index) {
+		return items.getId(index);
+	}
+	
+	/**
+	 * This method gets an item by internal index
+	 * @param index : 0 <= index < getItemCount()
+	 * @return
+	 */
+	public Item getItemByIndex(int index) {
+		return items.getByIndex(index);
+	}
+	
+	/**
+	 * This method gets the posting list of users (and their ratings) for an item
+	 * @param itemId
+	 * @return the RaterList; null if the item is not imported
+	 */
+	public RaterList getRaters(int itemId) {
+		Item item = items.get(itemId);
+		if (item == null) return null;
+		return item.getRaters();
+	}
+	
+	/**
+	 * This method builds the top-K item-item similarity matrix (adjusted cosine)
+	 * 	- this is an offline step; it uses all available cores
+	 * @param k : maximum number of similar items kept per item
+	 */
+	public void buildSimilarityMatrix(int k) {
+		similarities = ItemSimilarityMatrix.build(UserPool.getInstance(), this, k);
+	}
+	
+	/**
+	 * This method installs a precomputed (e.g. loaded from disk) item similarity matrix
+	 * @param matrix
+	 */
+	public void setSimilarityMatrix(ItemSimilarityMatrix matrix) {
+		similarities = matrix;
+	}
+	
+	/**
+	 * This method gets the item-item similarity matrix
+	 * @return the matrix; null if not built or loaded
+	 */
+	public ItemSimilarityMatrix getSimilarityMatrix() {
+		return similarities;
+	}
+	
+	/**
+	 * This method gets the genre and release-year index of the items, for filtered recommendations
+	 * 	- built on first use and kept until items are added or the pool is cleared
+	 * @return
+	 */
+	public ItemFilterIndex getFilterIndex() {
+		ItemFilterIndex index = filterIndex;
+		if (index != null) return index;
+		synchronized (this) {
+			if (filterIndex == null) filterIndex = ItemFilterIndex.build(this);
+			return filterIndex;
+		}
+	}
+	
+	/**
+	 * This method releases spare capacity in every item's posting list
+	 * 	- called once after all rating files are parsed
+	 */
+	public void trimToSize() {
+		IdIndex<Item> all = items;
+		for (int i = 0; i < all.size(); i++) {
+			all.getByIndex(i).trimToSize();
+		}
+	}
+	
+	/**
+	 * This method adds or replaces a rating of an item
+	 * 	- it updates the average score received for the item
+	 * 	- it updates the overall average of all imported ratings (running mean)
+	 * 	- ratings of different items can be added in parallel; only the overall average is shared
+	 * @param itemId : the item id of the rating; must be imported
+	 * @param userId : the user who rates
 	 * @param rating : the rating score
-	 * @param itemId : the item id of the rating
-	 * @param isNew : true if the item is a new item; false if update
+	 * @return the previous rating of the user; NaN if the rating is new
 	 */
-	public void updateAverage(double rating, int itemId, boolean isNew) {
-		if (isNew) ratingCount++;
-		overallAverage += (rating - overallAverage)/ ratingCount;
-		
-		items.get(itemId).updateAverage(rating, isNew);
+	public float addRating(int itemId, int userId, float rating) {
+		float previous = items.get(itemId).addRating(userId, rating);
+		synchronized (overallLock) {
+			if (Float.isNaN(previous)) {
+				ratingCount++;
+				overallAverage += (rating - overallAverage)/ ratingCount;
+			} else {
+				overallAverage += (rating - previous)/ ratingCount;
+			}
+		}
+		return previous;
 	}
 	
 	public double getAverage() {
 		return this.overallAverage;
 	}
 	
+	/**
+	 * This method returns the number of ratings the overall average is computed from
+	 * @return
+	 */
+	public int getRatingCount() {
+		return this.ratingCount;
+	}
+	
+	/**
+	 * This method adds all items of a snapshot, with their posting lists and averages
+	 * @param snapshot
+	 */
+	public void loadSnapshot(RatingSnapshot snapshot) {
+		loadSnapshot(snapshot, false);
+	}
+	
+	/**
+	 * This method adds all items of a snapshot, with their posting lists and averages
+	 * @param snapshot
+	 * @param offHeap : true to read the posting lists straight from the mapped snapshot
+	 * 	instead of copying them to the heap
+	 */
+	public void loadSnapshot(RatingSnapshot snapshot, boolean offHeap) {
+		for (int i = 0; i < snapshot.getItemCount(); i++) {
+			MovieItem item = new MovieItem(snapshot.getItemId(i), snapshot.getItemTitle(i),
+					snapshot.getItemYear(i), snapshot.getItemCategories(i));
+			
+			int start = snapshot.getItemStart(i);
+			int size = snapshot.getItemEnd(i) - start;
+			if (offHeap) {
+				item.restoreRaters(new RaterList(snapshot.getRaterBuffer(), snapshot.getRaterValueBuffer(),
+						start, size, snapshot.getItemAverage(i)));
+			} else {
+				int[] userIds = new int[size];
+				float[] ratings = new float[size];
+				snapshot.copyRaters(start, userIds);
+				snapshot.copyRaterValues(start, ratings);
+				item.restoreRaters(new RaterList(userIds, ratings, snapshot.getItemAverage(i)));
+			}
+			
+			items.put(item.getItemId(), item);
+		}
+		filterIndex = null;
+		
+		synchronized (overallLock) {
+			overallAverage = snapshot.getOverallAverage();
+			ratingCount = snapshot.getOverallCount();
+		}
+	}
+	
 	/**
 	 * This method gets the baseline predictor for an item
 	 * @param itemId
@@ -78,6 +267,6 @@ public class ItemPool {
 	 * @return
 	 */
 	public boolean isValidItem(int itemId) {
-		return items.containsKey(itemId);
+		return items.indexOf(itemId) >= 0;
 	}
 }
@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * This class stores the precomputed top-K most similar items of every item
+ * 	- similarity is adjusted cosine: ratings are centered on each rater's average,
+ * 	  and sums run over the users who rated both items
+ * 	- items are kept in a sorted int array, neighbors in one CSR block (offsets, ids, similarities)
+ * 	- neighbors of an item are ordered by similarity (descending), ties by item id (ascending)
+ * The matrix is built offline, in parallel, and can be saved to and loaded from disk
+ * @author Yibang Chen
+ *
+ */
+public class ItemSimilarityMatrix {
+	
+	private static final int MAGIC = 0x49534d58; // "ISMX"
+	private static final int VERSION = 1;
+	private static final int ITEMS_PER_TASK = 32;
+	
+	private final int k;
+	private final int[] itemIds;
+	private final int[] offsets;
+	private final int[] neighborIds;
+	private final float[] similarities;
+	
+	private ItemSimilarityMatrix(int k, int[] itemIds, int[] offsets, int[] neighborIds, float[] similarities) {
+		this.k = k;
+		this.itemIds = itemIds;
+		this.offsets = offsets;
+		this.neighborIds = neighborIds;
+		this.similarities = similarities;
+	}
+	
+	/**
+	 * This method computes the top-K similar items of every item, using all available cores
+	 * 	- candidates of an item are the other items rated by its raters
+	 * 	- only positive similarities are stored
+	 * @param users
+	 * @param items
+	 * @param k : maximum number of neighbors kept per item
+	 * @return the matrix
+	 */
+	public static ItemSimilarityMatrix build(final UserPool users, final ItemPool items, final int k) {
+		final int[] ids = new int[items.getItemIds().size()];
+		int n = 0;
+		for (int id : items.getItemIds()) ids[n++] = id;
+		Arrays.sort(ids);
+		
+		final int[][] rowIds = new int[n][];
+		final float[][] rowSims = new float[n][];
+		final int count = n;
+		// the accumulators are indexed by internal item index, so a co-rated item's slot is an array load
+		final int indexCount = items.getItemCount();
+		int tasks = (n + ITEMS_PER_TASK - 1) / ITEMS_PER_TASK;
+		IntStream.range(0, tasks).parallel().forEach(task -> {
+			double[] sum12 = new double[indexCount];
+			double[] sum1 = new double[indexCount];
+			double[] sum2 = new double[indexCount];
+			int[] touched = new int[indexCount];
+			boolean[] seen = new boolean[indexCount];
+			TopK top = new TopK(k);
+			
+			int end = Math.min(count, (task + 1) * ITEMS_PER_TASK);
+			for (int i = task * ITEMS_PER_TASK; i < end; i++) {
+				int touchedCount = 0;
+				int self = items.indexOf(ids[i]);
+				RaterList raters = items.getRaters(ids[i]);
+				for (int p = 0; p < raters.size(); p++) {
+					User.Profile user = users.getUser(raters.getUserId(p)).getProfile();
+					double mean = user.getAverageRating();
+					double diff1 = raters.getRating(p) - mean;
+					
+					for (int r = 0; r < user.size(); r++) {
+						int j = items.indexOf(user.getItemIdAt(r));
+						if (j < 0 || j >= indexCount || j == self) continue;
+						if (!seen[j]) {
+							seen[j] = true;
+							touched[touchedCount++] = j;
+						}
+						double diff2 = user.getRatingAt(r) - mean;
+						sum12[j] += diff1 * diff2;
+						sum1[j] += diff1 * diff1;
+						sum2[j] += diff2 * diff2;
+					}
+				}
+				
+				for (int t = 0; t < touchedCount; t++) {
+					int j = touched[t];
+					if (sum1[j] * sum2[j] != 0) {
+						double sim = sum12[j] / (Math.sqrt(sum1[j]) * Math.sqrt(sum2[j]));
+						if (sim > 0) top.offer(items.getItemId(j), sim);
+					}
+					sum12[j] = 0;
+					sum1[j] = 0;
+					sum2[j] = 0;
+					seen[j] = false;
+				}
+				
+				int[] topIds = new int[top.size()];
+				double[] topSims = new double[top.size()];
+				top.drainDescending(topIds, topSims);
+				rowIds[i] = topIds;
+				rowSims[i] = new float[topSims.length];
+				for (int t = 0; t < topSims.length; t++) rowSims[i][t] = (float) topSims[t];
+			}
+		});
+		
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++) offsets[i + 1] = offsets[i] + rowIds[i].length;
+		int[] neighborIds = new int[offsets[n]];
+		float[] similarities = new float[offsets[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(rowIds[i], 0, neighborIds, offsets[i], rowIds[i].length);
+			System.arraycopy(rowSims[i], 0, similarities, offsets[i], rowSims[i].length);
+		}
+		return new ItemSimilarityMatrix(k, ids, offsets, neighborIds, similarities);
+	}
+	
+	/**
+	 * This method returns the K the matrix was built with
+	 * @return
+	 */
+	public int getK() {
+		return k;
+	}
+	
+	public int getItemCount() {
+		return itemIds.length;
+	}
+	
+	/**
+	 * This method returns the position of an item in the matrix
+	 * @param itemId
+	 * @return the position; negative if the item is not in the matrix
+	 */
+	public int indexOf(int itemId) {
+		return Arrays.binarySearch(itemIds, itemId);
+	}
+	
+	/**
+	 * This method returns the item id at a position of the matrix
+	 * @param index : 0 <= index < getItemCount()
+	 * @return
+	 */
+	public int getItemId(int index) {
+		return itemIds[index];
+	}
+	
+	/**
+	 * This method returns the start (inclusive) of an item's neighbors in the CSR block
+	 * @param index : position returned by indexOf
+	 * @return
+	 */
+	public int getStart(int index) {
+		return offsets[index];
+	}
+	
+	/**
+	 * This method returns the end (exclusive) of an item's neighbors in the CSR block
+	 * @param index : position returned by indexOf
+	 * @return
+	 */
+	public int getEnd(int index) {
+		return offsets[index + 1];
+	}
+	
+	public int getNeighborId(int position) {
+		return neighborIds[position];
+	}
+	
+	public float getSimilarity(int position) {
+		return similarities[position];
+	}
+	
+	/**
+	 * This method saves the matrix to a file
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(k);
+			out.writeInt(itemIds.length);
+			out.writeInt(neighborIds.length);
+			for (int id : itemIds) out.writeInt(id);
+			for (int offset : offsets) out.writeInt(offset);
+			for (int id : neighborIds) out.writeInt(id);
+			for (float sim : similarities) out.writeFloat(sim);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * This method loads a matrix saved by save()
+	 * @param path
+	 * @return the matrix
+	 * @throws IOException if the file is not an item similarity matrix or has another version
+	 */
+	public static ItemSimilarityMatrix load(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not an item similarity file");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported item similarity version: " + version);
+			
+			int k = in.readInt();
+			int items = in.readInt();
+			int edges = in.readInt();
+			
+			int[] itemIds = new int[items];
+			int[] offsets = new int[items + 1];
+			int[] neighborIds = new int[edges];
+			float[] similarities = new float[edges];
+			for (int i = 0; i < items; i++) itemIds[i] = in.readInt();
+			for (int i = 0; i <= items; i++) offsets[i] = in.readInt();
+			for (int i = 0; i < edges; i++) neighborIds[i] = in.readInt();
+			for (int i = 0; i < edges; i++) similarities[i] = in.readFloat();
+			
+			return new ItemSimilarityMatrix(k, itemIds, offsets, neighborIds, similarities);
+		} finally {
+			in.close();
+		}
+	}
+}
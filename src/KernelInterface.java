@@ -0,0 +1,151 @@
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This is a correctness and speed check of the kernel layer (Kernels)
+ * 	- random inputs of every length up to maxLength, at random offsets, go through the kernel
+ * 	  in use and the scalar kernel; the results must agree within a relative float tolerance
+ * 	  (SGD steps exactly, since they do the same operations lane by lane)
+ * 	- then both kernels are timed on inputs of the benchmark length
+ * The exit code is 1 if any check failed. Run with --add-modules jdk.incubator.vector to check
+ * the SIMD kernel; without it both sides are the scalar kernel and the check is trivial
+ *
+ * Arguments are key=value pairs, all optional:
+ * 	maxLength=300 (checked lengths) length=64 (timed length) time=1000 (ms per timing) seed=42
+ * @author Yibang Chen
+ *
+ */
+public class KernelInterface {
+	
+	private static final double TOLERANCE = 1e-5;
+	private static final int MAX_REPORTED = 10;
+	private static final int INPUTS = 64;
+	
+	private static int failureCount = 0;
+	private static volatile double sink;
+	
+	public static void main(String args[]) {
+		Map<String, String> options = BenchmarkInterface.parseOptions(args);
+		int maxLength = Integer.parseInt(BenchmarkInterface.option(options, "maxLength", "300"));
+		int length = Integer.parseInt(BenchmarkInterface.option(options, "length", "64"));
+		long time = Long.parseLong(BenchmarkInterface.option(options, "time", "1000"));
+		long seed = Long.parseLong(BenchmarkInterface.option(options, "seed", "42"));
+		
+		Kernels.Kernel kernel = Kernels.get();
+		Kernels.Kernel scalar = Kernels.scalar();
+		System.out.println("Kernel in use: " + kernel.getName());
+		
+		check(kernel, scalar, maxLength, new Random(seed));
+		if (failureCount > 0) {
+			System.out.println(failureCount + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed: lengths 0 to " + maxLength);
+		
+		System.out.println(String.format("%-14s %-8s %14s", "Kernel", "Impl", "ns/op"));
+		Random random = new Random(seed);
+		for (Kernels.Kernel timed : new Kernels.Kernel[] {scalar, kernel}) {
+			time(timed, length, time, random);
+			if (timed == kernel && kernel == scalar) break;
+		}
+	}
+	
+	/**
+	 * This method compares every kernel of two implementations on random inputs
+	 */
+	private static void check(Kernels.Kernel kernel, Kernels.Kernel scalar, int maxLength, Random random) {
+		for (int length = 0; length <= maxLength; length++) {
+			int aFrom = random.nextInt(8), bFrom = random.nextInt(8);
+			float[] a = randomFloats(aFrom + length, random);
+			float[] b = randomFloats(bFrom + length, random);
+			
+			float dot = kernel.dot(a, aFrom, b, bFrom, length);
+			float expectedDot = scalar.dot(a, aFrom, b, bFrom, length);
+			compare("dot", length, dot, expectedDot, bound(a, aFrom, b, bFrom, length));
+			
+			float[] p = a.clone(), q = b.clone();
+			float[] expectedP = a.clone(), expectedQ = b.clone();
+			kernel.sgdStep(p, aFrom, q, bFrom, length, 0.01f, 0.7f, 0.02f);
+			scalar.sgdStep(expectedP, aFrom, expectedQ, bFrom, length, 0.01f, 0.7f, 0.02f);
+			for (int k = 0; k < p.length; k++) {
+				if (p[k] != expectedP[k]) fail("sgdStep", length, p[k], expectedP[k]);
+			}
+			for (int k = 0; k < q.length; k++) {
+				if (q[k] != expectedQ[k]) fail("sgdStep", length, q[k], expectedQ[k]);
+			}
+		}
+	}
+	
+	/**
+	 * This method checks two results within TOLERANCE of scale, the largest magnitude the sum can reach
+	 */
+	private static void compare(String kernel, int length, double actual, double expected, double scale) {
+		if (Double.isNaN(actual) || Math.abs(actual - expected) > TOLERANCE * Math.max(1, scale)) {
+			fail(kernel, length, actual, expected);
+		}
+	}
+	
+	private static void fail(String kernel, int length, double actual, double expected) {
+		if (++failureCount <= MAX_REPORTED) {
+			System.out.println("FAILED: " + kernel + " of length " + length + " is " + actual + ", scalar gives " + expected);
+		}
+	}
+	
+	/**
+	 * This method returns the sum of |a_k * b_k|, the largest magnitude a dot product can reach
+	 */
+	private static double bound(float[] a, int aFrom, float[] b, int bFrom, int length) {
+		double bound = 0;
+		for (int k = 0; k < length; k++) bound += Math.abs((double) a[aFrom + k] * b[bFrom + k]);
+		return bound;
+	}
+	
+	private static float[] randomFloats(int length, Random random) {
+		float[] values = new float[length];
+		for (int k = 0; k < length; k++) values[k] = (float) random.nextGaussian();
+		return values;
+	}
+	
+	private static float[] halfStars(int length, Random random) {
+		float[] values = new float[length];
+		for (int k = 0; k < length; k++) values[k] = (1 + random.nextInt(10)) / 2f;
+		return values;
+	}
+	
+	/**
+	 * This method times every kernel of an implementation
+	 */
+	private static void time(final Kernels.Kernel kernel, final int length, long time, Random random) {
+		final float[][] a = new float[INPUTS][], b = new float[INPUTS][];
+		for (int i = 0; i < INPUTS; i++) {
+			a[i] = halfStars(length, random);
+			b[i] = halfStars(length, random);
+		}
+		report("dot", kernel, time, i -> kernel.dot(a[i & (INPUTS - 1)], 0, b[i & (INPUTS - 1)], 0, length));
+		final float[] p = randomFloats(length, random), q = randomFloats(length, random);
+		report("sgdStep", kernel, time, i -> {
+			kernel.sgdStep(p, 0, q, 0, length, 0.001f, 0.1f, 0.02f);
+			return p[0];
+		});
+	}
+	
+	private static void report(String name, Kernels.Kernel kernel, long time, BenchmarkInterface.Operation operation) {
+		// warm-up, then one measured run of the same length
+		run(operation, time);
+		long start = System.nanoTime();
+		long ops = run(operation, time);
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%-14s %-8s %14.1f", name, kernel.getName(), (double) nanos / ops));
+	}
+	
+	private static long run(BenchmarkInterface.Operation operation, long time) {
+		long deadline = System.nanoTime() + time * 1000000L;
+		double result = 0;
+		int ops = 0;
+		do {
+			result += operation.run(ops++);
+		} while (System.nanoTime() < deadline);
+		sink += result;
+		return ops;
+	}
+}
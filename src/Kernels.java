@@ -0,0 +1,111 @@
+/**
+ * This class is the kernel layer of the dense inner loops: the dot products and SGD steps
+ * of matrix factorization (factor rows are contiguous float arrays)
+ * 	- two implementations: a scalar one (this file) and a SIMD one on the Java Vector API
+ * 	  (src-vector/VectorKernel.java), chosen once when the class is loaded
+ * 	- the Vector API is the incubator module jdk.incubator.vector on Java 17, so the SIMD kernel
+ * 	  lives in its own source folder and is loaded by reflection; when it is not compiled in or
+ * 	  the JVM is started without the module, the scalar kernel is used
+ * 	- both implementations agree within float rounding (see KernelInterface), not bit for bit:
+ * 	  SIMD dot products add the lanes in a different order
+ * 	- the similarity merge-joins of UserPool are not kernels: they are bound by the branches
+ * 	  of the merge, and collecting the common ratings for a SIMD pass does not pay off
+ * Build and run with SIMD:
+ * 	javac --add-modules jdk.incubator.vector -d bin src/*.java src-vector/*.java
+ * 	java --add-modules jdk.incubator.vector -cp bin ...
+ * -Drecommender.simd=false forces the scalar kernel
+ * @author Yibang Chen
+ *
+ */
+public class Kernels {
+	
+	/**
+	 * This interface is one implementation of the kernels
+	 */
+	interface Kernel {
+		public String getName();
+		
+		/**
+		 * This method computes the dot product of a[aFrom, aFrom+length) and b[bFrom, bFrom+length)
+		 */
+		public float dot(float[] a, int aFrom, float[] b, int bFrom, int length);
+		
+		/**
+		 * This method moves two factor rows one SGD step against the error of their dot product
+		 * 	- p += lr * (error * q - reg * p) and q += lr * (error * p - reg * q), both from the old values
+		 */
+		public void sgdStep(float[] p, int pFrom, float[] q, int qFrom, int length, float lr, float error, float reg);
+	}
+	
+	private static final Kernel SCALAR = new ScalarKernel();
+	private static final Kernel KERNEL = load();
+	
+	private Kernels() {
+	}
+	
+	private static Kernel load() {
+		if (!Boolean.parseBoolean(System.getProperty("recommender.simd", "true"))) return SCALAR;
+		if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return SCALAR;
+		try {
+			return (Kernel) Class.forName("VectorKernel").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return SCALAR;
+		}
+	}
+	
+	/**
+	 * This method returns the kernel in use
+	 * @return
+	 */
+	static Kernel get() {
+		return KERNEL;
+	}
+	
+	/**
+	 * This method returns the scalar kernel, whatever kernel is in use
+	 * @return
+	 */
+	static Kernel scalar() {
+		return SCALAR;
+	}
+	
+	/**
+	 * This method tells which kernel is in use: "vector" or "scalar"
+	 * @return
+	 */
+	public static String getName() {
+		return KERNEL.getName();
+	}
+	
+	public static float dot(float[] a, int aFrom, float[] b, int bFrom, int length) {
+		return KERNEL.dot(a, aFrom, b, bFrom, length);
+	}
+	
+	public static void sgdStep(float[] p, int pFrom, float[] q, int qFrom, int length, float lr, float error, float reg) {
+		KERNEL.sgdStep(p, pFrom, q, qFrom, length, lr, error, reg);
+	}
+	
+	/**
+	 * This class is the scalar kernel: plain loops, in the order the rest of the code sums
+	 */
+	private static class ScalarKernel implements Kernel {
+		public String getName() {
+			return "scalar";
+		}
+		
+		public float dot(float[] a, int aFrom, float[] b, int bFrom, int length) {
+			float dot = 0;
+			for (int k = 0; k < length; k++) dot += a[aFrom + k] * b[bFrom + k];
+			return dot;
+		}
+		
+		public void sgdStep(float[] p, int pFrom, float[] q, int qFrom, int length, float lr, float error, float reg) {
+			for (int k = 0; k < length; k++) {
+				float pk = p[pFrom + k];
+				float qk = q[qFrom + k];
+				p[pFrom + k] = pk + lr * (error * qk - reg * pk);
+				q[qFrom + k] = qk + lr * (error * pk - reg * qk);
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class holds the built-in instrumentation of the hot paths
+ * 	- latency histograms of parsing, similarity, prediction, baseline and recommendation
+ * 	- a histogram of the neighbors scanned per prediction
+ * 	- hit rates of the similarity caches, and of the recommendation caches registered with register()
+ * Instrumentation is off unless the JVM is started with -Drecommender.metrics=true.
+ * ENABLED is a static final constant, so when it is off the JIT removes the guarded code
+ * and the hot paths pay nothing, not even System.nanoTime().
+ * When it is on, every histogram and cache is registered in the platform MBean server
+ * (domain "recommender"), and -Drecommender.metrics.period=N prints a text dump every N seconds
+ * @author Yibang Chen
+ *
+ */
+public class Metrics {
+	
+	public static final boolean ENABLED = Boolean.getBoolean("recommender.metrics");
+	
+	private static final double NANOS_PER_MICRO = 1e3;
+	
+	public static final Histogram PARSE = new Histogram("parse", "ms", 1e6);
+	public static final Histogram SIMILARITY = new Histogram("similarity", "us", NANOS_PER_MICRO);
+	public static final Histogram COSINE_SIMILARITY = new Histogram("cosineSimilarity", "us", NANOS_PER_MICRO);
+	public static final Histogram PREDICT = new Histogram("predict", "us", NANOS_PER_MICRO);
+	public static final Histogram COSINE_PREDICT = new Histogram("cosinePredict", "us", NANOS_PER_MICRO);
+	public static final Histogram BASELINE = new Histogram("baseline", "us", NANOS_PER_MICRO);
+	public static final Histogram RECOMMEND = new Histogram("recommend", "us", NANOS_PER_MICRO);
+	public static final Histogram NEIGHBORS_SCANNED = new Histogram("neighborsScanned", "users", 1);
+	
+	private static final List<Histogram> HISTOGRAMS = Arrays.asList(PARSE, SIMILARITY, COSINE_SIMILARITY,
+			PREDICT, COSINE_PREDICT, BASELINE, RECOMMEND, NEIGHBORS_SCANNED);
+	
+	/**
+	 * This interface is the JMX view of a similarity cache of UserPool
+	 */
+	public interface CacheStatsMBean {
+		public boolean isEnabled();
+		
+		public long getSize();
+		
+		public long getHitCount();
+		
+		public long getMissCount();
+		
+		public long getStaleCount();
+		
+		public long getEvictionCount();
+		
+		public double getHitRate();
+	}
+	
+	/**
+	 * This interface is the JMX view of a recommendation cache
+	 */
+	public interface RecommendationCacheStatsMBean {
+		public long getSize();
+		
+		public long getHitCount();
+		
+		public long getCoalescedCount();
+		
+		public long getMissCount();
+		
+		public long getStaleCount();
+		
+		public long getExpiredCount();
+		
+		public long getEvictionCount();
+		
+		public double getHitRate();
+		
+		public double getComputeMillis();
+		
+		public double getSavedMillis();
+	}
+	
+	private static final List<RecommendationCache> RECOMMENDATION_CACHES = new CopyOnWriteArrayList<RecommendationCache>();
+	
+	static {
+		if (ENABLED) {
+			registerMBeans();
+			long period = Long.getLong("recommender.metrics.period", 0);
+			if (period > 0) startReporter(period, System.out);
+		}
+	}
+	
+	private Metrics() {
+	}
+	
+	/**
+	 * This method prints all metrics periodically on a daemon thread
+	 * @param periodSeconds
+	 * @param out
+	 */
+	public static void startReporter(long periodSeconds, final PrintStream out) {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "metrics-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reporter.scheduleAtFixedRate(() -> out.print(dump()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * This method formats all histograms and cache statistics as a text table
+	 * @return
+	 */
+	public static String dump() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("***********Metrics%n%-18s %10s %10s %10s %10s %10s %10s %10s%n",
+				"Name", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		for (Histogram histogram : HISTOGRAMS) {
+			text.append(histogram).append(System.lineSeparator());
+		}
+		for (boolean cosine : new boolean[] {false, true}) {
+			SimilarityCache cache = UserPool.getInstance().getSimilarityCache(cosine);
+			if (cache != null) {
+				text.append(cosine ? "cosine cache: " : "pearson cache: ").append(cache).append(System.lineSeparator());
+			}
+		}
+		for (RecommendationCache cache : RECOMMENDATION_CACHES) {
+			text.append(cache).append(System.lineSeparator());
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * This method adds a recommendation cache to the dump, and to JMX if metrics are enabled
+	 * @param name : the JMX name, e.g. "server"
+	 * @param cache
+	 */
+	public static void register(String name, RecommendationCache cache) {
+		RECOMMENDATION_CACHES.add(cache);
+		if (!ENABLED) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(new RecommendationCacheStats(cache), RecommendationCacheStatsMBean.class),
+					new ObjectName("recommender:type=RecommendationCache,name=" + name));
+		} catch (JMException e) {
+			System.out.println("Recommendation cache " + name + " is not registered in JMX: " + e);
+		}
+	}
+	
+	/**
+	 * This method resets all histograms
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS) {
+			histogram.reset();
+		}
+	}
+	
+	private static void registerMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (Histogram histogram : HISTOGRAMS) {
+				server.registerMBean(new StandardMBean(histogram, HistogramMBean.class),
+						new ObjectName("recommender:type=Histogram,name=" + histogram.getName()));
+			}
+			server.registerMBean(new StandardMBean(new CacheStats(false), CacheStatsMBean.class),
+					new ObjectName("recommender:type=SimilarityCache,name=pearson"));
+			server.registerMBean(new StandardMBean(new CacheStats(true), CacheStatsMBean.class),
+					new ObjectName("recommender:type=SimilarityCache,name=cosine"));
+		} catch (JMException e) {
+			System.out.println("Metrics are not registered in JMX: " + e);
+		}
+	}
+	
+	/**
+	 * This class reads the statistics of a recommendation cache
+	 */
+	private static class RecommendationCacheStats implements RecommendationCacheStatsMBean {
+		private final RecommendationCache cache;
+		
+		RecommendationCacheStats(RecommendationCache cache) {
+			this.cache = cache;
+		}
+		
+		public long getSize() {
+			return cache.size();
+		}
+		
+		public long getHitCount() {
+			return cache.getHitCount();
+		}
+		
+		public long getCoalescedCount() {
+			return cache.getCoalescedCount();
+		}
+		
+		public long getMissCount() {
+			return cache.getMissCount();
+		}
+		
+		public long getStaleCount() {
+			return cache.getStaleCount();
+		}
+		
+		public long getExpiredCount() {
+			return cache.getExpiredCount();
+		}
+		
+		public long getEvictionCount() {
+			return cache.getEvictionCount();
+		}
+		
+		public double getHitRate() {
+			return cache.getHitRate();
+		}
+		
+		public double getComputeMillis() {
+			return cache.getComputeNanos() / 1e6;
+		}
+		
+		public double getSavedMillis() {
+			return cache.getSavedNanos() / 1e6;
+		}
+	}
+	
+	/**
+	 * This class reads the statistics of whichever cache UserPool currently uses
+	 */
+	private static class CacheStats implements CacheStatsMBean {
+		private final boolean cosine;
+		
+		CacheStats(boolean cosine) {
+			this.cosine = cosine;
+		}
+		
+		private SimilarityCache cache() {
+			return UserPool.getInstance().getSimilarityCache(cosine);
+		}
+		
+		public boolean isEnabled() {
+			return cache() != null;
+		}
+		
+		public long getSize() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.size();
+		}
+		
+		public long getHitCount() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.getHitCount();
+		}
+		
+		public long getMissCount() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.getMissCount();
+		}
+		
+		public long getStaleCount() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.getStaleCount();
+		}
+		
+		public long getEvictionCount() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.getEvictionCount();
+		}
+		
+		public double getHitRate() {
+			SimilarityCache cache = cache();
+			return cache == null ? 0 : cache.getHitRate();
+		}
+	}
+}
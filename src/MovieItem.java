@@ -1,8 +1,8 @@
 import java.util.Set;
-import java.util.HashSet;
 
 /**
  * This method is for the current Movies data set to store movies.dat
+ * 	- genres are kept as a bitmask, dictionary-encoded by GenreDictionary
  * @author Yibang Chen
  *
  */
@@ -11,12 +11,9 @@ public class MovieItem implements Item{
 	private int itemId;
 	private String title;
 	private int year;
-	private Set<String> categories;
+	private long genreMask;
 	
-	private double averageRating = 0;
-	private int ratingCount = 0;
-	
-	private Set<Integer> users;
+	private volatile RaterList raters;
 	
 	/**
 	 * The constructor
@@ -26,25 +23,57 @@ public class MovieItem implements Item{
 	 * @param categories
 	 */
 	public MovieItem (int id, String title, int year, Set<String> categories) {
-		setCategories(new HashSet<String>());
+		this(id, title, year, 0L);
+		this.setCategories(categories);
+	}
+	
+	/**
+	 * The constructor
+	 * @param id : movieId in dataset
+	 * @param title
+	 * @param year
+	 * @param genreMask : genres encoded by GenreDictionary
+	 */
+	public MovieItem (int id, String title, int year, long genreMask) {
 		this.setItemId(id);
 		this.setTitle(title);
 		this.setYear(year);
-		this.setCategories(categories);
+		this.genreMask = genreMask;
 		
-		users = new HashSet<Integer>();
+		raters = new RaterList();
 	}
 	
 	@Override
 	public Set<Integer> getRatedUsers() {
-		return users;
+		return raters.asUserSet();
 	}
 	
 	@Override
-	public void addUser(int userId) {
-		users.add(userId);
+	public RaterList getRaters() {
+		return raters;
 	}
-
+	
+	/**
+	 * This method adds or replaces a user's rating
+	 * 	- the new posting list, with its average, is published in one volatile write,
+	 * 	  so readers never lock; writers of the same item are serialized on the item
+	 */
+	@Override
+	public synchronized float addRating(int userId, float rating) {
+		RaterList current = raters;
+		float previous = current.findRating(userId);
+		raters = current.withRating(userId, rating);
+		return previous;
+	}
+	
+	/**
+	 * This method releases the spare capacity of the posting list once loading is done
+	 */
+	@Override
+	public synchronized void trimToSize() {
+		raters = raters.trimToSize();
+	}
+	
 	@Override
 	public int getItemId() {
 		return itemId;
@@ -73,32 +102,50 @@ public class MovieItem implements Item{
 		this.year = year;
 	}
 
+	/**
+	 * This method decodes the genres of the movie
+	 * @return the genres, shared and unmodifiable
+	 */
 	public Set<String> getCategories() {
-		return categories;
+		return GenreDictionary.getInstance().decode(genreMask);
 	}
 	
 	@Override
 	public void setCategories(Set<String> categories) {
-		this.categories = categories;
+		this.genreMask = categories == null ? 0 : GenreDictionary.getInstance().encode(categories);
+	}
+	
+	/**
+	 * This method returns the genres of the movie as a mask of GenreDictionary bits
+	 * @return
+	 */
+	public long getGenreMask() {
+		return genreMask;
 	}
 	
 	@Override
-	public void updateAverage(double rating, boolean isNew) {
-		if (isNew) ratingCount++;
-		averageRating = (rating - averageRating)/ ratingCount;
+	public synchronized void clearRatings() {
+		raters = new RaterList();
+	}
+	
+	/**
+	 * This method restores the posting list from a snapshot
+	 * @param raters
+	 */
+	synchronized void restoreRaters(RaterList raters) {
+		this.raters = raters;
 	}
 	
 	@Override
 	public double getBaseline(){
-		return this.averageRating;
+		return raters.getAverage();
 	}
 	
 	/**
-	 * This method is current not implemented because it is irrelevant
+	 * This method returns the features of the movie: its genres
 	 */
 	@Override
 	public Set<String> getFeatures() {
-		// TODO Auto-generated method stub
-		return null;
+		return getCategories();
 	}
 }
@@ -0,0 +1,391 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This class stores the precomputed top-K neighbors of every user
+ * 	- owners are kept in a sorted int array, neighbors in one CSR block (offsets, ids, similarities)
+ * 	- neighbors of a user are ordered by similarity (descending), ties by user id (ascending)
+ * The graph is built offline, in parallel, and can be saved to and loaded from disk
+ * @author Yibang Chen
+ *
+ */
+public class NeighborGraph {
+	
+	private static final int MAGIC = 0x4e424752; // "NBGR"
+	private static final int VERSION = 1;
+	private static final int USERS_PER_TASK = 64;
+	private static final ThreadLocal<Accumulator> ACCUMULATORS = ThreadLocal.withInitial(Accumulator::new);
+	
+	private final boolean cosine;
+	private final int k;
+	private final int[] userIds;
+	private final int[] offsets;
+	private final int[] neighborIds;
+	private final float[] similarities;
+	
+	private NeighborGraph(boolean cosine, int k, int[] userIds, int[] offsets, int[] neighborIds, float[] similarities) {
+		this.cosine = cosine;
+		this.k = k;
+		this.userIds = userIds;
+		this.offsets = offsets;
+		this.neighborIds = neighborIds;
+		this.similarities = similarities;
+	}
+	
+	/**
+	 * This method computes the top-K neighbors of every user, using all available cores
+	 * 	- candidates of a user are found through the item posting lists (co-raters only)
+	 * 	- neighbors with zero similarity are not stored
+	 * @param users
+	 * @param items
+	 * @param k : maximum number of neighbors kept per user
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return the graph
+	 */
+	public static NeighborGraph build(UserPool users, ItemPool items, int k, boolean cosine) {
+		final int n = users.getUserCount();
+		final int[] ownerIds = new int[n];
+		for (int i = 0; i < n; i++) {
+			ownerIds[i] = users.getUserByIndex(i).getUserId();
+		}
+		Arrays.sort(ownerIds);
+		final int[][] ids = new int[n][];
+		final float[][] sims = new float[n][];
+		
+		int tasks = (n + USERS_PER_TASK - 1) / USERS_PER_TASK;
+		IntStream.range(0, tasks).parallel().forEach(task -> {
+			Accumulator acc = ACCUMULATORS.get();
+			acc.ensureSize(n);
+			int end = Math.min(n, (task + 1) * USERS_PER_TASK);
+			for (int u = task * USERS_PER_TASK; u < end; u++) {
+				acc.computeNeighbors(users, items, users.indexOf(ownerIds[u]), k, cosine);
+				ids[u] = acc.resultIds;
+				sims[u] = acc.resultSims;
+			}
+		});
+		
+		int[] offsets = new int[n + 1];
+		for (int u = 0; u < n; u++) {
+			offsets[u + 1] = offsets[u] + ids[u].length;
+		}
+		int[] neighborIds = new int[offsets[n]];
+		float[] similarities = new float[offsets[n]];
+		for (int u = 0; u < n; u++) {
+			System.arraycopy(ids[u], 0, neighborIds, offsets[u], ids[u].length);
+			System.arraycopy(sims[u], 0, similarities, offsets[u], sims[u].length);
+		}
+		
+		return new NeighborGraph(cosine, k, ownerIds, offsets, neighborIds, similarities);
+	}
+	
+	/**
+	 * This method computes the top-K neighbors of a single user without building a graph
+	 * @param users
+	 * @param items
+	 * @param userId
+	 * @param k
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return neighbor ids, ordered by similarity (descending); empty if the user is unknown
+	 */
+	public static List<Integer> findNeighbors(UserPool users, ItemPool items, int userId, int k, boolean cosine) {
+		return buildForUser(users, items, userId, k, cosine).getNeighbors(userId, k, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * This method computes the top-K neighbors of a single user as a one-row graph
+	 * 	- with k >= number of users, the row is the user's whole similarity vector:
+	 * 	  every user with a non-zero similarity, ordered by similarity (descending)
+	 * 	- the cost depends on the user's co-raters only, not on the number of users
+	 * @param users
+	 * @param items
+	 * @param userId
+	 * @param k
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return the graph; it has no row if the user is unknown
+	 */
+	public static NeighborGraph buildForUser(UserPool users, ItemPool items, int userId, int k, boolean cosine) {
+		int u = users.indexOf(userId);
+		if (u < 0) return new NeighborGraph(cosine, k, new int[0], new int[1], new int[0], new float[0]);
+		
+		int n = users.getUserCount();
+		Accumulator acc = ACCUMULATORS.get();
+		acc.ensureSize(n);
+		acc.computeNeighbors(users, items, u, Math.min(k, n), cosine);
+		return new NeighborGraph(cosine, k, new int[] {userId}, new int[] {0, acc.resultIds.length},
+				acc.resultIds, acc.resultSims);
+	}
+	
+	/**
+	 * This method computes the top-K neighbors of a single user among given candidates, as a one-row graph
+	 * 	- every candidate is scored with UserPool's exact similarity; candidates with similarity 0
+	 * 	  are dropped, as in build
+	 * 	- used with the candidates of a UserLshIndex, so the cost follows the candidates, not the co-raters
+	 * @param users
+	 * @param userId
+	 * @param candidates : user ids
+	 * @param k
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return the graph; it has no row if the user is unknown
+	 */
+	public static NeighborGraph buildForUser(UserPool users, int userId, int[] candidates, int k, boolean cosine) {
+		if (users.indexOf(userId) < 0) return new NeighborGraph(cosine, k, new int[0], new int[1], new int[0], new float[0]);
+		
+		TopK top = new TopK(Math.min(k, candidates.length));
+		for (int candidate : candidates) {
+			double sim = cosine ? users.findCosineSimilarity(userId, candidate) : users.findSimilarity(userId, candidate);
+			if (sim != 0) top.offer(candidate, sim);
+		}
+		int[] ids = new int[top.size()];
+		double[] sims = new double[top.size()];
+		int count = top.drainDescending(ids, sims);
+		float[] similarities = new float[count];
+		for (int i = 0; i < count; i++) similarities[i] = (float) sims[i];
+		return new NeighborGraph(cosine, k, new int[] {userId}, new int[] {0, count}, ids, similarities);
+	}
+	
+	public boolean isCosine() {
+		return cosine;
+	}
+	
+	/**
+	 * This method returns the K the graph was built with
+	 * @return
+	 */
+	public int getK() {
+		return k;
+	}
+	
+	public int getUserCount() {
+		return userIds.length;
+	}
+	
+	/**
+	 * This method returns the position of a user in the graph
+	 * @param userId
+	 * @return the position; negative if the user is not in the graph
+	 */
+	public int indexOf(int userId) {
+		return Arrays.binarySearch(userIds, userId);
+	}
+	
+	/**
+	 * This method returns the start (inclusive) of a user's neighbors in the CSR block
+	 * @param index : position returned by indexOf
+	 * @return
+	 */
+	public int getStart(int index) {
+		return offsets[index];
+	}
+	
+	/**
+	 * This method returns the end (exclusive) of a user's neighbors in the CSR block
+	 * @param index : position returned by indexOf
+	 * @return
+	 */
+	public int getEnd(int index) {
+		return offsets[index + 1];
+	}
+	
+	public int getNeighborId(int position) {
+		return neighborIds[position];
+	}
+	
+	public float getSimilarity(int position) {
+		return similarities[position];
+	}
+	
+	/**
+	 * This method lists the neighbors of a user
+	 * @param userId
+	 * @param numOfNeighbors : maximum number of neighbors to return
+	 * @param similarityThreshold : minimum similarity of a returned neighbor
+	 * @return neighbor ids, ordered by similarity (descending); empty if the user is unknown
+	 */
+	public List<Integer> getNeighbors(int userId, int numOfNeighbors, double similarityThreshold) {
+		List<Integer> result = new ArrayList<Integer>();
+		int index = indexOf(userId);
+		if (index < 0) return result;
+		
+		int end = getEnd(index);
+		for (int p = getStart(index); p < end && result.size() < numOfNeighbors; p++) {
+			if (similarities[p] < similarityThreshold) break;
+			result.add(neighborIds[p]);
+		}
+		return result;
+	}
+	
+	/**
+	 * This method saves the graph to a file
+	 * @param path
+	 * @throws IOException
+	 */
+	public void save(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(cosine);
+			out.writeInt(k);
+			out.writeInt(userIds.length);
+			out.writeInt(neighborIds.length);
+			for (int id : userIds) out.writeInt(id);
+			for (int offset : offsets) out.writeInt(offset);
+			for (int id : neighborIds) out.writeInt(id);
+			for (float sim : similarities) out.writeFloat(sim);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * This method loads a graph saved by save()
+	 * @param path
+	 * @return the graph
+	 * @throws IOException if the file is not a neighbor graph or has another version
+	 */
+	public static NeighborGraph load(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException(path + " is not a neighbor graph file");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported neighbor graph version: " + version);
+			
+			boolean cosine = in.readBoolean();
+			int k = in.readInt();
+			int users = in.readInt();
+			int edges = in.readInt();
+			
+			int[] userIds = new int[users];
+			int[] offsets = new int[users + 1];
+			int[] neighborIds = new int[edges];
+			float[] similarities = new float[edges];
+			for (int i = 0; i < users; i++) userIds[i] = in.readInt();
+			for (int i = 0; i <= users; i++) offsets[i] = in.readInt();
+			for (int i = 0; i < edges; i++) neighborIds[i] = in.readInt();
+			for (int i = 0; i < edges; i++) similarities[i] = in.readFloat();
+			
+			return new NeighborGraph(cosine, k, userIds, offsets, neighborIds, similarities);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * This class accumulates the co-rating sums of one user against all of its co-raters
+	 * 	- the arrays are indexed by internal user index (see UserPool.indexOf), so a co-rater's
+	 * 	  slot is found with an array load; a co-rater's statistics are read when it is first met
+	 * 	- one instance per thread (see ACCUMULATORS); its arrays are reused for every user the thread
+	 * 	  handles, and only the touched slots are reset after a user
+	 */
+	private static class Accumulator {
+		double[] sum12 = new double[0];
+		double[] sum1 = new double[0];
+		double[] sum2 = new double[0];
+		double[] averages = new double[0];
+		double[] magnitudes = new double[0];
+		int[] touched = new int[0];
+		boolean[] seen = new boolean[0];
+		int touchedCount;
+		
+		int[] resultIds;
+		float[] resultSims;
+		
+		/**
+		 * This method grows the arrays to hold at least n users
+		 * 	- grown by half again, so a pool that gains users one by one does not reallocate every call
+		 * @param n : number of users
+		 */
+		void ensureSize(int n) {
+			if (seen.length >= n) return;
+			int size = Math.max(n, seen.length + seen.length / 2);
+			sum12 = new double[size];
+			sum1 = new double[size];
+			sum2 = new double[size];
+			averages = new double[size];
+			magnitudes = new double[size];
+			touched = new int[size];
+			seen = new boolean[size];
+		}
+		
+		/**
+		 * This method computes the neighbors of one user
+		 * @param users
+		 * @param items
+		 * @param u : internal index of the user
+		 * @param k
+		 * @param cosine
+		 */
+		void computeNeighbors(UserPool users, ItemPool items, int u, int k, boolean cosine) {
+			User.Profile user = users.getUserByIndex(u).getProfile();
+			double avg1 = user.getAverageRating();
+			double magnitude1 = user.getMagnitude();
+			int n = seen.length;
+			touchedCount = 0;
+			
+			for (int i = 0; i < user.size(); i++) {
+				RaterList raters = items.getRaters(user.getItemIdAt(i));
+				if (raters == null) continue;
+				
+				float rate1 = user.getRatingAt(i);
+				double diff1 = rate1 - avg1;
+				for (int p = 0; p < raters.size(); p++) {
+					// users added after the accumulator was sized are skipped
+					int v = users.indexOf(raters.getUserId(p));
+					if (v < 0 || v >= n || v == u) continue;
+					if (!seen[v]) {
+						seen[v] = true;
+						touched[touchedCount++] = v;
+						User.Profile other = users.getUserByIndex(v).getProfile();
+						averages[v] = other.getAverageRating();
+						magnitudes[v] = other.getMagnitude();
+					}
+					
+					float rate2 = raters.getRating(p);
+					if (cosine) {
+						sum12[v] += rate1 * rate2;
+					} else {
+						double diff2 = rate2 - averages[v];
+						sum12[v] += diff1 * diff2;
+						sum1[v] += diff1 * diff1;
+						sum2[v] += diff2 * diff2;
+					}
+				}
+			}
+			
+			TopK top = new TopK(k);
+			for (int t = 0; t < touchedCount; t++) {
+				int v = touched[t];
+				double sim;
+				if (cosine) {
+					double magnitudes = magnitude1 * this.magnitudes[v];
+					sim = magnitudes == 0 ? 0 : sum12[v] / magnitudes;
+				} else {
+					sim = sum1[v] * sum2[v] == 0 ? 0 : sum12[v] / (Math.sqrt(sum1[v]) * Math.sqrt(sum2[v]));
+				}
+				if (sim != 0) top.offer(users.getUserByIndex(v).getUserId(), sim);
+				
+				sum12[v] = 0;
+				sum1[v] = 0;
+				sum2[v] = 0;
+				seen[v] = false;
+			}
+			
+			resultIds = new int[top.size()];
+			double[] topSims = new double[top.size()];
+			top.drainDescending(resultIds, topSims);
+			resultSims = new float[topSims.length];
+			for (int t = 0; t < topSims.length; t++) {
+				resultSims[t] = (float) topSims[t];
+			}
+		}
+	}
+}
@@ -1,11 +1,6 @@
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * This class provides functions for calculating predictions and recommendations
@@ -18,6 +13,13 @@ public class Prediction {
 	private UserPool users;
 	private ItemPool items;
 	private final int NEIGHBOR_SIZE = 20;
+	private final int QUICKSELECT_RATIO = 4;
+	private final int SELECTIVE_FILTER_RATIO = 8;
+	private boolean precomputedNeighbors = false;
+	private FactorModel factorModel;
+	private BaselineModel baselineModel;
+	private CandidateGenerator candidateGenerator;
+	private final ThreadLocal<ItemScores> itemScores = ThreadLocal.withInitial(ItemScores::new);
 	
 	/**
 	 * The constructor
@@ -28,8 +30,50 @@ public class Prediction {
 	}
 	
 	
+	/**
+	 * This method switches between online and precomputed neighbor selection
+	 * 	- online: the most similar users among all raters of the item (exact, O(raters)); if
+	 * 	  UserPool has an LSH index (see UserPool.buildLshIndex), only the raters among the user's
+	 * 	  index candidates are scored, so the cost follows the candidates; like graph neighbors,
+	 * 	  candidates with similarity 0 are left out
+	 * 	- precomputed: the user's neighbors in UserPool's neighbor graph who rated the item (O(K))
+	 * Precomputed mode falls back to online mode while no graph is built for the metric
+	 * @param precomputed : true to use the precomputed neighbor graphs
+	 */
+	public void setPrecomputedNeighbors(boolean precomputed) {
+		this.precomputedNeighbors = precomputed;
+	}
+	
+	/**
+	 * This method sets the candidate-generation stage of recommendItems
+	 * 	- with a generator, only its candidates are scored instead of the whole catalog
+	 * @param generator : null to score every unrated item
+	 */
+	public void setCandidateGenerator(CandidateGenerator generator) {
+		this.candidateGenerator = generator;
+	}
+	
+	/**
+	 * This method sets the latent factor model used by predictFactorRating and recommendItemsFactor
+	 * @param model : a trained or loaded model; null to drop it
+	 */
+	public void setFactorModel(FactorModel model) {
+		this.factorModel = model;
+	}
+	
+	/**
+	 * This method sets the baseline model used by getBaselineRating
+	 * 	- it is also the fallback of the neighborhood predictors: a prediction with no usable
+	 * 	  neighbor or similar item is the baseline instead of the user's average
+	 * @param model : a fitted model; null to compute the baseline from the posting list per call
+	 */
+	public void setBaselineModel(BaselineModel model) {
+		this.baselineModel = model;
+	}
+	
 	/**
 	 * This method predicts a user's rating to a particular item by providing user specified neighbor size
+	 * 	- candidate neighbors are taken from the item's posting list, not from all users
 	 * @param userId
 	 * @param itemId
 	 * @param numOfNeighbors
@@ -39,21 +83,12 @@ public class Prediction {
 	public double predictRating(int userId, int itemId, int numOfNeighbors){
 		
 		if (!items.isValidItem(itemId)) return 0;
+		if (!Metrics.ENABLED) return predict(userId, itemId, numOfNeighbors, false);
 		
-		Map<Integer, Double> neighbors = new HashMap<Integer, Double>(); //similarities		
-		for (int id : users.getUsers()){
-			User user = users.getUser(id);
-			if (user.isRated(itemId)) {
-				neighbors.put(id, users.findSimilarity(userId, id));
-			}
-		}
-		
-		List<Map.Entry<Integer, Double>> list = sortMapValueDesc(neighbors);	
-		if (numOfNeighbors < list.size()) {
-			list.subList(numOfNeighbors, list.size()).clear();
-		}
-		
-		return getAverageRating(userId, list, itemId);
+		long start = System.nanoTime();
+		double score = predict(userId, itemId, numOfNeighbors, false);
+		Metrics.PREDICT.record(System.nanoTime() - start);
+		return score;
 	}
 	
 	/**
@@ -75,21 +110,82 @@ public class Prediction {
 	public double predictCosineRating(int userId, int itemId, int numOfNeighbors){
 		
 		if (!items.isValidItem(itemId)) return 0;
+		if (!Metrics.ENABLED) return predict(userId, itemId, numOfNeighbors, true);
+		
+		long start = System.nanoTime();
+		double score = predict(userId, itemId, numOfNeighbors, true);
+		Metrics.COSINE_PREDICT.record(System.nanoTime() - start);
+		return score;
+	}
+	
+	/**
+	 * This method selects the neighbors among the raters of an item and averages their ratings
+	 * @param userId
+	 * @param itemId : a valid item
+	 * @param numOfNeighbors
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return
+	 */
+	private double predict(int userId, int itemId, int numOfNeighbors, boolean cosine) {
+		RaterList raters = items.getRaters(itemId);
+		int k = Math.max(0, Math.min(numOfNeighbors, raters.size()));
+		
+		NeighborGraph graph = users.getNeighborGraph(cosine);
+		if (precomputedNeighbors && graph != null) {
+			int[] positions = new int[k];
+			double[] similarities = new double[k];
+			int count = getPrecomputedNeighbors(graph, raters, userId, positions, similarities);
+			if (Metrics.ENABLED) Metrics.NEIGHBORS_SCANNED.record(count);
+			return getAverageRating(userId, itemId, raters, positions, similarities, count);
+		}
 		
-		Map<Integer, Double> neighbors = new HashMap<Integer, Double>(); //similarities		
-		for (int id : users.getUsers()){
-			User user = users.getUser(id);
-			if (user.isRated(itemId)) {
-				neighbors.put(id, users.findCosineSimilarity(userId, id));
+		UserLshIndex index = users.getLshIndex();
+		User user = users.getUser(userId);
+		if (index != null && user != null) {
+			// the exact search restricted to the raters that the index proposes; as in the
+			// precomputed graph and the row recommendItems builds from the same candidates,
+			// candidates with similarity 0 are not neighbors, so they take no top-k slot
+			int[] candidates = index.getCandidates(user);
+			int[] positions = new int[candidates.length];
+			double[] similarities = new double[candidates.length];
+			int count = 0;
+			for (int candidate : candidates) {
+				int position = raters.indexOf(candidate);
+				if (position < 0) continue;
+				double sim = similarity(userId, candidate, cosine);
+				if (sim == 0) continue;
+				positions[count] = position;
+				similarities[count++] = sim;
 			}
+			if (Metrics.ENABLED) Metrics.NEIGHBORS_SCANNED.record(count);
+			count = TopK.selectDescending(positions, similarities, count, k);
+			return getAverageRating(userId, itemId, raters, positions, similarities, count);
 		}
 		
-		List<Map.Entry<Integer, Double>> list = sortMapValueDesc(neighbors);	
-		if (numOfNeighbors < list.size()) {
-			list.subList(numOfNeighbors, list.size()).clear();
+		if (Metrics.ENABLED) Metrics.NEIGHBORS_SCANNED.record(raters.size());
+		if ((long) k * QUICKSELECT_RATIO >= raters.size()) {
+			int[] positions = new int[raters.size()];
+			double[] similarities = new double[raters.size()];
+			for (int p = 0; p < raters.size(); p++) {
+				positions[p] = p;
+				similarities[p] = similarity(userId, raters.getUserId(p), cosine);
+			}
+			int count = TopK.selectDescending(positions, similarities, raters.size(), k);
+			return getAverageRating(userId, itemId, raters, positions, similarities, count);
 		}
 		
-		return getAverageRating(userId, list, itemId);
+		TopK top = new TopK(k);
+		for (int p = 0; p < raters.size(); p++) {
+			top.offer(p, similarity(userId, raters.getUserId(p), cosine));
+		}
+		int[] positions = new int[k];
+		double[] similarities = new double[k];
+		int count = top.drainDescending(positions, similarities);
+		return getAverageRating(userId, itemId, raters, positions, similarities, count);
+	}
+	
+	private double similarity(int userId1, int userId2, boolean cosine) {
+		return cosine ? users.findCosineSimilarity(userId1, userId2) : users.findSimilarity(userId1, userId2);
 	}
 
 	/**
@@ -100,33 +196,107 @@ public class Prediction {
 	}
 	
 	/**
-	 * This method calculates the baseline rating based on 
-	 * 	- overall averages of all items
-	 * 	- baseline predictor for user
-	 * 	- baseline predictor for item
+	 * This method predicts a user's rating to an item from the user's own ratings of similar items
+	 * 	- similar items come from ItemPool's item-item similarity matrix
+	 * 	- the score is the user's average plus the similarity-weighted average of the user's
+	 * 	  offsets on the most similar rated items; cost depends only on the matrix K and the profile
+	 * @param userId
+	 * @param itemId
+	 * @param numOfNeighbors : number of similar rated items to use
+	 * @return : 
+	 * 		- 0 if item is invalid or the similarity matrix is not built
+	 * 		- the fallback (see setBaselineModel) if none of the item's similar items is rated
+	 */
+	public double predictItemBasedRating(int userId, int itemId, int numOfNeighbors){
+		
+		ItemSimilarityMatrix matrix = items.getSimilarityMatrix();
+		if (!items.isValidItem(itemId) || matrix == null) return 0;
+		
+		User user = users.getUser(userId);
+		double average = user.getAverageRating();
+		int index = matrix.indexOf(itemId);
+		if (index < 0) return fallback(userId, itemId, average);
+		
+		double sum1 = 0, sum2 = 0;
+		int used = 0;
+		int end = matrix.getEnd(index);
+		for (int p = matrix.getStart(index); p < end && used < numOfNeighbors; p++) {
+			int neighbor = matrix.getNeighborId(p);
+			if (!user.isRated(neighbor)) continue;
+			
+			double sim = matrix.getSimilarity(p);
+			sum1 += sim * (user.getRating(neighbor) - average);
+			sum2 += Math.abs(sim);
+			used++;
+		}
+		
+		if (sum2 == 0) return fallback(userId, itemId, average);
+		return average + sum1/sum2;
+	}
+	
+	/**
+	 * This method predicts a user's rating to an item with item-item similarities by default neighbor size
+	 */
+	public double predictItemBasedRating(int userId, int itemId){
+		return predictItemBasedRating(userId, itemId, NEIGHBOR_SIZE);
+	}
+	
+	/**
+	 * This method predicts a user's rating to an item with the latent factor model, O(factors)
+	 * @param userId
+	 * @param itemId
+	 * @return : 
+	 * 		- 0 if item is invalid or no model is set
+	 */
+	public double predictFactorRating(int userId, int itemId){
+		
+		if (!items.isValidItem(itemId) || factorModel == null) return 0;
+		return factorModel.predict(userId, itemId);
+	}
+	
+	/**
+	 * This method calculates the baseline rating
+	 * 	- with a baseline model (see setBaselineModel): its prediction, O(1)
+	 * 	- otherwise: the user's average plus the item's average offset from its raters' averages,
+	 * 	  O(raters) per call
 	 * @param userId
 	 * @param itemId
 	 * @return
 	 */
 	public double getBaselineRating(int userId, int itemId) {
-//		double itemAvg = items.getBaseline(itemId);
-		double userAvg = users.getUser(userId).getAverageRating();
-//		double overallAvg = items.getAverage();
+		if (!Metrics.ENABLED) return computeBaselineRating(userId, itemId);
 		
-		double userOffsetTotal = 0;
-		Set<Integer> ratedUsers = items.getItem(itemId).getRatedUsers();
-				
-		if (ratedUsers.isEmpty()) {
+		long start = System.nanoTime();
+		double score = computeBaselineRating(userId, itemId);
+		Metrics.BASELINE.record(System.nanoTime() - start);
+		return score;
+	}
+	
+	private double computeBaselineRating(int userId, int itemId) {
+		BaselineModel model = baselineModel;
+		if (model != null) return model.predict(userId, itemId);
+		
+		double userAvg = users.getUser(userId).getAverageRating();
+		RaterList raters = items.getRaters(itemId);
+		if (raters.isEmpty()) {
 			return userAvg;
 		}
 		
-		for (int user : ratedUsers) {
-			User u = users.getUser(user);
-			userOffsetTotal += u.getRating(itemId) - u.getAverageRating();
+		double userOffsetTotal = 0;
+		for (int p = 0; p < raters.size(); p++) {
+			userOffsetTotal += raters.getRating(p) - users.getUser(raters.getUserId(p)).getAverageRating();
 		}
-		
-//		System.out.println("UserOffset: " + userOffsetTotal/ratedUsers.size());		
-		return userAvg + userOffsetTotal/ratedUsers.size();
+		return userAvg + userOffsetTotal/raters.size();
+	}
+	
+	/**
+	 * This method is the prediction of a neighborhood predictor that has nothing to go on
+	 * @param userAverage : the user's average rating
+	 * @return the baseline model's prediction if a model is set; the user's average otherwise
+	 */
+	private double fallback(int userId, int itemId, double userAverage) {
+		BaselineModel model = baselineModel;
+		return model == null ? userAverage : model.predict(userId, itemId);
 	}
 	
 	/**
@@ -143,54 +313,404 @@ public class Prediction {
 	}
 	
 	/**
-	 * This method sorts a Map by its values and converts it to a List
-	 * @param map : <Integer, Double> pairs
-	 * @return List : <Integer, Double> pairs
+	 * This method selects the precomputed neighbors of a user who rated an item
+	 * @param graph : the neighbor graph, ordered by similarity
+	 * @param raters : the posting list of the item
+	 * @param userId
+	 * @param positions : receives the neighbors' positions in raters, most similar first
+	 * @param similarities : receives the neighbors' similarities
+	 * @return the number of neighbors selected, at most positions.length
 	 */
-	private List<Map.Entry<Integer, Double>> sortMapValueDesc(Map<Integer, Double> map){
-		
-		List<Map.Entry<Integer, Double>> list = 
-				new ArrayList<Map.Entry<Integer, Double>>(map.entrySet());
+	private int getPrecomputedNeighbors(NeighborGraph graph, RaterList raters, int userId, int[] positions, double[] similarities) {
+		int index = graph.indexOf(userId);
+		if (index < 0) return 0;
 		
-		Collections.sort(list, new Comparator<Map.Entry<Integer, Double>>() {
-			public int compare(Map.Entry<Integer, Double> o1,
-                                           Map.Entry<Integer, Double> o2) {
-				return (o2.getValue()).compareTo(o1.getValue());
+		int count = 0;
+		int end = graph.getEnd(index);
+		for (int p = graph.getStart(index); p < end && count < positions.length; p++) {
+			int position = raters.indexOf(graph.getNeighborId(p));
+			if (position >= 0) {
+				positions[count] = position;
+				similarities[count++] = graph.getSimilarity(p);
 			}
-		});
-		
-		return list;
+		}
+		return count;
 	}
 	
 	/**
 	 * This method recommends items for a particular user
+	 * 	- scores are the same as predictRating(userId, itemId, numOfNeighbors) for every unrated item,
+	 * 	  but the user's similarity to each neighbor is computed once per request:
+	 * 	  the neighbors, ordered by similarity, are walked once and each rating is added to its item
+	 * 	  until the item has numOfNeighbors contributions, which are exactly its top raters
+	 * 	- the similarities come from a NeighborGraph row, which stores them as floats; predictRating
+	 * 	  uses doubles, so a score may differ from it in the last digits (relative error about 1e-7),
+	 * 	  and neighbors whose similarities are equal as floats are taken in the row's order
+	 * 	- items that no neighbor rated score the fallback: the user's average rating, or the
+	 * 	  baseline if a baseline model is set
+	 * 	- with a candidate generator, only its candidates are scored and ranked
 	 * @param userId : the 
 	 * @param numOfItems : number of items to recommend
 	 * @param numOfNeighbors : number of neighbors when calculating similarities
 	 * @return
 	 */
 	public List<Integer> recommendItems(int userId, int numOfItems, int numOfNeighbors){
+		return recommendItems(userId, numOfItems, numOfNeighbors, ItemFilter.ALL);
+	}
+	
+	/**
+	 * This method recommends items for a particular user among the items that pass a filter
+	 * 	- the filter is applied when items are enumerated, not after scoring: the passing items
+	 * 	  come from ItemPool's filter index (genre and year-bucket lists), and items that fail
+	 * 	  are never scored
+	 * 	- when it is cheaper, the passing items are scored one by one from their posting lists,
+	 * 	  so the cost follows the filtered set; otherwise the neighbors' ratings are walked like
+	 * 	  for the whole catalog and only passing items are offered. Both give the scores of predictRating
+	 * 	- with a candidate generator, only candidates that pass the filter are taken
+	 * @param userId
+	 * @param numOfItems : number of items to recommend
+	 * @param numOfNeighbors : number of neighbors when calculating similarities
+	 * @param filter : e.g. ItemFilter.ALL.withAnyGenre("Comedy").withYears(1990, 1999)
+	 * @return
+	 */
+	public List<Integer> recommendItems(int userId, int numOfItems, int numOfNeighbors, ItemFilter filter){
+		return recommendItems(userId, numOfItems, numOfNeighbors, filter, null);
+	}
+	
+	/**
+	 * This method recommends items for a user from a neighbor row found beforehand
+	 * 	- used by RecommendationCache, which records the neighbors as dependencies before scoring
+	 * @param userId
+	 * @param numOfItems
+	 * @param numOfNeighbors
+	 * @param filter
+	 * @param row : returned by findNeighborRow(userId); null to find it here
+	 * @return
+	 */
+	List<Integer> recommendItems(int userId, int numOfItems, int numOfNeighbors, ItemFilter filter, NeighborRow row){
+		if (!Metrics.ENABLED) return rankItems(userId, numOfItems, numOfNeighbors, filter, row);
+		
+		long start = System.nanoTime();
+		List<Integer> result = rankItems(userId, numOfItems, numOfNeighbors, filter, row);
+		Metrics.RECOMMEND.record(System.nanoTime() - start);
+		return result;
+	}
+	
+	/**
+	 * This method finds the neighbors recommendItems scores a user from
+	 * 	- the precomputed graph (see setPrecomputedNeighbors), or the user's LSH candidates, or all
+	 * 	  co-raters; the first two are a restricted set of neighbors, the online search finds every
+	 * 	  similar user
+	 * @param userId
+	 * @return
+	 */
+	NeighborRow findNeighborRow(int userId) {
+		NeighborGraph graph = users.getNeighborGraph(false);
+		if (precomputedNeighbors && graph != null) return new NeighborRow(graph, true);
+		
+		UserLshIndex index = users.getLshIndex();
+		User user = users.getUser(userId);
+		if (index != null && user != null) {
+			return new NeighborRow(NeighborGraph.buildForUser(users, userId, index.getCandidates(user), Integer.MAX_VALUE, false), true);
+		}
+		return new NeighborRow(NeighborGraph.buildForUser(users, items, userId, Integer.MAX_VALUE, false), false);
+	}
+	
+	private List<Integer> rankItems(int userId, int numOfItems, int numOfNeighbors, ItemFilter filter, NeighborRow row) {
 		User user = users.getUser(userId);
+		int itemCount = items.getItemCount();
+		CandidateGenerator generator = candidateGenerator;
+		ItemFilterIndex filterIndex = filter.isAll() ? null : items.getFilterIndex();
 		
-		Set<Integer> itemIds = new HashSet<Integer>(); 
-		itemIds.addAll(items.getItemIds());
-		itemIds.removeAll(user.getRatedItems());
+		long time = System.nanoTime();
+		if (row == null) row = findNeighborRow(userId);
+		NeighborGraph graph = row.graph;
+		boolean precomputed = row.restricted;
 		
-		Map<Integer, Double> recommends = new HashMap<Integer, Double>();
-		for (int itemId : itemIds){
-			recommends.put(itemId, this.predictRating(userId, itemId, numOfNeighbors));
+		ItemScores scores = itemScores.get();
+		scores.ensureSize(itemCount);
+		TopK top = new TopK(numOfItems);
+		if (generator == null) {
+			int[] allowed = filterIndex == null ? null : filterIndex.select(filter);
+			if (allowed != null && preferCandidates(graph, user.getUserId(), allowed)) {
+				CandidateGenerator.Candidates candidates =
+						new CandidateGenerator.Candidates(items, itemCount, scores.chosen, user, allowed.length);
+				for (int j : allowed) candidates.addIndex(j);
+				scoreCandidates(user, graph, precomputed, numOfNeighbors, candidates, top);
+				candidates.reset();
+			} else {
+				scoreCatalog(user, graph, precomputed, numOfNeighbors, itemCount, allowed, scores, top);
+			}
+		} else {
+			generator.recordNeighbors(System.nanoTime() - time);
+			CandidateGenerator.Candidates candidates = new CandidateGenerator.Candidates(items, itemCount,
+					scores.chosen, user, generator.getBudget(), filterIndex, filter);
+			generator.generate(user, graph, candidates);
+			
+			time = System.nanoTime();
+			scoreCandidates(user, graph, precomputed, numOfNeighbors, candidates, top);
+			candidates.reset();
+			generator.recordScore(System.nanoTime() - time);
+			time = System.nanoTime();
 		}
 		
-		List<Map.Entry<Integer, Double>> list = this.sortMapValueDesc(recommends);
-		List<Integer> result = new ArrayList<Integer>();
+		int[] topIds = new int[top.size()];
+		int count = top.drainDescending(topIds, new double[top.size()]);
 		
-		for (int i = 0; i < list.size() && i < numOfItems; i++) {
-			result.add(list.get(i).getKey());
+		List<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			result.add(topIds[i]);
 		}
+		if (generator != null) generator.recordRank(System.nanoTime() - time);
 
 		return result;
 	}
 	
+	/**
+	 * This method chooses how to score the items that pass a filter
+	 * 	- one by one (scoreCandidates): a binary search in the neighbor row per rater of every item
+	 * 	- like the catalog (scoreCatalog): two lookups per rating of every neighbor
+	 * @param graph : graph with the user's neighbors
+	 * @param userId
+	 * @param allowed : internal indexes of the items that pass
+	 * @return true to score the items one by one
+	 */
+	private boolean preferCandidates(NeighborGraph graph, int userId, int[] allowed) {
+		int index = graph.indexOf(userId);
+		int start = index < 0 ? 0 : graph.getStart(index);
+		int end = index < 0 ? 0 : graph.getEnd(index);
+		long catalogCost = 0;
+		for (int p = start; p < end; p++) {
+			catalogCost += 2 * users.getUser(graph.getNeighborId(p)).getProfile().size();
+		}
+		
+		long searchCost = 33 - Integer.numberOfLeadingZeros(end - start);
+		long candidateCost = 0;
+		for (int i = 0; i < allowed.length && candidateCost < catalogCost; i++) {
+			candidateCost += 1 + searchCost * items.getItemByIndex(allowed[i]).getRaters().size();
+		}
+		return candidateCost < catalogCost;
+	}
+	
+	/**
+	 * This method scores every unrated item in two passes over the neighbors' ratings
+	 * 	- similarities are the graph's floats, widened to double (see recommendItems)
+	 * @param user
+	 * @param graph : graph with the user's neighbors, most similar first
+	 * @param precomputed : true if graph holds a restricted set of neighbors (the precomputed
+	 * 	  graph or the LSH candidates)
+	 * @param numOfNeighbors
+	 * @param itemCount : items with an internal index below itemCount are scored
+	 * @param allowed : internal indexes of the items to score, ascending; null for all items
+	 * @param scores : per-item accumulators by internal index, all zero; left all zero
+	 * @param top : receives the scores
+	 */
+	private void scoreCatalog(User user, NeighborGraph graph, boolean precomputed, int numOfNeighbors,
+			int itemCount, int[] allowed, ItemScores scores, TopK top) {
+		double average = user.getAverageRating();
+		int index = graph.indexOf(user.getUserId());
+		int start = index < 0 ? 0 : graph.getStart(index);
+		int end = index < 0 ? 0 : graph.getEnd(index);
+		double[] sum1 = scores.sum1;
+		double[] sum2 = scores.sum2;
+		int[] used = scores.used;
+		int[] neighborCount = scores.neighborCount;
+		int[] touched = scores.touched;
+		int touchedCount = 0;
+		
+		// only the allowed items are offered; a selective filter also skips the other items'
+		// ratings in both passes, a loose one would only add a branch that mispredicts
+		boolean[] flagged = scores.chosen;
+		boolean skip = allowed != null && allowed.length < itemCount / SELECTIVE_FILTER_RATIO;
+		if (skip) {
+			for (int j : allowed) {
+				if (j < itemCount) flagged[j] = true;
+			}
+		}
+		
+		// first pass: how many of each item's raters are neighbors (non-zero similarity)
+		for (int p = start; p < end; p++) {
+			User.Profile neighbor = users.getUser(graph.getNeighborId(p)).getProfile();
+			for (User.Cursor cursor = neighbor.cursor(); cursor.next();) {
+				int j = items.indexOf(cursor.getItemId());
+				if (j < 0 || j >= itemCount || (skip && !flagged[j])) continue;
+				if (neighborCount[j]++ == 0) touched[touchedCount++] = j;
+			}
+		}
+		
+		// second pass: add ratings in similarity order; online, raters with similarity 0 rank
+		// between the positive and the negative neighbors, so they take slots from the negative ones
+		for (int p = start; p < end; p++) {
+			double sim = graph.getSimilarity(p);
+			User.Profile neighbor = users.getUser(graph.getNeighborId(p)).getProfile();
+			double neighborAverage = neighbor.getAverageRating();
+			for (User.Cursor cursor = neighbor.cursor(); cursor.next();) {
+				int j = items.indexOf(cursor.getItemId());
+				if (j < 0 || j >= itemCount || (skip && !flagged[j])) continue;
+				int slots = used[j];
+				if (sim < 0 && !precomputed) slots += items.getItemByIndex(j).getRaters().size() - neighborCount[j];
+				if (slots >= numOfNeighbors) continue;
+				
+				used[j]++;
+				sum1[j] += sim * (cursor.getRating() - neighborAverage);
+				sum2[j] += Math.abs(sim);
+			}
+		}
+		
+		int scored = allowed == null ? itemCount : allowed.length;
+		for (int i = 0; i < scored; i++) {
+			int j = allowed == null ? i : allowed[i];
+			if (j >= itemCount) continue;
+			int itemId = items.getItemId(j);
+			if (user.isRated(itemId)) continue;
+			top.offer(itemId, sum2[j] == 0 ? fallback(user.getUserId(), itemId, average) : average + sum1[j]/sum2[j]);
+		}
+		if (skip) {
+			for (int j : allowed) {
+				if (j < itemCount) flagged[j] = false;
+			}
+		}
+		for (int t = 0; t < touchedCount; t++) {
+			int j = touched[t];
+			sum1[j] = 0;
+			sum2[j] = 0;
+			used[j] = 0;
+			neighborCount[j] = 0;
+		}
+	}
+	
+	/**
+	 * This method scores the candidates one by one, like predictRating, from their posting lists
+	 * 	- similarities are looked up in the user's neighbor row instead of being recomputed,
+	 * 	  so they are the graph's floats, as in scoreCatalog
+	 * 	- cost: O(neighbors log neighbors + candidate raters), independent of the catalog size
+	 * @param user
+	 * @param graph : graph with the user's neighbors, most similar first
+	 * @param precomputed : true if graph holds a restricted set of neighbors; then only
+	 * 	  graph neighbors count, otherwise raters missing from the row have similarity 0
+	 * @param numOfNeighbors
+	 * @param candidates
+	 * @param top : receives the scores
+	 */
+	private void scoreCandidates(User user, NeighborGraph graph, boolean precomputed, int numOfNeighbors,
+			CandidateGenerator.Candidates candidates, TopK top) {
+		int index = graph.indexOf(user.getUserId());
+		int start = index < 0 ? 0 : graph.getStart(index);
+		int n = index < 0 ? 0 : graph.getEnd(index) - start;
+		
+		// the row sorted by neighbor id: id in the high 32 bits, position in the low 32 bits
+		long[] byId = new long[n];
+		for (int p = 0; p < n; p++) {
+			byId[p] = ((long) graph.getNeighborId(start + p) << 32) | p;
+		}
+		Arrays.sort(byId);
+		int[] neighborIds = new int[n];
+		for (int p = 0; p < n; p++) {
+			neighborIds[p] = (int) (byId[p] >> 32);
+		}
+		
+		// raters are ranked by their position in the row, which keeps the row's order for
+		// similarities that are equal as floats; raters missing from the row rank after it
+		TopK raterTop = new TopK(numOfNeighbors);
+		int[] rankToPosition = new int[n];
+		int[] positions = new int[Math.max(0, numOfNeighbors)];
+		double[] similarities = new double[Math.max(0, numOfNeighbors)];
+		for (int i = 0; i < candidates.size(); i++) {
+			int itemIndex = candidates.getIndex(i);
+			int itemId = items.getItemId(itemIndex);
+			RaterList raters = items.getItemByIndex(itemIndex).getRaters();
+			
+			raterTop.clear();
+			for (int p = 0; p < raters.size(); p++) {
+				int found = Arrays.binarySearch(neighborIds, raters.getUserId(p));
+				if (found >= 0) {
+					int rank = (int) byId[found];
+					rankToPosition[rank] = p;
+					raterTop.offer(rank, graph.getSimilarity(start + rank));
+				} else if (!precomputed) {
+					raterTop.offer(n + p, 0);
+				}
+			}
+			int count = raterTop.drainDescending(positions, similarities);
+			for (int t = 0; t < count; t++) {
+				positions[t] = positions[t] < n ? rankToPosition[positions[t]] : positions[t] - n;
+			}
+			top.offer(itemId, getAverageRating(user.getUserId(), itemId, raters, positions, similarities, count));
+		}
+	}
+	
+	/**
+	 * This method recommends items for a particular user with item-item similarities
+	 * 	- every rated item votes for its similar items in the matrix, weighted by similarity
+	 * 	  and by the user's offset on the rated item; cost is O(profile x K), not O(catalog)
+	 * 	- items that no rated item points to are not recommended
+	 * @param userId
+	 * @param numOfItems : number of items to recommend
+	 * @return item ids, best first; empty if the similarity matrix is not built
+	 */
+	public List<Integer> recommendItemsItemBased(int userId, int numOfItems){
+		List<Integer> result = new ArrayList<Integer>();
+		ItemSimilarityMatrix matrix = items.getSimilarityMatrix();
+		if (matrix == null) return result;
+		
+		User.Profile user = users.getUser(userId).getProfile();
+		double average = user.getAverageRating();
+		ItemScores scores = itemScores.get();
+		scores.ensureSize(matrix.getItemCount());
+		double[] sum1 = scores.sum1;
+		double[] sum2 = scores.sum2;
+		int[] touched = scores.touched;
+		int touchedCount = 0;
+		
+		for (int r = 0; r < user.size(); r++) {
+			int index = matrix.indexOf(user.getItemIdAt(r));
+			if (index < 0) continue;
+			
+			double offset = user.getRatingAt(r) - average;
+			int end = matrix.getEnd(index);
+			for (int p = matrix.getStart(index); p < end; p++) {
+				int candidate = matrix.indexOf(matrix.getNeighborId(p));
+				if (sum2[candidate] == 0) touched[touchedCount++] = candidate;
+				double sim = matrix.getSimilarity(p);
+				sum1[candidate] += sim * offset;
+				sum2[candidate] += sim;
+			}
+		}
+		
+		TopK top = new TopK(numOfItems);
+		for (int t = 0; t < touchedCount; t++) {
+			int candidate = touched[t];
+			int itemId = matrix.getItemId(candidate);
+			if (!user.isRated(itemId)) top.offer(itemId, average + sum1[candidate]/sum2[candidate]);
+			sum1[candidate] = 0;
+			sum2[candidate] = 0;
+		}
+		
+		int[] itemIds = new int[top.size()];
+		int count = top.drainDescending(itemIds, new double[top.size()]);
+		for (int i = 0; i < count; i++) {
+			result.add(itemIds[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * This method recommends items for a particular user with the latent factor model
+	 * 	- every item is scored with one dot product; rated items are skipped
+	 * @param userId
+	 * @param numOfItems : number of items to recommend
+	 * @return item ids, best first; empty if no model is set
+	 */
+	public List<Integer> recommendItemsFactor(int userId, int numOfItems){
+		List<Integer> result = new ArrayList<Integer>();
+		if (factorModel == null) return result;
+		
+		for (int itemId : factorModel.recommend(userId, numOfItems, users.getUser(userId))) {
+			result.add(itemId);
+		}
+		return result;
+	}
+	
 	/**
 	 * This method prints the recommended items for the user provided
 	 */
@@ -201,25 +721,77 @@ public class Prediction {
 		}
 	}
 	
+	/**
+	 * This class is the neighbor row of a user that recommendItems scores from
+	 * 	- restricted: the row holds a restricted set of neighbors (the precomputed graph or the
+	 * 	  LSH candidates), so raters outside it do not count
+	 */
+	static final class NeighborRow {
+		final NeighborGraph graph;
+		final boolean restricted;
+		
+		NeighborRow(NeighborGraph graph, boolean restricted) {
+			this.graph = graph;
+			this.restricted = restricted;
+		}
+		
+		/**
+		 * This method returns the user's top neighbors in the row
+		 * @param userId
+		 * @param k
+		 * @return neighbor ids, most similar first
+		 */
+		List<Integer> getNeighbors(int userId, int k) {
+			return graph.getNeighbors(userId, k, Double.NEGATIVE_INFINITY);
+		}
+	}
+	
+	/**
+	 * This class holds per-item score sums that are reused across requests on one thread
+	 * 	- only touched entries are reset, so a request costs O(touched), not O(catalog)
+	 */
+	private static class ItemScores {
+		double[] sum1 = new double[0];
+		double[] sum2 = new double[0];
+		int[] used = new int[0];
+		int[] neighborCount = new int[0];
+		boolean[] chosen = new boolean[0];
+		int[] touched = new int[0];
+		
+		void ensureSize(int size) {
+			if (sum1.length == size) return;
+			sum1 = new double[size];
+			sum2 = new double[size];
+			used = new int[size];
+			neighborCount = new int[size];
+			chosen = new boolean[size];
+			touched = new int[size];
+		}
+	}
+	
 	/**
 	 * This methods calculates the weighted average rating for an item 
 	 * @param userId : the user for which to predict a rating
-	 * @param neighbors : <Integer, Double> pairs
-	 * @param itemId
-	 * @return
+	 * @param itemId : the item to predict
+	 * @param raters : the posting list of the item
+	 * @param positions : positions of the neighbors in raters
+	 * @param similarities : similarities of the neighbors, parallel to positions
+	 * @param count : number of neighbors
+	 * @return the fallback (see setBaselineModel) if no neighbor has a non-zero similarity
 	 */
-	private double getAverageRating(int userId, List<Map.Entry<Integer, Double>> neighbors, int itemId) {
+	private double getAverageRating(int userId, int itemId, RaterList raters, int[] positions, double[] similarities, int count) {
 		double score = 0;
 		double sum1 = 0, sum2 = 0;
 		
 		score += users.getUser(userId).getAverageRating();
-		for (Map.Entry<Integer, Double> n : neighbors) {
-			User u = users.getUser(n.getKey());
-			sum1 += n.getValue() * (u.getRating(itemId) - u.getAverageRating());
-			sum2 += Math.abs(n.getValue());
+		for (int i = 0; i < count; i++) {
+			int p = positions[i];
+			User u = users.getUser(raters.getUserId(p));
+			sum1 += similarities[i] * (raters.getRating(p) - u.getAverageRating());
+			sum2 += Math.abs(similarities[i]);
 		}
 		
-		if (sum2 == 0) return score;
+		if (sum2 == 0) return fallback(userId, itemId, score);
 		return score + sum1/sum2;
 	}
 
@@ -0,0 +1,249 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * This class is the posting list of an item: every user who rated it, with the rating
+ * 	- user ids are kept in a sorted int array
+ * 	- ratings are kept in a parallel float array
+ * Together the lists of all items form a column-major (CSC-style) copy of the rating matrix.
+ * A list is immutable; an item publishes a new list for every rating.
+ * A list attached to a snapshot reads a range of off-heap buffers instead of arrays,
+ * until the item's first new rating copies it to the heap
+ * @author Yibang Chen
+ *
+ */
+public class RaterList {
+	
+	private static final int INITIAL_CAPACITY = 4;
+	
+	private final int[] userIds;
+	private final float[] ratings;
+	private final IntBuffer userIdBuffer;
+	private final FloatBuffer ratingBuffer;
+	private final int offset;
+	private final int size;
+	private final double average;
+	
+	public RaterList() {
+		this(new int[INITIAL_CAPACITY], new float[INITIAL_CAPACITY], 0, 0);
+	}
+	
+	/**
+	 * This constructor restores a posting list from a snapshot
+	 * @param userIds : sorted ascending, owned by the new list
+	 * @param ratings : parallel to userIds, owned by the new list
+	 * @param average : average of the ratings
+	 */
+	RaterList(int[] userIds, float[] ratings, double average) {
+		this(userIds, ratings, userIds.length, average);
+	}
+	
+	private RaterList(int[] userIds, float[] ratings, int size, double average) {
+		this.userIds = userIds;
+		this.ratings = ratings;
+		this.userIdBuffer = null;
+		this.ratingBuffer = null;
+		this.offset = 0;
+		this.size = size;
+		this.average = average;
+	}
+	
+	/**
+	 * This constructor attaches a posting list to a range of off-heap buffers, without copying
+	 * @param userIds : user ids of all items, sorted ascending within the range
+	 * @param ratings : parallel to userIds
+	 * @param offset : start of the item's range
+	 * @param size : length of the item's range
+	 * @param average : average of the ratings
+	 */
+	RaterList(IntBuffer userIds, FloatBuffer ratings, int offset, int size, double average) {
+		this.userIds = null;
+		this.ratings = null;
+		this.userIdBuffer = userIds;
+		this.ratingBuffer = ratings;
+		this.offset = offset;
+		this.size = size;
+		this.average = average;
+	}
+	
+	/**
+	 * This method returns the list with the rating of a user added or replaced
+	 * 	- a list is immutable, so readers can walk it while a writer builds the next one
+	 * 	- ratings files are sorted by user id, so appending is the common case:
+	 * 	  the new list shares the arrays and only uses the spare capacity past size()
+	 * 	- a replacement or an insertion copies the arrays
+	 * 	- the average is a running mean: a new rating moves it by (rating - average)/count,
+	 * 	  a replaced rating by (rating - previous)/count
+	 * Because appends share the arrays, it must only be called on the newest list of an item,
+	 * by one writer at a time
+	 * @param userId
+	 * @param rating
+	 * @return the new list
+	 */
+	RaterList withRating(int userId, float rating) {
+		if (userIds == null) {
+			// an off-heap list is copied to the heap first, with room to grow
+			int[] userIdsCopy = new int[Math.max(size + 1, size + (size >> 1))];
+			float[] ratingsCopy = new float[userIdsCopy.length];
+			for (int p = 0; p < size; p++) {
+				userIdsCopy[p] = getUserId(p);
+				ratingsCopy[p] = getRating(p);
+			}
+			return new RaterList(userIdsCopy, ratingsCopy, size, average).withRating(userId, rating);
+		}
+		if (size == 0 || userIds[size-1] < userId) {
+			int[] newUserIds = userIds;
+			float[] newRatings = ratings;
+			if (size == userIds.length) {
+				int newCapacity = Math.max(size + 1, size + (size >> 1));
+				newUserIds = Arrays.copyOf(userIds, newCapacity);
+				newRatings = Arrays.copyOf(ratings, newCapacity);
+			}
+			newUserIds[size] = userId;
+			newRatings[size] = rating;
+			return new RaterList(newUserIds, newRatings, size + 1, average + (rating - average)/ (size + 1));
+		}
+		
+		int index = Arrays.binarySearch(userIds, 0, size, userId);
+		if (index >= 0) {
+			float[] newRatings = ratings.clone();
+			newRatings[index] = rating;
+			return new RaterList(userIds, newRatings, size, average + (rating - ratings[index])/ size);
+		}
+		
+		int insertAt = -index - 1;
+		int newCapacity = size < userIds.length ? userIds.length : Math.max(size + 1, size + (size >> 1));
+		int[] newUserIds = new int[newCapacity];
+		float[] newRatings = new float[newCapacity];
+		System.arraycopy(userIds, 0, newUserIds, 0, insertAt);
+		System.arraycopy(ratings, 0, newRatings, 0, insertAt);
+		System.arraycopy(userIds, insertAt, newUserIds, insertAt + 1, size - insertAt);
+		System.arraycopy(ratings, insertAt, newRatings, insertAt + 1, size - insertAt);
+		newUserIds[insertAt] = userId;
+		newRatings[insertAt] = rating;
+		return new RaterList(newUserIds, newRatings, size + 1, average + (rating - average)/ (size + 1));
+	}
+	
+	/**
+	 * This method finds the rating of a user
+	 * @param userId
+	 * @return the rating; NaN if the user has not rated the item
+	 */
+	public float findRating(int userId) {
+		if (size == 0 || getUserId(size-1) < userId) return Float.NaN;
+		int index = indexOf(userId);
+		return index >= 0 ? getRating(index) : Float.NaN;
+	}
+	
+	/**
+	 * This method returns the average rating of the item, kept up to date by withRating
+	 * @return
+	 */
+	public double getAverage() {
+		return average;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * This method returns the user id at a position of the list
+	 * @param index : 0 <= index < size()
+	 * @return
+	 */
+	public int getUserId(int index) {
+		return userIds != null ? userIds[index] : userIdBuffer.get(offset + index);
+	}
+	
+	/**
+	 * This method returns the rating at a position of the list
+	 * @param index : 0 <= index < size()
+	 * @return
+	 */
+	public float getRating(int index) {
+		return ratings != null ? ratings[index] : ratingBuffer.get(offset + index);
+	}
+	
+	/**
+	 * This method finds the position of a user in the list
+	 * @param userId
+	 * @return the position; negative if the user has not rated the item
+	 */
+	public int indexOf(int userId) {
+		if (userIds != null) return Arrays.binarySearch(userIds, 0, size, userId);
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = userIdBuffer.get(offset + mid);
+			if (value < userId) low = mid + 1;
+			else if (value > userId) high = mid - 1;
+			else return mid;
+		}
+		return -(low + 1);
+	}
+	
+	public boolean contains(int userId) {
+		return indexOf(userId) >= 0;
+	}
+	
+	/**
+	 * This method tells if the list is read from off-heap buffers
+	 * @return
+	 */
+	public boolean isOffHeap() {
+		return userIds == null;
+	}
+	
+	/**
+	 * This method returns a copy without spare capacity, once loading is done
+	 * @return
+	 */
+	RaterList trimToSize() {
+		if (userIds == null || userIds.length == size) return this;
+		return new RaterList(Arrays.copyOf(userIds, size), Arrays.copyOf(ratings, size), size, average);
+	}
+	
+	/**
+	 * This method returns a read-only view of the user ids, in ascending order
+	 * @return
+	 */
+	public Set<Integer> asUserSet() {
+		return new AbstractSet<Integer>() {
+			@Override
+			public boolean contains(Object o) {
+				return (o instanceof Integer) && RaterList.this.contains((Integer) o);
+			}
+			
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<Integer>() {
+					private int next = 0;
+					
+					public boolean hasNext() {
+						return next < size;
+					}
+					
+					public Integer next() {
+						if (next >= size) throw new NoSuchElementException();
+						return getUserId(next++);
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,91 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This singleton class accepts new or changed ratings while the system is serving
+ * 	- it updates the user (ratings, average, magnitude) and the item (posting list, average)
+ * 	  and the overall average, each in O(1) plus the O(log n) position search
+ * 	- cached similarities are dropped through the users' rating versions
+ * 	- other derived data registers a RatingListener
+ * addRating can be called from many threads: ratings of different users are written in parallel,
+ * and readers never wait for a writer. The user and the item of a rating are written under the
+ * user's lock, so concurrent writes of the same user reach the user and the posting list in the
+ * same order, and every write sees the previous rating it replaces. Listeners are called after
+ * the lock is released, possibly out of order for the same pair; the (previous, rating) changes
+ * they receive still add up to the final state
+ * Ratings are on the MovieLens scale, MIN_RATING to MAX_RATING; anything else, NaN and infinity
+ * included, is rejected before it reaches the pools, since the listeners take a NaN previous
+ * rating to mean a new rating and every statistic it reached would turn NaN.
+ * The precomputed neighbor graphs are not rebuilt; they are an offline model
+ * @author Yibang Chen
+ *
+ */
+public class RatingIngestor {
+	
+	public static final float MIN_RATING = 0.5f;
+	public static final float MAX_RATING = 5.0f;
+	
+	private static final RatingIngestor instance = new RatingIngestor();
+	private UserPool users;
+	private ItemPool items;
+	private List<RatingListener> listeners;
+	
+	private RatingIngestor() {
+		users = UserPool.getInstance();
+		items = ItemPool.getInstance();
+		listeners = new CopyOnWriteArrayList<RatingListener>();
+	}
+	
+	/**
+	 * This method ensures singleton design
+	 * @return the RatingIngestor instance
+	 */
+	public static RatingIngestor getInstance() {
+		return instance;
+	}
+	
+	public void addListener(RatingListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(RatingListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * This method tells if a rating is on the rating scale
+	 * @param rating
+	 * @return false for NaN, infinity and values outside [MIN_RATING, MAX_RATING]
+	 */
+	public static boolean isValidRating(float rating) {
+		return rating >= MIN_RATING && rating <= MAX_RATING;
+	}
+	
+	/**
+	 * This method adds or replaces a rating
+	 * 	- an unknown user is created
+	 * @param userId
+	 * @param itemId
+	 * @param rating : MIN_RATING to MAX_RATING
+	 * @return false if the item is not imported; true otherwise
+	 * @throws IllegalArgumentException if the rating is not on the scale (see isValidRating)
+	 */
+	public boolean addRating(int userId, int itemId, float rating) {
+		if (!isValidRating(rating)) {
+			throw new IllegalArgumentException("Rating must be between " + MIN_RATING + " and " + MAX_RATING + ": " + rating);
+		}
+		if (!items.isValidItem(itemId)) return false;
+		
+		User user = users.getOrCreateUser(userId);
+		float previous;
+		synchronized (user) {
+			previous = user.addRating(itemId, rating);
+			items.addRating(itemId, userId, rating);
+		}
+		
+		for (RatingListener listener : listeners) {
+			listener.ratingChanged(userId, itemId, previous, rating);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * This interface is notified by RatingIngestor whenever a rating is added or changed
+ * 	- listeners keep derived data (caches, models, indexes) consistent with the ratings
+ * 	- it is called on the ingesting thread, after the pools are updated
+ * @author Yibang Chen
+ *
+ */
+public interface RatingListener {
+	
+	/**
+	 * @param userId
+	 * @param itemId
+	 * @param previous : the replaced rating; NaN if the rating is new
+	 * @param rating : the new rating
+	 */
+	public void ratingChanged(int userId, int itemId, float previous, float rating);
+}
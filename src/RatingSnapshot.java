@@ -0,0 +1,607 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class reads and writes the binary snapshot of the imported data
+ * 	- dense id maps: sorted user ids and item ids; a user's or item's index is its position
+ * 	- CSR ratings by user (item ids, ratings) and CSC ratings by item (user ids, ratings)
+ * 	- precomputed user rating sums and square sums, item averages, the overall average
+ * 	- item metadata (title, year, categories)
+ * 	- size and modification time of the source files, so a stale snapshot is detected (see isCurrent)
+ * Every section is mapped separately with FileChannel.map, so the rating arrays are read
+ * straight from the page cache and no section is limited by the size of one mapping.
+ * A snapshot is written to a temporary file and moved over the old one, so a reader never
+ * sees a partly written file and mappings of the old file stay valid
+ * 
+ * File layout (little endian, every section starts on an 8-byte boundary):
+ * 	header : magic, version, userCount, itemCount, ratingCount, overallCount (ints), overallAverage
+ * 	sources: count (int), then size and modification time (longs) per source file
+ * 	users  : ids, offsets (userCount + 1), rating sums (double), square sums (double)
+ * 	CSR    : item ids, ratings (ratingCount each)
+ * 	items  : ids, years, averages (double), offsets (itemCount + 1)
+ * 	CSC    : user ids, ratings (ratingCount each)
+ * 	text   : offsets (itemCount + 1), then UTF-8 "title\ncategory|category" per item
+ * @author Yibang Chen
+ *
+ */
+public class RatingSnapshot {
+	
+	private static final int MAGIC = 0x4d4c534e; // "MLSN"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 32;
+	
+	private final int userCount;
+	private final int itemCount;
+	private final int ratingCount;
+	private final double overallAverage;
+	private final int overallCount;
+	private final long[] sources;
+	
+	private final IntBuffer userIds;
+	private final IntBuffer userOffsets;
+	private final DoubleBuffer userRatingSums;
+	private final DoubleBuffer userSquareSums;
+	private final IntBuffer ratingItems;
+	private final FloatBuffer ratingValues;
+	private final IntBuffer itemIds;
+	private final IntBuffer itemYears;
+	private final DoubleBuffer itemAverages;
+	private final IntBuffer itemOffsets;
+	private final IntBuffer raterIds;
+	private final FloatBuffer raterValues;
+	private final IntBuffer textOffsets;
+	private final ByteBuffer text;
+	
+	private RatingSnapshot(FileChannel channel) throws IOException {
+		ByteBuffer header = map(channel, 0, HEADER_BYTES);
+		if (header.getInt(0) != MAGIC) throw new IOException("Not a rating snapshot file");
+		int version = header.getInt(4);
+		if (version != VERSION) throw new IOException("Unsupported rating snapshot version: " + version);
+		
+		userCount = header.getInt(8);
+		itemCount = header.getInt(12);
+		ratingCount = header.getInt(16);
+		overallCount = header.getInt(20);
+		overallAverage = header.getDouble(24);
+		
+		long position = HEADER_BYTES;
+		int sourceCount = map(channel, position, 4).getInt(0);
+		position = align(position + 4);
+		sources = new long[2 * sourceCount];
+		map(channel, position, 8L * sources.length).asLongBuffer().get(sources);
+		position += 8L * sources.length;
+		userIds = map(channel, position, 4L * userCount).asIntBuffer();
+		position = align(position + 4L * userCount);
+		userOffsets = map(channel, position, 4L * (userCount + 1)).asIntBuffer();
+		position = align(position + 4L * (userCount + 1));
+		userRatingSums = map(channel, position, 8L * userCount).asDoubleBuffer();
+		position = align(position + 8L * userCount);
+		userSquareSums = map(channel, position, 8L * userCount).asDoubleBuffer();
+		position = align(position + 8L * userCount);
+		ratingItems = map(channel, position, 4L * ratingCount).asIntBuffer();
+		position = align(position + 4L * ratingCount);
+		ratingValues = map(channel, position, 4L * ratingCount).asFloatBuffer();
+		position = align(position + 4L * ratingCount);
+		itemIds = map(channel, position, 4L * itemCount).asIntBuffer();
+		position = align(position + 4L * itemCount);
+		itemYears = map(channel, position, 4L * itemCount).asIntBuffer();
+		position = align(position + 4L * itemCount);
+		itemAverages = map(channel, position, 8L * itemCount).asDoubleBuffer();
+		position = align(position + 8L * itemCount);
+		itemOffsets = map(channel, position, 4L * (itemCount + 1)).asIntBuffer();
+		position = align(position + 4L * (itemCount + 1));
+		raterIds = map(channel, position, 4L * ratingCount).asIntBuffer();
+		position = align(position + 4L * ratingCount);
+		raterValues = map(channel, position, 4L * ratingCount).asFloatBuffer();
+		position = align(position + 4L * ratingCount);
+		textOffsets = map(channel, position, 4L * (itemCount + 1)).asIntBuffer();
+		position = align(position + 4L * (itemCount + 1));
+		text = map(channel, position, channel.size() - position);
+	}
+	
+	/**
+	 * This method opens a snapshot file by memory-mapping its sections
+	 * 	- the mappings stay valid after the file is closed
+	 * @param path
+	 * @return the snapshot
+	 * @throws IOException if the file cannot be read or is not a snapshot of this version
+	 */
+	public static RatingSnapshot open(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			return new RatingSnapshot(file.getChannel());
+		} finally {
+			file.close();
+		}
+	}
+	
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+	
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+	
+	/**
+	 * This method reads the size and modification time of source files, to be recorded in a snapshot
+	 * 	- read them before parsing the files, so a change during the parse makes the snapshot stale
+	 * @param files
+	 * @return size and modification time per file; 0 for a file that does not exist
+	 */
+	public static long[] stat(File... files) {
+		long[] result = new long[2 * files.length];
+		for (int i = 0; i < files.length; i++) {
+			result[2 * i] = files[i].length();
+			result[2 * i + 1] = files[i].lastModified();
+		}
+		return result;
+	}
+	
+	/**
+	 * This method tells if the snapshot was written from these source files as they are now
+	 * @param files : the source files, in the order they were given to stat
+	 * @return false if a file's size or modification time changed, or the files differ in number
+	 */
+	public boolean isCurrent(File... files) {
+		return Arrays.equals(sources, stat(files));
+	}
+	
+	/**
+	 * This method writes the users and items of the pools to a snapshot file, without sources
+	 * @param path
+	 * @param users
+	 * @param items
+	 * @throws IOException
+	 */
+	public static void write(String path, UserPool users, ItemPool items) throws IOException {
+		write(path, users, items, new long[0]);
+	}
+	
+	/**
+	 * This method writes the users and items of the pools to a snapshot file
+	 * 	- every user and posting list is read once, so each one is written consistently
+	 * 	  even while ratings are being added; the check below fails if users and items disagree
+	 * 	- the file is written next to path and moved over it atomically; on failure path is unchanged
+	 * @param path
+	 * @param users
+	 * @param items
+	 * @param sources : returned by stat for the files the pools were imported from
+	 * @throws IOException
+	 */
+	public static void write(String path, UserPool users, ItemPool items, long[] sources) throws IOException {
+		int[] sortedUsers = sortedIds(users.getUsers());
+		int[] sortedItems = sortedIds(items.getItemIds());
+		User.Profile[] profiles = new User.Profile[sortedUsers.length];
+		int ratings = 0;
+		for (int u = 0; u < sortedUsers.length; u++) {
+			profiles[u] = users.getUser(sortedUsers[u]).getProfile();
+			ratings += profiles[u].size();
+		}
+		RaterList[] raterLists = new RaterList[sortedItems.length];
+		int postings = 0;
+		for (int i = 0; i < sortedItems.length; i++) {
+			raterLists[i] = items.getRaters(sortedItems[i]);
+			postings += raterLists[i].size();
+		}
+		if (postings != ratings) {
+			throw new IOException("Users hold " + ratings + " ratings but items hold " + postings);
+		}
+		
+		Path target = new File(path).getAbsoluteFile().toPath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+		boolean moved = false;
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+		try {
+			Writer out = new Writer(channel);
+			
+			out.putInt(MAGIC).putInt(VERSION).putInt(sortedUsers.length).putInt(sortedItems.length)
+				.putInt(ratings).putInt(items.getRatingCount()).putDouble(items.getAverage());
+			out.putInt(sources.length / 2);
+			out.align();
+			for (long value : sources) out.putLong(value);
+			
+			for (int userId : sortedUsers) out.putInt(userId);
+			out.align();
+			int offset = 0;
+			out.putInt(0);
+			for (User.Profile profile : profiles) {
+				offset += profile.size();
+				out.putInt(offset);
+			}
+			out.align();
+			for (User.Profile profile : profiles) out.putDouble(profile.getRatingSum());
+			out.align();
+			for (User.Profile profile : profiles) out.putDouble(profile.getSquareSum());
+			out.align();
+			for (User.Profile profile : profiles) {
+				for (int i = 0; i < profile.size(); i++) out.putInt(profile.getItemIdAt(i));
+			}
+			out.align();
+			for (User.Profile profile : profiles) {
+				for (int i = 0; i < profile.size(); i++) out.putFloat(profile.getRatingAt(i));
+			}
+			out.align();
+			
+			for (int itemId : sortedItems) out.putInt(itemId);
+			out.align();
+			for (int itemId : sortedItems) {
+				Item item = items.getItem(itemId);
+				out.putInt(item instanceof MovieItem ? ((MovieItem) item).getYear() : 0);
+			}
+			out.align();
+			for (RaterList raters : raterLists) out.putDouble(raters.getAverage());
+			out.align();
+			offset = 0;
+			out.putInt(0);
+			for (RaterList raters : raterLists) {
+				offset += raters.size();
+				out.putInt(offset);
+			}
+			out.align();
+			for (RaterList raters : raterLists) {
+				for (int p = 0; p < raters.size(); p++) out.putInt(raters.getUserId(p));
+			}
+			out.align();
+			for (RaterList raters : raterLists) {
+				for (int p = 0; p < raters.size(); p++) out.putFloat(raters.getRating(p));
+			}
+			out.align();
+			
+			byte[][] texts = new byte[sortedItems.length][];
+			offset = 0;
+			out.putInt(0);
+			for (int i = 0; i < sortedItems.length; i++) {
+				texts[i] = itemText(items.getItem(sortedItems[i]));
+				offset += texts[i].length;
+				out.putInt(offset);
+			}
+			out.align();
+			for (byte[] bytes : texts) out.putBytes(bytes);
+			out.flush();
+			channel.force(false);
+			channel.close();
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			channel.close();
+			if (!moved) Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * This method encodes the title and categories of an item as "title\ncategory|category"
+	 */
+	private static byte[] itemText(Item item) {
+		StringBuilder sb = new StringBuilder(item.getTitle() == null ? "" : item.getTitle()).append('\n');
+		if (item instanceof MovieItem && ((MovieItem) item).getCategories() != null) {
+			sb.append(String.join("|", ((MovieItem) item).getCategories()));
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static int[] sortedIds(Set<Integer> ids) {
+		int[] result = new int[ids.size()];
+		int i = 0;
+		for (int id : ids) result[i++] = id;
+		Arrays.sort(result);
+		return result;
+	}
+	
+	public int getUserCount() {
+		return userCount;
+	}
+	
+	public int getItemCount() {
+		return itemCount;
+	}
+	
+	public int getRatingCount() {
+		return ratingCount;
+	}
+	
+	public double getOverallAverage() {
+		return overallAverage;
+	}
+	
+	/**
+	 * This method returns the number of ratings the overall average was computed from
+	 * @return
+	 */
+	public int getOverallCount() {
+		return overallCount;
+	}
+	
+	/**
+	 * This method returns the raw id of the user at a dense index
+	 * @param index : 0 <= index < getUserCount()
+	 * @return
+	 */
+	public int getUserId(int index) {
+		return userIds.get(index);
+	}
+	
+	/**
+	 * This method finds the dense index of a user
+	 * @param userId : raw id from the data set
+	 * @return the index; negative if the user is not in the snapshot
+	 */
+	public int indexOfUser(int userId) {
+		return binarySearch(userIds, userCount, userId);
+	}
+	
+	public int getUserStart(int index) {
+		return userOffsets.get(index);
+	}
+	
+	public int getUserEnd(int index) {
+		return userOffsets.get(index + 1);
+	}
+	
+	/**
+	 * This method returns the sum of a user's ratings, as User keeps it
+	 * @param index : 0 <= index < getUserCount()
+	 * @return
+	 */
+	public double getUserRatingSum(int index) {
+		return userRatingSums.get(index);
+	}
+	
+	/**
+	 * This method returns the sum of the squares of a user's ratings, as User keeps it
+	 * @param index : 0 <= index < getUserCount()
+	 * @return
+	 */
+	public double getUserSquareSum(int index) {
+		return userSquareSums.get(index);
+	}
+	
+	/**
+	 * This method returns the item id of a rating in the user-major (CSR) arrays
+	 * @param position : getUserStart(u) <= position < getUserEnd(u)
+	 * @return
+	 */
+	public int getRatedItem(int position) {
+		return ratingItems.get(position);
+	}
+	
+	public float getRatingValue(int position) {
+		return ratingValues.get(position);
+	}
+	
+	/**
+	 * This method returns the raw id of the item at a dense index
+	 * @param index : 0 <= index < getItemCount()
+	 * @return
+	 */
+	public int getItemId(int index) {
+		return itemIds.get(index);
+	}
+	
+	/**
+	 * This method finds the dense index of an item
+	 * @param itemId : raw id from the data set
+	 * @return the index; negative if the item is not in the snapshot
+	 */
+	public int indexOfItem(int itemId) {
+		return binarySearch(itemIds, itemCount, itemId);
+	}
+	
+	public int getItemYear(int index) {
+		return itemYears.get(index);
+	}
+	
+	public double getItemAverage(int index) {
+		return itemAverages.get(index);
+	}
+	
+	public int getItemStart(int index) {
+		return itemOffsets.get(index);
+	}
+	
+	public int getItemEnd(int index) {
+		return itemOffsets.get(index + 1);
+	}
+	
+	/**
+	 * This method returns the user id of a rating in the item-major (CSC) arrays
+	 * @param position : getItemStart(i) <= position < getItemEnd(i)
+	 * @return
+	 */
+	public int getRater(int position) {
+		return raterIds.get(position);
+	}
+	
+	public float getRaterValue(int position) {
+		return raterValues.get(position);
+	}
+	
+	/**
+	 * This method returns the user-major item ids of all ratings, for users attached without copying
+	 * 	- absolute gets only: the buffer is shared, its position must not be used
+	 */
+	IntBuffer getRatedItemBuffer() {
+		return ratingItems;
+	}
+	
+	/**
+	 * This method returns the user-major ratings, parallel to getRatedItemBuffer
+	 */
+	FloatBuffer getRatingValueBuffer() {
+		return ratingValues;
+	}
+	
+	/**
+	 * This method returns the item-major user ids of all ratings, for posting lists attached without copying
+	 * 	- absolute gets only: the buffer is shared, its position must not be used
+	 */
+	IntBuffer getRaterBuffer() {
+		return raterIds;
+	}
+	
+	/**
+	 * This method returns the item-major ratings, parallel to getRaterBuffer
+	 */
+	FloatBuffer getRaterValueBuffer() {
+		return raterValues;
+	}
+	
+	/**
+	 * This method copies a range of the user-major item ids into an array
+	 */
+	void copyRatedItems(int start, int[] dst) {
+		IntBuffer view = ratingItems.duplicate();
+		view.position(start);
+		view.get(dst, 0, dst.length);
+	}
+	
+	/**
+	 * This method copies a range of the user-major ratings into an array
+	 */
+	void copyRatingValues(int start, float[] dst) {
+		FloatBuffer view = ratingValues.duplicate();
+		view.position(start);
+		view.get(dst, 0, dst.length);
+	}
+	
+	/**
+	 * This method copies a range of the item-major user ids into an array
+	 */
+	void copyRaters(int start, int[] dst) {
+		IntBuffer view = raterIds.duplicate();
+		view.position(start);
+		view.get(dst, 0, dst.length);
+	}
+	
+	/**
+	 * This method copies a range of the item-major ratings into an array
+	 */
+	void copyRaterValues(int start, float[] dst) {
+		FloatBuffer view = raterValues.duplicate();
+		view.position(start);
+		view.get(dst, 0, dst.length);
+	}
+	
+	public String getItemTitle(int index) {
+		String value = getItemText(index);
+		return value.substring(0, value.indexOf('\n'));
+	}
+	
+	public Set<String> getItemCategories(int index) {
+		String value = getItemText(index);
+		String categories = value.substring(value.indexOf('\n') + 1);
+		Set<String> result = new HashSet<String>();
+		if (!categories.isEmpty()) result.addAll(Arrays.asList(categories.split("\\|")));
+		return result;
+	}
+	
+	private String getItemText(int index) {
+		int start = textOffsets.get(index);
+		byte[] bytes = new byte[textOffsets.get(index + 1) - start];
+		ByteBuffer view = text.duplicate();
+		view.position(start);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static int binarySearch(IntBuffer buffer, int size, int key) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = buffer.get(mid);
+			if (value < key) low = mid + 1;
+			else if (value > key) high = mid - 1;
+			else return mid;
+		}
+		return -(low + 1);
+	}
+	
+	/**
+	 * This class writes little endian values through one reusable direct buffer
+	 */
+	private static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long written = 0;
+		
+		Writer(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		private void reserve(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) flush();
+		}
+		
+		Writer putInt(int value) throws IOException {
+			reserve(4);
+			buffer.putInt(value);
+			written += 4;
+			return this;
+		}
+		
+		Writer putFloat(float value) throws IOException {
+			reserve(4);
+			buffer.putFloat(value);
+			written += 4;
+			return this;
+		}
+		
+		Writer putLong(long value) throws IOException {
+			reserve(8);
+			buffer.putLong(value);
+			written += 8;
+			return this;
+		}
+		
+		Writer putDouble(double value) throws IOException {
+			reserve(8);
+			buffer.putDouble(value);
+			written += 8;
+			return this;
+		}
+		
+		void putBytes(byte[] bytes) throws IOException {
+			for (byte b : bytes) {
+				reserve(1);
+				buffer.put(b);
+			}
+			written += bytes.length;
+		}
+		
+		/**
+		 * This method pads with zeros up to the next 8-byte boundary
+		 */
+		void align() throws IOException {
+			while ((written & 7) != 0) {
+				reserve(1);
+				buffer.put((byte) 0);
+				written++;
+			}
+		}
+		
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
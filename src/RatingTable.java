@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+/**
+ * This class is a plain list of ratings (user, item, rating, timestamp) in primitive arrays
+ * 	- it is the input of evaluations, which need to split the ratings before building the pools
+ * @author Yibang Chen
+ *
+ */
+public class RatingTable {
+	
+	private int[] userIds;
+	private int[] itemIds;
+	private float[] ratings;
+	private long[] timestamps;
+	private int size = 0;
+	
+	public RatingTable(int capacity) {
+		capacity = Math.max(capacity, 16);
+		userIds = new int[capacity];
+		itemIds = new int[capacity];
+		ratings = new float[capacity];
+		timestamps = new long[capacity];
+	}
+	
+	public void add(int userId, int itemId, float rating, long timestamp) {
+		if (size == userIds.length) {
+			int capacity = size + (size >> 1);
+			userIds = Arrays.copyOf(userIds, capacity);
+			itemIds = Arrays.copyOf(itemIds, capacity);
+			ratings = Arrays.copyOf(ratings, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+		}
+		userIds[size] = userId;
+		itemIds[size] = itemId;
+		ratings[size] = rating;
+		timestamps[size] = timestamp;
+		size++;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getUserId(int index) {
+		return userIds[index];
+	}
+	
+	public int getItemId(int index) {
+		return itemIds[index];
+	}
+	
+	public float getRating(int index) {
+		return ratings[index];
+	}
+	
+	public long getTimestamp(int index) {
+		return timestamps[index];
+	}
+}
@@ -0,0 +1,461 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a bounded, thread-safe cache of recommendation lists in front of a Prediction
+ * 	- the key is (user, number of items, number of neighbors, algorithm, filter)
+ * 	- entries expire after a TTL and the least recently used entry of a segment is evicted
+ * 	  when it is full; the cache is split into independently locked segments
+ * 	- concurrent identical requests are coalesced: the first computes the list outside the lock,
+ * 	  the others wait for its result instead of computing it again
+ * 	- as a RatingListener, it drops the lists of a user whose ratings change; with
+ * 	  Invalidation.NEIGHBORS also the lists of the users who have the rater among their top
+ * 	  neighbors (as of when the list was computed: the neighbors Prediction scores the list
+ * 	  from, found once per miss and recorded before scoring)
+ * 	- the dependencies are kept per entry and dropped when the entry is evicted, replaced or
+ * 	  removed, so they are bounded by maxEntries times the number of neighbors
+ * Invalidation is by epoch: every user has a counter that a change bumps, and an entry computed
+ * with an older epoch is a miss. A list can still be served between a rating reaching the pools
+ * and its listener call. Cached lists are shared and unmodifiable
+ * @author Yibang Chen
+ *
+ */
+public class RecommendationCache implements RatingListener {
+	
+	/**
+	 * Recommendation algorithms of Prediction
+	 * 	- USER_BASED: recommendItems; ITEM_BASED: recommendItemsItemBased; FACTOR: recommendItemsFactor
+	 * Only USER_BASED uses the number of neighbors and the filter
+	 */
+	public enum Algorithm { USER_BASED, ITEM_BASED, FACTOR }
+	
+	/**
+	 * Which rating changes drop a user's lists
+	 * 	- USER: the user's own ratings
+	 * 	- NEIGHBORS: also the ratings of the user's top neighbors (USER_BASED lists only)
+	 */
+	public enum Invalidation { USER, NEIGHBORS }
+	
+	private final Prediction pr;
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final Invalidation invalidation;
+	private final Segment[] segments;
+	private final int segmentMask;
+	
+	private final Object epochLock = new Object();
+	private volatile AtomicIntegerArray epochs = new AtomicIntegerArray(0);
+	private final Map<Integer, Set<Entry>> dependents = new ConcurrentHashMap<Integer, Set<Entry>>();
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder computeNanos = new LongAdder();
+	private final LongAdder savedNanos = new LongAdder();
+	
+	/**
+	 * The constructor
+	 * 	- register the cache with RatingIngestor.addListener so that rating changes drop lists
+	 * @param pr : computes the lists on a miss
+	 * @param maxEntries : upper bound of cached lists
+	 * @param ttlMillis : time a list is served after it is computed
+	 * @param invalidation
+	 */
+	public RecommendationCache(Prediction pr, int maxEntries, long ttlMillis, Invalidation invalidation) {
+		if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+		this.pr = pr;
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.invalidation = invalidation;
+		
+		// a power of two, at most maxEntries, so every segment holds at least one entry
+		int count = 1;
+		int target = Math.min(Runtime.getRuntime().availableProcessors() * 4, maxEntries);
+		while (count * 2 <= target) count <<= 1;
+		segments = new Segment[count];
+		segmentMask = count - 1;
+		
+		// the capacities add up to maxEntries
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+		}
+	}
+	
+	/**
+	 * This method recommends items for a user with Prediction.recommendItems, through the cache
+	 */
+	public List<Integer> recommendItems(int userId, int numOfItems, int numOfNeighbors) {
+		return recommend(userId, numOfItems, numOfNeighbors, Algorithm.USER_BASED, ItemFilter.ALL);
+	}
+	
+	/**
+	 * This method recommends items for a user, through the cache
+	 * @param userId
+	 * @param numOfItems : number of items to recommend
+	 * @param numOfNeighbors : number of neighbors (USER_BASED only)
+	 * @param algorithm
+	 * @param filter : items the list may contain (USER_BASED only)
+	 * @return item ids, best first; shared and unmodifiable
+	 */
+	public List<Integer> recommend(int userId, int numOfItems, int numOfNeighbors, Algorithm algorithm, ItemFilter filter) {
+		if (algorithm != Algorithm.USER_BASED) {
+			numOfNeighbors = 0;
+			filter = ItemFilter.ALL;
+		}
+		Key key = new Key(userId, numOfItems, numOfNeighbors, algorithm, filter);
+		int epoch = epochOf(userId);
+		long now = System.nanoTime();
+		
+		Entry entry;
+		boolean owner = false;
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			entry = segment.map.get(key);
+			if (entry != null && entry.epoch != epoch) {
+				stale.increment();
+				entry = null;
+			} else if (entry != null && now - entry.created > ttlNanos) {
+				expired.increment();
+				entry = null;
+			}
+			if (entry == null) {
+				entry = new Entry(userId, epoch, now);
+				Entry replaced = segment.map.put(key, entry);
+				if (replaced != null) {
+					release(replaced);
+				} else if (segment.map.size() > segment.capacity) {
+					evict(segment);
+				}
+				owner = true;
+			}
+		}
+		
+		if (owner) {
+			misses.increment();
+			return compute(segment, key, entry);
+		}
+		
+		boolean done = entry.result.isDone();
+		long start = System.nanoTime();
+		List<Integer> result;
+		try {
+			result = entry.result.join();
+		} catch (CompletionException e) {
+			// the computing request failed and already threw; this one fails the same way
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		if (done) {
+			hits.increment();
+			savedNanos.add(entry.nanos);
+		} else {
+			coalesced.increment();
+			savedNanos.add(Math.max(0, entry.nanos - (System.nanoTime() - start)));
+		}
+		return result;
+	}
+	
+	/**
+	 * This method computes the list of an entry this request owns and publishes it to the waiters
+	 * 	- on failure the entry is removed, so the next request computes again
+	 */
+	private List<Integer> compute(Segment segment, Key key, Entry entry) {
+		long start = System.nanoTime();
+		List<Integer> result;
+		try {
+			// dependencies first: a neighbor's rating during the computation then makes the entry stale
+			Prediction.NeighborRow row = null;
+			if (invalidation == Invalidation.NEIGHBORS && key.algorithm == Algorithm.USER_BASED) {
+				row = pr.findNeighborRow(key.userId);
+				register(entry, row.getNeighbors(key.userId, key.numOfNeighbors));
+			}
+			result = Collections.unmodifiableList(run(key, row));
+		} catch (RuntimeException | Error e) {
+			synchronized (segment) {
+				if (segment.map.remove(key, entry)) release(entry);
+			}
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+		entry.nanos = System.nanoTime() - start;
+		computeNanos.add(entry.nanos);
+		entry.result.complete(result);
+		return result;
+	}
+	
+	private List<Integer> run(Key key, Prediction.NeighborRow row) {
+		switch (key.algorithm) {
+		case ITEM_BASED:
+			return pr.recommendItemsItemBased(key.userId, key.numOfItems);
+		case FACTOR:
+			return pr.recommendItemsFactor(key.userId, key.numOfItems);
+		default:
+			return pr.recommendItems(key.userId, key.numOfItems, key.numOfNeighbors, key.filter, row);
+		}
+	}
+	
+	/**
+	 * This method records an entry as a dependent of the neighbors its list is computed from
+	 * 	- if the entry left its segment meanwhile, its dependencies are dropped again here, since
+	 * 	  release may have run before they were recorded
+	 */
+	private void register(Entry entry, List<Integer> neighbors) {
+		int[] ids = new int[neighbors.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = neighbors.get(i);
+			dependents.computeIfAbsent(ids[i], id -> ConcurrentHashMap.newKeySet()).add(entry);
+		}
+		entry.neighbors = ids;
+		if (entry.released) unregister(entry, ids);
+	}
+	
+	/**
+	 * This method drops the dependencies of an entry that left its segment; called with the segment lock held
+	 */
+	private void release(Entry entry) {
+		entry.released = true;
+		int[] ids = entry.neighbors;
+		if (ids != null) unregister(entry, ids);
+	}
+	
+	private void unregister(Entry entry, int[] neighbors) {
+		for (int neighborId : neighbors) {
+			dependents.computeIfPresent(neighborId, (id, entries) -> {
+				entries.remove(entry);
+				return entries.isEmpty() ? null : entries;
+			});
+		}
+	}
+	
+	/**
+	 * This method drops the lists of the user, and with Invalidation.NEIGHBORS the lists that
+	 * were computed with the user as a neighbor
+	 */
+	public void ratingChanged(int userId, int itemId, float previous, float rating) {
+		invalidate(userId);
+		if (invalidation == Invalidation.NEIGHBORS) {
+			Set<Entry> entries = dependents.remove(userId);
+			if (entries != null) {
+				for (Entry entry : entries) invalidate(entry.userId);
+			}
+		}
+	}
+	
+	/**
+	 * This method drops all lists of a user
+	 * @param userId
+	 */
+	public void invalidate(int userId) {
+		int u = UserPool.getInstance().indexOf(userId);
+		if (u < 0) return;
+		synchronized (epochLock) {
+			AtomicIntegerArray current = epochs;
+			if (u >= current.length()) {
+				AtomicIntegerArray grown = new AtomicIntegerArray(Math.max(u + 1, current.length() * 2));
+				for (int i = 0; i < current.length(); i++) grown.set(i, current.get(i));
+				epochs = grown;
+				current = grown;
+			}
+			current.incrementAndGet(u);
+		}
+	}
+	
+	private int epochOf(int userId) {
+		int u = UserPool.getInstance().indexOf(userId);
+		AtomicIntegerArray current = epochs;
+		return u < 0 || u >= current.length() ? 0 : current.get(u);
+	}
+	
+	/**
+	 * This method removes the least recently used entry; called with the segment lock held
+	 */
+	private void evict(Segment segment) {
+		Key eldest = segment.map.keySet().iterator().next();
+		release(segment.map.remove(eldest));
+		evictions.increment();
+	}
+	
+	/**
+	 * This method removes all entries; the counters are kept
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (Entry entry : segment.map.values()) release(entry);
+				segment.map.clear();
+			}
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.map.size();
+			}
+		}
+		return size;
+	}
+	
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	
+	public long getTtlMillis() {
+		return ttlNanos / 1000000L;
+	}
+	
+	public Invalidation getInvalidation() {
+		return invalidation;
+	}
+	
+	public long getHitCount() {
+		return hits.sum();
+	}
+	
+	/**
+	 * This method returns the number of requests that waited for an identical request in flight
+	 * @return
+	 */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+	
+	/**
+	 * This method returns the number of requests that computed their list, including stale and expired entries
+	 * @return
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+	
+	/**
+	 * This method returns the number of entries dropped because a rating changed since
+	 * @return
+	 */
+	public long getStaleCount() {
+		return stale.sum();
+	}
+	
+	public long getExpiredCount() {
+		return expired.sum();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+	
+	/**
+	 * This method returns the share of requests that did not compute their list
+	 * @return
+	 */
+	public double getHitRate() {
+		long served = hits.sum() + coalesced.sum();
+		long total = served + misses.sum();
+		return total == 0 ? 0 : (double) served / total;
+	}
+	
+	/**
+	 * This method returns the time spent computing lists on misses
+	 * @return
+	 */
+	public long getComputeNanos() {
+		return computeNanos.sum();
+	}
+	
+	/**
+	 * This method returns the time saved: the compute time of the list, for every hit, minus
+	 * the time spent waiting, for every coalesced request
+	 * @return
+	 */
+	public long getSavedNanos() {
+		return savedNanos.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return "recommendation cache (" + invalidation + ", ttl " + getTtlMillis() + " ms): " + size() + "/"
+				+ maxEntries + " entries, " + getHitCount() + " hits, " + getCoalescedCount() + " coalesced, "
+				+ getMissCount() + " misses (" + getStaleCount() + " stale, " + getExpiredCount() + " expired), "
+				+ getEvictionCount() + " evictions, hit rate " + String.format("%.3f", getHitRate())
+				+ String.format(", %.1f ms computing, %.1f ms saved", getComputeNanos() / 1e6, getSavedNanos() / 1e6);
+	}
+	
+	private Segment segmentFor(Key key) {
+		long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+		return segments[(int) (h >>> 40) & segmentMask];
+	}
+	
+	private static final class Key {
+		final int userId;
+		final int numOfItems;
+		final int numOfNeighbors;
+		final Algorithm algorithm;
+		final ItemFilter filter;
+		
+		Key(int userId, int numOfItems, int numOfNeighbors, Algorithm algorithm, ItemFilter filter) {
+			this.userId = userId;
+			this.numOfItems = numOfItems;
+			this.numOfNeighbors = numOfNeighbors;
+			this.algorithm = algorithm;
+			this.filter = filter;
+		}
+		
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) return false;
+			Key key = (Key) other;
+			return userId == key.userId && numOfItems == key.numOfItems && numOfNeighbors == key.numOfNeighbors
+					&& algorithm == key.algorithm && filter.equals(key.filter);
+		}
+		
+		@Override
+		public int hashCode() {
+			int h = userId;
+			h = 31 * h + numOfItems;
+			h = 31 * h + numOfNeighbors;
+			h = 31 * h + algorithm.ordinal();
+			return 31 * h + filter.hashCode();
+		}
+	}
+	
+	private static class Entry {
+		final int userId;
+		final int epoch;
+		final long created;
+		final CompletableFuture<List<Integer>> result = new CompletableFuture<List<Integer>>();
+		volatile long nanos;
+		// ids of the neighbors the entry depends on, and whether it left its segment; both
+		// volatile so that register and release cannot both miss the other (see register)
+		volatile int[] neighbors;
+		volatile boolean released;
+		
+		Entry(int userId, int epoch, long created) {
+			this.userId = userId;
+			this.epoch = epoch;
+			this.created = created;
+		}
+	}
+	
+	private static class Segment {
+		final int capacity;
+		final LinkedHashMap<Key, Entry> map;
+		
+		Segment(int capacity) {
+			this.capacity = capacity;
+			this.map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		}
+	}
+}
@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This is the HTTP serving mode of the recommending system, on the JDK's built-in HttpServer.
+ * Connections are multiplexed by the server's selector thread; requests run on
+ * 	- a virtual thread per request, if the JVM has virtual threads (Java 21+)
+ * 	- otherwise a bounded pool of platform threads (threads=...)
+ * At most concurrency=... requests are in flight; further requests get 503 right away.
+ * Endpoints (all responses are JSON):
+ * 	- GET  /predict?user=1&item=2[&neighbors=20][&method=pearson|cosine|item|baseline]
+ * 	- GET  /recommend?user=1[&count=10][&neighbors=20][&genres=Comedy,Drama][&from=1990][&to=1999]
+ * 	  (only items of one of the genres and released in [from, to], see ItemFilter)
+ * 	- POST /predict/batch[?neighbors=20][&method=...] with body [[user,item],[user,item],...]
+ * 	- GET  /health (with the statistics of the recommendation cache)
+ * count must be in [1, number of items] and neighbors in [1, maxNeighbors]; other values get 400,
+ * so no request can size its buffers beyond the catalog or the neighbor limit.
+ * Recommendations go through a RecommendationCache: a user's lists are served from memory until
+ * they expire, they are evicted, or the user (or a neighbor, with invalidate=neighbors) rates something.
+ * On shutdown (SIGTERM / Ctrl-C) the server stops accepting, lets running requests finish
+ * for up to grace=... seconds, then exits.
+ *
+ * Arguments are key=value pairs:
+ * 	path=/data/ml/ (required) type=csv|dat port=8080 concurrency=1024 threads=(4 x cores)
+ * 	backlog=1024 grace=10 backend=heap|offheap|compact (how the users' ratings are kept)
+ * 	recommendCache=100000 (cached lists; 0 disables the cache) recommendTtl=300 (seconds)
+ * 	invalidate=user|neighbors lsh=off|hyperplane|minhash (neighbor search restricted to the candidates
+ * 	of an LSH index, built at start-up) lshBands=16 lshRows=4 maxNeighbors=1000
+ * @author Yibang Chen
+ *
+ */
+public class ServerInterface {
+	
+	private static final int DEFAULT_NEIGHBORS = 20;
+	private static final int DEFAULT_RECOMMEND = 10;
+	private static final int DEFAULT_MAX_NEIGHBORS = 1000;
+	private static final int MAX_BATCH = 10000;
+	private static final int SIMILARITY_CACHE_SIZE = 1 << 20;
+	private static final int SIMILAR_ITEMS = 100;
+	private static final long LSH_SEED = 42;
+	
+	private final UserPool users = UserPool.getInstance();
+	private final ItemPool items = ItemPool.getInstance();
+	private final Prediction pr = new Prediction();
+	private RecommendationCache recommendations = null;
+	private final Semaphore permits;
+	private final int maxNeighbors;
+	private final AtomicInteger rejected = new AtomicInteger();
+	
+	/**
+	 * The constructor
+	 * @param concurrency : maximum number of requests in flight
+	 * @param maxNeighbors : largest neighbors parameter a request may give
+	 */
+	public ServerInterface(int concurrency, int maxNeighbors) {
+		this.permits = new Semaphore(concurrency);
+		this.maxNeighbors = maxNeighbors;
+	}
+	
+	public static void main(String args[]) throws IOException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq > 0) options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		String path = options.get("path");
+		if (path == null) {
+			System.out.println("Usage: java ServerInterface path=<data folder> [type=csv|dat] [port=8080] "
+					+ "[concurrency=1024] [threads=n] [backlog=1024] [grace=10] [backend=heap|offheap|compact] "
+					+ "[recommendCache=100000] [recommendTtl=300] [invalidate=user|neighbors] "
+					+ "[lsh=off|hyperplane|minhash] [lshBands=16] [lshRows=4] [maxNeighbors=1000]");
+			return;
+		}
+		if (!path.endsWith("/") && !path.endsWith("\\")) path += "/";
+		int port = Integer.parseInt(options.getOrDefault("port", "8080"));
+		int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1024"));
+		int threads = Integer.parseInt(options.getOrDefault("threads",
+				String.valueOf(4 * Runtime.getRuntime().availableProcessors())));
+		int backlog = Integer.parseInt(options.getOrDefault("backlog", "1024"));
+		final int grace = Integer.parseInt(options.getOrDefault("grace", "10"));
+		int maxNeighbors = Integer.parseInt(options.getOrDefault("maxNeighbors", String.valueOf(DEFAULT_MAX_NEIGHBORS)));
+		int cacheSize = Integer.parseInt(options.getOrDefault("recommendCache", "100000"));
+		long ttl = Long.parseLong(options.getOrDefault("recommendTtl", "300"));
+		RecommendationCache.Invalidation invalidation =
+				RecommendationCache.Invalidation.valueOf(options.getOrDefault("invalidate", "user").toUpperCase());
+		
+		FileReader reader = new FileReader(path);
+		reader.setOffHeap(options.getOrDefault("backend", "heap").equals("offheap"));
+		UserPool.getInstance().setCompact(options.getOrDefault("backend", "heap").equals("compact"));
+		if (options.getOrDefault("type", "csv").equals("dat")) {
+			reader.importData("movies.dat", "ratings_sample.dat", "::", "ratings_sample.snapshot",
+					UserPool.getInstance(), ItemPool.getInstance());
+		} else {
+			reader.importData("movies.csv", "ratings.csv", ",", "ratings.snapshot",
+					UserPool.getInstance(), ItemPool.getInstance());
+		}
+		UserPool.getInstance().enableSimilarityCache(SIMILARITY_CACHE_SIZE, SimilarityCache.Policy.LRU);
+		String lsh = options.getOrDefault("lsh", "off");
+		if (!lsh.equals("off")) {
+			UserPool.getInstance().buildLshIndex(UserLshIndex.Kind.valueOf(lsh.toUpperCase()),
+					Integer.parseInt(options.getOrDefault("lshBands", "16")),
+					Integer.parseInt(options.getOrDefault("lshRows", "4")), LSH_SEED);
+		}
+		ItemPool.getInstance().buildSimilarityMatrix(SIMILAR_ITEMS);
+		
+		final ExecutorService executor = newExecutor(threads, concurrency);
+		ServerInterface service = new ServerInterface(concurrency, maxNeighbors);
+		BaselineModel baseline = BaselineModel.fit(UserPool.getInstance(), ItemPool.getInstance());
+		RatingIngestor.getInstance().addListener(baseline);
+		service.pr.setBaselineModel(baseline);
+		if (cacheSize > 0) {
+			service.recommendations = new RecommendationCache(service.pr, cacheSize, ttl * 1000, invalidation);
+			RatingIngestor.getInstance().addListener(service.recommendations);
+			Metrics.register("server", service.recommendations);
+		}
+		final HttpServer server = service.start(port, backlog, executor);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			System.out.println("Shutting down: waiting up to " + grace + " s for running requests");
+			server.stop(grace);
+			executor.shutdown();
+			try {
+				executor.awaitTermination(grace, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}));
+	}
+	
+	/**
+	 * This method binds the server and registers the endpoints
+	 * @param port
+	 * @param backlog : maximum number of queued incoming connections
+	 * @param executor : runs the request handlers
+	 * @return the started server
+	 * @throws IOException if the port cannot be bound
+	 */
+	public HttpServer start(int port, int backlog, ExecutorService executor) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), backlog);
+		server.createContext("/predict/batch", limited(this::batchPredict));
+		server.createContext("/predict", limited(this::predict));
+		server.createContext("/recommend", limited(this::recommend));
+		server.createContext("/health", exchange -> send(exchange, 200, "{\"status\":\"ok\",\"users\":"
+				+ users.getUsers().size() + ",\"items\":" + items.getItemIds().size()
+				+ ",\"rejected\":" + rejected.get() + cacheStatistics() + "}"));
+		server.setExecutor(executor);
+		server.start();
+		System.out.println("Serving on port " + server.getAddress().getPort());
+		return server;
+	}
+	
+	/**
+	 * This method creates the request executor
+	 * 	- Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively, so this class
+	 * 	  still compiles and runs on Java 17, where the bounded pool is used instead
+	 * @param threads : size of the platform thread pool
+	 * @param queue : maximum number of requests waiting for a platform thread; beyond it the
+	 * 	  server's dispatcher thread runs the request itself, which slows down accepting
+	 * @return the executor
+	 */
+	static ExecutorService newExecutor(int threads, int queue) {
+		try {
+			Object executor = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			System.out.println("Request handling: virtual threads");
+			return (ExecutorService) executor;
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Request handling: " + threads + " platform threads (no virtual threads on this JVM)");
+			return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+	}
+	
+	/**
+	 * This interface is a request handler that answers with a JSON body
+	 */
+	private interface JsonHandler {
+		public String handle(HttpExchange exchange) throws IOException;
+	}
+	
+	/**
+	 * This method wraps a handler with the concurrency limit and error handling
+	 * 	- over the limit: 503 with Retry-After
+	 * 	- IllegalArgumentException: 400; NotFoundException: 404; anything else: 500
+	 */
+	private HttpHandler limited(final JsonHandler handler) {
+		return exchange -> {
+			if (!permits.tryAcquire()) {
+				rejected.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				send(exchange, 503, error("Too many concurrent requests"));
+				return;
+			}
+			try {
+				send(exchange, 200, handler.handle(exchange));
+			} catch (NotFoundException e) {
+				send(exchange, 404, error(e.getMessage()));
+			} catch (IllegalArgumentException e) {
+				send(exchange, 400, error(e.getMessage()));
+			} catch (RuntimeException e) {
+				send(exchange, 500, error(e.toString()));
+			} finally {
+				permits.release();
+			}
+		};
+	}
+	
+	private String predict(HttpExchange exchange) throws IOException {
+		requireMethod(exchange, "GET");
+		Map<String, String> query = parseQuery(exchange.getRequestURI());
+		int userId = intParameter(query, "user", null);
+		int itemId = intParameter(query, "item", null);
+		int neighbors = boundedParameter(query, "neighbors", DEFAULT_NEIGHBORS, maxNeighbors);
+		String method = query.getOrDefault("method", "pearson");
+		
+		return "{\"user\":" + userId + ",\"item\":" + itemId + ",\"method\":" + quote(method)
+				+ ",\"prediction\":" + number(predict(userId, itemId, neighbors, method)) + "}";
+	}
+	
+	private String recommend(HttpExchange exchange) throws IOException {
+		requireMethod(exchange, "GET");
+		Map<String, String> query = parseQuery(exchange.getRequestURI());
+		int userId = intParameter(query, "user", null);
+		int count = boundedParameter(query, "count", DEFAULT_RECOMMEND, items.getItemCount());
+		int neighbors = boundedParameter(query, "neighbors", DEFAULT_NEIGHBORS, maxNeighbors);
+		requireUser(userId);
+		
+		ItemFilter filter = filterParameter(query);
+		RecommendationCache cache = recommendations;
+		List<Integer> result = cache == null ? pr.recommendItems(userId, count, neighbors, filter)
+				: cache.recommend(userId, count, neighbors, RecommendationCache.Algorithm.USER_BASED, filter);
+		StringBuilder json = new StringBuilder("{\"user\":").append(userId).append(",\"items\":[");
+		for (int i = 0; i < result.size(); i++) {
+			if (i > 0) json.append(',');
+			int itemId = result.get(i);
+			json.append("{\"item\":").append(itemId)
+				.append(",\"title\":").append(quote(items.getItemTitle(itemId))).append('}');
+		}
+		return json.append("]}").toString();
+	}
+	
+	/**
+	 * This method predicts a list of (user, item) pairs in one request
+	 * 	- the body is a JSON array of [user, item] arrays
+	 * 	- a pair with an unknown user or item gets "prediction": null instead of failing the batch
+	 */
+	private String batchPredict(HttpExchange exchange) throws IOException {
+		requireMethod(exchange, "POST");
+		Map<String, String> query = parseQuery(exchange.getRequestURI());
+		int neighbors = boundedParameter(query, "neighbors", DEFAULT_NEIGHBORS, maxNeighbors);
+		String method = query.getOrDefault("method", "pearson");
+		
+		int[] numbers = parseIntegers(readBody(exchange));
+		if (numbers.length % 2 != 0) throw new IllegalArgumentException("Body must be [[user,item],...]");
+		if (numbers.length / 2 > MAX_BATCH) throw new IllegalArgumentException("At most " + MAX_BATCH + " pairs per batch");
+		
+		StringBuilder json = new StringBuilder("{\"method\":").append(quote(method)).append(",\"predictions\":[");
+		for (int i = 0; i < numbers.length; i += 2) {
+			if (i > 0) json.append(',');
+			int userId = numbers[i];
+			int itemId = numbers[i + 1];
+			json.append("{\"user\":").append(userId).append(",\"item\":").append(itemId).append(",\"prediction\":");
+			if (users.isUserAdded(userId) && items.isValidItem(itemId)) {
+				json.append(number(predict(userId, itemId, neighbors, method)));
+			} else {
+				json.append("null");
+			}
+			json.append('}');
+		}
+		return json.append("]}").toString();
+	}
+	
+	private double predict(int userId, int itemId, int neighbors, String method) {
+		requireUser(userId);
+		if (!items.isValidItem(itemId)) throw new NotFoundException("Item " + itemId + " does not exist");
+		
+		if (method.equals("pearson")) return pr.predictRating(userId, itemId, neighbors);
+		if (method.equals("cosine")) return pr.predictCosineRating(userId, itemId, neighbors);
+		if (method.equals("item")) return pr.predictItemBasedRating(userId, itemId, neighbors);
+		if (method.equals("baseline")) return pr.getBaselineRating(userId, itemId);
+		throw new IllegalArgumentException("Unknown method: " + method);
+	}
+	
+	/**
+	 * This method formats the statistics of the recommendation cache as a JSON member
+	 * @return ",\"recommendCache\":{...}"; empty if the cache is disabled
+	 */
+	private String cacheStatistics() {
+		RecommendationCache cache = recommendations;
+		if (cache == null) return "";
+		return ",\"recommendCache\":{\"size\":" + cache.size() + ",\"hits\":" + cache.getHitCount()
+				+ ",\"coalesced\":" + cache.getCoalescedCount() + ",\"misses\":" + cache.getMissCount()
+				+ ",\"stale\":" + cache.getStaleCount() + ",\"expired\":" + cache.getExpiredCount()
+				+ ",\"hitRate\":" + number(cache.getHitRate()) + ",\"computeMs\":" + number(cache.getComputeNanos() / 1e6)
+				+ ",\"savedMs\":" + number(cache.getSavedNanos() / 1e6) + "}";
+	}
+	
+	private void requireUser(int userId) {
+		if (!users.isUserAdded(userId)) throw new NotFoundException("User " + userId + " does not exist");
+	}
+	
+	private static void requireMethod(HttpExchange exchange, String method) {
+		if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+			throw new IllegalArgumentException(exchange.getRequestURI().getPath() + " expects " + method);
+		}
+	}
+	
+	/**
+	 * This exception is a request for a user or item that is not in the pools
+	 */
+	private static class NotFoundException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		NotFoundException(String message) {
+			super(message);
+		}
+	}
+	
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> query = new HashMap<String, String>();
+		String raw = uri.getRawQuery();
+		if (raw == null) return query;
+		for (String pair : raw.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) query.put(pair.substring(0, eq), pair.substring(eq + 1));
+		}
+		return query;
+	}
+	
+	private static int intParameter(Map<String, String> query, String name, Integer defaultValue) {
+		String value = query.get(name);
+		if (value == null) {
+			if (defaultValue == null) throw new IllegalArgumentException("Missing parameter: " + name);
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + value);
+		}
+	}
+	
+	/**
+	 * This method reads a size parameter, e.g. a number of items or neighbors
+	 * 	- checked before it reaches Prediction, which allocates buffers of that size
+	 * @param max : largest accepted value
+	 * @return the value, in [1, max]
+	 */
+	private static int boundedParameter(Map<String, String> query, String name, int defaultValue, int max) {
+		int value = intParameter(query, name, defaultValue);
+		if (value < 1 || value > max) {
+			throw new IllegalArgumentException("Parameter " + name + " must be between 1 and " + max + ": " + value);
+		}
+		return value;
+	}
+	
+	/**
+	 * This method builds the item filter of a request from its genres, from and to parameters
+	 */
+	private static ItemFilter filterParameter(Map<String, String> query) {
+		ItemFilter filter = ItemFilter.ALL;
+		String genres = query.get("genres");
+		if (genres != null) {
+			filter = filter.withAnyGenre(URLDecoder.decode(genres, StandardCharsets.UTF_8).split(","));
+		}
+		if (query.containsKey("from") || query.containsKey("to")) {
+			filter = filter.withYears(intParameter(query, "from", Integer.MIN_VALUE),
+					intParameter(query, "to", Integer.MAX_VALUE));
+		}
+		return filter;
+	}
+	
+	/**
+	 * This method reads all integers of a text in order, ignoring every other character
+	 */
+	private static int[] parseIntegers(String text) {
+		int[] numbers = new int[16];
+		int count = 0;
+		int i = 0, n = text.length();
+		while (i < n) {
+			char c = text.charAt(i);
+			boolean negative = c == '-' && i + 1 < n && Character.isDigit(text.charAt(i + 1));
+			if (!negative && !Character.isDigit(c)) {
+				i++;
+				continue;
+			}
+			if (negative) i++;
+			long value = 0;
+			while (i < n && Character.isDigit(text.charAt(i))) {
+				value = value * 10 + (text.charAt(i++) - '0');
+				if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("Number out of range");
+			}
+			if (count == numbers.length) numbers = Arrays.copyOf(numbers, count * 2);
+			numbers[count++] = (int) (negative ? -value : value);
+		}
+		return Arrays.copyOf(numbers, count);
+	}
+	
+	private static String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		try {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static String error(String message) {
+		return "{\"error\":" + quote(message) + "}";
+	}
+	
+	private static String number(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+	}
+	
+	private static String quote(String text) {
+		if (text == null) return "null";
+		StringBuilder json = new StringBuilder(text.length() + 2).append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') json.append('\\').append(c);
+			else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+			else json.append(c);
+		}
+		return json.append('"').toString();
+	}
+}
@@ -0,0 +1,245 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a bounded, thread-safe cache of similarity scores between 2 users
+ * 	- the pair is unordered: (u1, u2) and (u2, u1) share one entry
+ * 	- entries remember the rating versions of both users; an entry whose user has rated
+ * 	  something since is treated as a miss, so no explicit invalidation is needed
+ * 	- the cache is split into independently locked segments to keep contention low
+ * @author Yibang Chen
+ *
+ */
+public class SimilarityCache {
+	
+	/**
+	 * Eviction policies
+	 * 	- LRU: evicts the least recently used entry of a segment
+	 * 	- LFU: evicts the least frequently hit of the oldest entries of a segment (sampled)
+	 */
+	public enum Policy { LRU, LFU }
+	
+	private static final int LFU_SAMPLE_SIZE = 8;
+	
+	private final Policy policy;
+	private final int maxEntries;
+	private final Segment[] segments;
+	private final int segmentMask;
+	
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stale = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	/**
+	 * The constructor
+	 * @param maxEntries : upper bound of cached pairs (roughly 100 bytes of heap each)
+	 * @param policy : the eviction policy
+	 */
+	public SimilarityCache(int maxEntries, Policy policy) {
+		if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		this.policy = policy;
+		this.maxEntries = maxEntries;
+		
+		int count = 1;
+		int target = Math.min(Runtime.getRuntime().availableProcessors() * 4, maxEntries);
+		while (count < target) count <<= 1;
+		segments = new Segment[count];
+		segmentMask = count - 1;
+		
+		int perSegment = Math.max(1, maxEntries / count);
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(perSegment, policy == Policy.LRU);
+		}
+	}
+	
+	/**
+	 * This method looks up the similarity of 2 users
+	 * @param user1
+	 * @param user2
+	 * @return the cached score; NaN if absent or computed before either user's latest rating
+	 */
+	public double get(User user1, User user2) {
+		long key = key(user1.getUserId(), user2.getUserId());
+		int version1 = versionOf(user1, user2, true);
+		int version2 = versionOf(user1, user2, false);
+		
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			Entry entry = segment.map.get(key);
+			if (entry == null) {
+				misses.increment();
+				return Double.NaN;
+			}
+			if (entry.version1 != version1 || entry.version2 != version2) {
+				segment.map.remove(key);
+				stale.increment();
+				misses.increment();
+				return Double.NaN;
+			}
+			entry.hits++;
+			hits.increment();
+			return entry.value;
+		}
+	}
+	
+	/**
+	 * This method stores the similarity of 2 users
+	 * 	- the versions should be the ones the score was computed with; see User.getVersion()
+	 * @param user1
+	 * @param user2
+	 * @param version1 : rating version of user1 when the score was computed
+	 * @param version2 : rating version of user2 when the score was computed
+	 * @param value
+	 */
+	public void put(User user1, User user2, int version1, int version2, double value) {
+		long key = key(user1.getUserId(), user2.getUserId());
+		Entry entry = new Entry();
+		entry.value = value;
+		if (user1.getUserId() <= user2.getUserId()) {
+			entry.version1 = version1;
+			entry.version2 = version2;
+		} else {
+			entry.version1 = version2;
+			entry.version2 = version1;
+		}
+		
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			if (segment.map.put(key, entry) == null && segment.map.size() > segment.capacity) {
+				evict(segment);
+			}
+		}
+	}
+	
+	/**
+	 * This method removes one entry; called with the segment lock held
+	 */
+	private void evict(Segment segment) {
+		Iterator<Map.Entry<Long, Entry>> it = segment.map.entrySet().iterator();
+		if (policy == Policy.LRU) {
+			it.next();
+			it.remove();
+		} else {
+			Long victim = null;
+			int fewestHits = Integer.MAX_VALUE;
+			for (int i = 0; i < LFU_SAMPLE_SIZE && it.hasNext(); i++) {
+				Map.Entry<Long, Entry> candidate = it.next();
+				if (candidate.getValue().hits < fewestHits) {
+					fewestHits = candidate.getValue().hits;
+					victim = candidate.getKey();
+				}
+			}
+			segment.map.remove(victim);
+		}
+		evictions.increment();
+	}
+	
+	/**
+	 * This method removes all entries; the counters are kept
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.map.clear();
+			}
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.map.size();
+			}
+		}
+		return size;
+	}
+	
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	
+	public Policy getPolicy() {
+		return policy;
+	}
+	
+	public long getHitCount() {
+		return hits.sum();
+	}
+	
+	/**
+	 * This method returns the number of misses, including stale entries
+	 * @return
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+	
+	/**
+	 * This method returns the number of entries dropped because a user rated something since
+	 * @return
+	 */
+	public long getStaleCount() {
+		return stale.sum();
+	}
+	
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+	
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+	
+	@Override
+	public String toString() {
+		return policy + " cache: " + size() + "/" + maxEntries + " entries, "
+				+ getHitCount() + " hits, " + getMissCount() + " misses ("
+				+ getStaleCount() + " stale), " + getEvictionCount() + " evictions, hit rate "
+				+ String.format("%.3f", getHitRate());
+	}
+	
+	/**
+	 * This method packs an unordered pair of user ids into one key
+	 */
+	private static long key(int userId1, int userId2) {
+		int low = Math.min(userId1, userId2);
+		int high = Math.max(userId1, userId2);
+		return ((long) low << 32) | (high & 0xffffffffL);
+	}
+	
+	/**
+	 * This method returns the version of the lower (first) or higher id user of a pair
+	 */
+	private static int versionOf(User user1, User user2, boolean lower) {
+		boolean firstIsLower = user1.getUserId() <= user2.getUserId();
+		return (lower == firstIsLower) ? user1.getVersion() : user2.getVersion();
+	}
+	
+	private Segment segmentFor(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return segments[(int) (h >>> 40) & segmentMask];
+	}
+	
+	private static class Entry {
+		double value;
+		int version1;
+		int version2;
+		int hits;
+	}
+	
+	private static class Segment {
+		final int capacity;
+		final LinkedHashMap<Long, Entry> map;
+		
+		Segment(int capacity, boolean accessOrder) {
+			this.capacity = capacity;
+			this.map = new LinkedHashMap<Long, Entry>(16, 0.75f, accessOrder);
+		}
+	}
+}
@@ -0,0 +1,391 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is a concurrency stress check of the pools: many reader threads run against the writers
+ * 	- writers add a random stream of new, replaced and inserted ratings (and new users)
+ * 	  through RatingIngestor; every user belongs to one writer, so the final state is known
+ * 	- with shared=true the writers share the users instead, and half of the stream goes to a few
+ * 	  hot users and items, so the same ratings are written concurrently; the final rating of a
+ * 	  pair is then one of the ratings written, and users and posting lists must agree on it
+ * 	- readers check every profile and posting list they see: ids strictly ascending,
+ * 	  averages matching the ratings, versions never going back; and that similarities,
+ * 	  predictions and recommendations are computed without error
+ * 	- when the writers are done, users, posting lists, averages and cached similarities
+ * 	  are compared with the expected final state, and the item biases of a BaselineModel that
+ * 	  followed the stream with a fresh fit; the recommendations of sampled users are compared
+ * 	  with a ranking of every unrated item by predictRating
+ * 	- with lsh=hyperplane or lsh=minhash, an LSH index is built before the writers start, so
+ * 	  predictions and recommendations (and the ranking check) go through its candidates
+ * The exit code is 1 if any check failed
+ *
+ * Arguments are key=value pairs, all optional:
+ * 	users=1000 items=1700 density=0.06 seed=42
+ * 	readers=4 writers=2 ratings=200000 (ingested while the readers run) cache=true shared=false
+ * 	lsh=off|hyperplane|minhash (16 bands of 4 rows)
+ * 	backend=heap|offheap|compact (offheap: the loaded ratings are read from a mapped snapshot,
+ * 	so writers also copy users and posting lists to the heap while readers run; compact: users
+ * 	are CompactRatings, so every write encodes the user again)
+ * @author Yibang Chen
+ *
+ */
+public class StressInterface {
+	
+	private static final double TOLERANCE = 1e-4;
+	private static final int MAX_REPORTED = 10;
+	private static final int HOT_USERS = 4;
+	private static final int HOT_ITEMS = 8;
+	private static final int LSH_BANDS = 16;
+	private static final int LSH_ROWS = 4;
+	private static final int RANKED_USERS = 20;
+	private static final int RANKED_ITEMS = 10;
+	
+	private static final Queue<String> failures = new ConcurrentLinkedQueue<String>();
+	private static final AtomicLong failureCount = new AtomicLong();
+	
+	public static void main(String args[]) throws IOException, InterruptedException {
+		Map<String, String> options = BenchmarkInterface.parseOptions(args);
+		final int userCount = Integer.parseInt(BenchmarkInterface.option(options, "users", "1000"));
+		final int itemCount = Integer.parseInt(BenchmarkInterface.option(options, "items", "1700"));
+		double density = Double.parseDouble(BenchmarkInterface.option(options, "density", "0.06"));
+		long seed = Long.parseLong(BenchmarkInterface.option(options, "seed", "42"));
+		int readerCount = Integer.parseInt(BenchmarkInterface.option(options, "readers", "4"));
+		int writerCount = Integer.parseInt(BenchmarkInterface.option(options, "writers", "2"));
+		int ratingCount = Integer.parseInt(BenchmarkInterface.option(options, "ratings", "200000"));
+		boolean cache = Boolean.parseBoolean(BenchmarkInterface.option(options, "cache", "true"));
+		boolean shared = Boolean.parseBoolean(BenchmarkInterface.option(options, "shared", "false"));
+		String backend = BenchmarkInterface.option(options, "backend", "heap");
+		String lsh = BenchmarkInterface.option(options, "lsh", "off");
+		
+		File folder = Files.createTempDirectory("movie-stress").toFile();
+		folder.deleteOnExit();
+		BenchmarkInterface.writeSyntheticData(folder, userCount, itemCount, density, 1.0, seed);
+		new File(folder, "movies.csv").deleteOnExit();
+		new File(folder, "ratings.csv").deleteOnExit();
+		
+		final UserPool users = UserPool.getInstance();
+		final ItemPool items = ItemPool.getInstance();
+		String path = folder.getAbsolutePath() + File.separator;
+		BenchmarkInterface.loadQuietly(path, users, items);
+		if (backend.equals("offheap")) BenchmarkInterface.attachOffHeap(path, users, items);
+		users.setCompact(backend.equals("compact"));
+		if (cache) users.enableSimilarityCache(100000, SimilarityCache.Policy.LRU);
+		if (!lsh.equals("off")) {
+			users.buildLshIndex(UserLshIndex.Kind.valueOf(lsh.toUpperCase()), LSH_BANDS, LSH_ROWS, seed);
+		}
+		
+		// the expected final state: the loaded ratings, overwritten by the stream in order
+		Map<Long, Float> expected = new HashMap<Long, Float>();
+		for (int userId : users.getUsers()) {
+			User.Profile profile = users.getUser(userId).getProfile();
+			for (int i = 0; i < profile.size(); i++) {
+				expected.put(key(userId, profile.getItemIdAt(i)), profile.getRatingAt(i));
+			}
+		}
+		
+		// the stream: about 10% new users; every user is written by the writer userId % writers,
+		// or shared: rating i is written by the writer i % writers
+		final int maxUserId = userCount + userCount / 10;
+		Random random = new Random(seed + 1);
+		final List<List<float[]>> streams = new ArrayList<List<float[]>>();
+		for (int w = 0; w < writerCount; w++) streams.add(new ArrayList<float[]>());
+		Map<Long, Set<Float>> written = new HashMap<Long, Set<Float>>();
+		for (int i = 0; i < ratingCount; i++) {
+			boolean hot = shared && (i & 1) == 0;
+			int userId = 1 + random.nextInt(hot ? HOT_USERS : maxUserId);
+			int itemId = 1 + random.nextInt(hot ? HOT_ITEMS : itemCount);
+			float rating = (1 + random.nextInt(10)) / 2f;
+			streams.get((shared ? i : userId) % writerCount).add(new float[] {userId, itemId, rating});
+			expected.put(key(userId, itemId), rating);
+			written.computeIfAbsent(key(userId, itemId), k -> new HashSet<Float>()).add(rating);
+		}
+		
+		final BaselineModel baseline = BaselineModel.fit(users, items);
+		RatingIngestor.getInstance().addListener(baseline);
+		
+		System.out.println("Stress: " + users.getUsers().size() + " users, " + itemCount + " items, "
+				+ readerCount + " readers, " + writerCount + (shared ? " shared" : "") + " writers, "
+				+ ratingCount + " ratings to ingest" + (lsh.equals("off") ? "" : ", " + lsh + " LSH index"));
+		
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicLong reads = new AtomicLong();
+		final Prediction pr = new Prediction();
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int r = 0; r < readerCount; r++) {
+			final long readerSeed = seed + 100 + r;
+			Thread reader = new Thread(() -> {
+				Random choice = new Random(readerSeed);
+				int[] lastVersions = new int[maxUserId + 1];
+				long count = 0;
+				while (writing.get()) {
+					try {
+						read(users, items, pr, choice, lastVersions, maxUserId, itemCount, count);
+					} catch (Throwable e) {
+						fail("reader threw " + e);
+					}
+					count++;
+				}
+				reads.addAndGet(count);
+			}, "stress-reader-" + r);
+			readers.add(reader);
+			reader.start();
+		}
+		
+		long start = System.nanoTime();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int w = 0; w < writerCount; w++) {
+			final List<float[]> stream = streams.get(w);
+			Thread writer = new Thread(() -> {
+				RatingIngestor ingestor = RatingIngestor.getInstance();
+				for (float[] rating : stream) {
+					if (!ingestor.addRating((int) rating[0], (int) rating[1], rating[2])) {
+						fail("rating of unknown item " + (int) rating[1]);
+					}
+				}
+			}, "stress-writer-" + w);
+			writers.add(writer);
+			writer.start();
+		}
+		for (Thread writer : writers) writer.join();
+		long writeNanos = System.nanoTime() - start;
+		writing.set(false);
+		for (Thread reader : readers) reader.join();
+		long readNanos = System.nanoTime() - start;
+		
+		System.out.println(String.format("Writers: %d ratings in %.1f ms (%.0f ratings/s)", ratingCount,
+				writeNanos / 1e6, ratingCount / (writeNanos / 1e9)));
+		System.out.println(String.format("Readers: %d reads in %.1f ms (%.0f reads/s)", reads.get(),
+				readNanos / 1e6, reads.get() / (readNanos / 1e9)));
+		
+		verify(users, items, expected, shared ? written : null, random);
+		verifyBaseline(users, items, baseline);
+		verifyRanking(users, items, pr, random);
+		
+		for (String failure : failures) System.out.println("FAILED: " + failure);
+		if (failureCount.get() > 0) {
+			System.out.println(failureCount.get() + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+	
+	/**
+	 * This method is one read: it checks a random user and item, then runs a query
+	 */
+	private static void read(UserPool users, ItemPool items, Prediction pr, Random choice, int[] lastVersions,
+			int maxUserId, int itemCount, long count) {
+		int userId = 1 + choice.nextInt(maxUserId);
+		int itemId = 1 + choice.nextInt(itemCount);
+		User user = users.getUser(userId);
+		if (user != null) {
+			User.Profile profile = user.getProfile();
+			checkProfile(userId, profile);
+			if (profile.getVersion() < lastVersions[userId]) {
+				fail("user " + userId + " went back from version " + lastVersions[userId] + " to " + profile.getVersion());
+			}
+			lastVersions[userId] = profile.getVersion();
+		}
+		checkRaters(itemId, items.getRaters(itemId));
+		
+		int otherId = 1 + choice.nextInt(maxUserId);
+		double similarity = (count & 1) == 0 ? users.findSimilarity(userId, otherId) : users.findCosineSimilarity(userId, otherId);
+		if (Double.isNaN(similarity) || Math.abs(similarity) > 1 + TOLERANCE) {
+			fail("similarity of " + userId + " and " + otherId + " is " + similarity);
+		}
+		if (user == null) return;
+		
+		double prediction = pr.predictRating(userId, itemId, 20);
+		if (Double.isNaN(prediction) || Double.isInfinite(prediction)) {
+			fail("prediction of user " + userId + ", item " + itemId + " is " + prediction);
+		}
+		if ((count & 63) == 0) {
+			for (int recommended : pr.recommendItems(userId, 10, 20)) {
+				if (items.getItem(recommended) == null) fail("recommended unknown item " + recommended);
+			}
+		}
+	}
+	
+	private static void checkProfile(int userId, User.Profile profile) {
+		double sum = 0;
+		for (int i = 0; i < profile.size(); i++) {
+			if (i > 0 && profile.getItemIdAt(i - 1) >= profile.getItemIdAt(i)) {
+				fail("items of user " + userId + " are not ascending at " + i);
+				return;
+			}
+			sum += profile.getRatingAt(i);
+		}
+		double average = profile.size() == 0 ? 0 : sum / profile.size();
+		if (Math.abs(profile.getAverageRating() - average) > TOLERANCE) {
+			fail("average of user " + userId + " is " + profile.getAverageRating() + ", ratings give " + average);
+		}
+	}
+	
+	private static void checkRaters(int itemId, RaterList raters) {
+		if (raters == null) {
+			fail("item " + itemId + " has no posting list");
+			return;
+		}
+		double sum = 0;
+		for (int p = 0; p < raters.size(); p++) {
+			if (p > 0 && raters.getUserId(p - 1) >= raters.getUserId(p)) {
+				fail("raters of item " + itemId + " are not ascending at " + p);
+				return;
+			}
+			sum += raters.getRating(p);
+		}
+		double average = raters.isEmpty() ? 0 : sum / raters.size();
+		if (Math.abs(raters.getAverage() - average) > TOLERANCE) {
+			fail("average of item " + itemId + " is " + raters.getAverage() + ", ratings give " + average);
+		}
+	}
+	
+	/**
+	 * This method compares the pools with the expected final state
+	 * @param written : with shared writers, the ratings written per pair, one of which is final;
+	 * 	null if every pair has one writer
+	 */
+	private static void verify(UserPool users, ItemPool items, Map<Long, Float> expected,
+			Map<Long, Set<Float>> written, Random random) {
+		long userRatings = 0;
+		for (int userId : users.getUsers()) {
+			User.Profile profile = users.getUser(userId).getProfile();
+			checkProfile(userId, profile);
+			userRatings += profile.size();
+			for (int i = 0; i < profile.size(); i++) {
+				if (written != null) {
+					checkShared(userId, profile.getItemIdAt(i), profile.getRatingAt(i), items, expected, written);
+					continue;
+				}
+				Float rating = expected.get(key(userId, profile.getItemIdAt(i)));
+				if (rating == null || rating != profile.getRatingAt(i)) {
+					fail("user " + userId + " has " + profile.getRatingAt(i) + " for item "
+							+ profile.getItemIdAt(i) + ", expected " + rating);
+				}
+			}
+		}
+		
+		long postings = 0;
+		double sum = 0;
+		for (int itemId : items.getItemIds()) {
+			RaterList raters = items.getRaters(itemId);
+			checkRaters(itemId, raters);
+			postings += raters.size();
+			for (int p = 0; p < raters.size(); p++) {
+				sum += raters.getRating(p);
+				if (written != null) continue;
+				Float rating = expected.get(key(raters.getUserId(p), itemId));
+				if (rating == null || rating != raters.getRating(p)) {
+					fail("item " + itemId + " has " + raters.getRating(p) + " from user "
+							+ raters.getUserId(p) + ", expected " + rating);
+				}
+			}
+		}
+		
+		if (userRatings != expected.size() || postings != expected.size() || items.getRatingCount() != expected.size()) {
+			fail("expected " + expected.size() + " ratings; users hold " + userRatings + ", items hold " + postings
+					+ ", the overall count is " + items.getRatingCount());
+		}
+		if (Math.abs(items.getAverage() - sum / postings) > TOLERANCE) {
+			fail("overall average is " + items.getAverage() + ", ratings give " + sum / postings);
+		}
+		
+		SimilarityCache cache = users.getSimilarityCache(false);
+		if (cache != null) {
+			List<Integer> ids = new ArrayList<Integer>(users.getUsers());
+			int[][] pairs = new int[1000][];
+			double[] cached = new double[pairs.length];
+			for (int i = 0; i < pairs.length; i++) {
+				pairs[i] = new int[] {ids.get(random.nextInt(ids.size())), ids.get(random.nextInt(ids.size()))};
+				cached[i] = users.findSimilarity(pairs[i][0], pairs[i][1]);
+			}
+			users.disableSimilarityCache();
+			for (int i = 0; i < pairs.length; i++) {
+				double fresh = users.findSimilarity(pairs[i][0], pairs[i][1]);
+				if (fresh != cached[i]) {
+					fail("cached similarity of " + pairs[i][0] + " and " + pairs[i][1] + " is " + cached[i] + ", fresh " + fresh);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method checks a final rating of a user against the ratings written and the posting list
+	 */
+	private static void checkShared(int userId, int itemId, float rating, ItemPool items,
+			Map<Long, Float> expected, Map<Long, Set<Float>> written) {
+		Set<Float> ratings = written.get(key(userId, itemId));
+		Float loaded = expected.get(key(userId, itemId));
+		if (ratings == null ? loaded == null || loaded != rating : !ratings.contains(rating)) {
+			fail("user " + userId + " has " + rating + " for item " + itemId + ", written " + ratings);
+		}
+		float posted = items.getRaters(itemId).findRating(userId);
+		if (posted != rating) {
+			fail("user " + userId + " has " + rating + " for item " + itemId + ", the posting list has " + posted);
+		}
+	}
+	
+	/**
+	 * This method compares the item biases of a model that followed the stream with a fresh fit
+	 * 	- item sums are exact as long as every change is passed with the rating it replaced
+	 */
+	private static void verifyBaseline(UserPool users, ItemPool items, BaselineModel followed) {
+		BaselineModel fresh = BaselineModel.fit(users, items);
+		for (int itemId : items.getItemIds()) {
+			if (Math.abs(followed.getItemBias(itemId) - fresh.getItemBias(itemId)) > TOLERANCE) {
+				fail("baseline bias of item " + itemId + " is " + followed.getItemBias(itemId)
+						+ ", a fresh fit gives " + fresh.getItemBias(itemId));
+			}
+		}
+	}
+	
+	/**
+	 * This method checks that recommendItems ranks by the scores of predictRating
+	 * 	- every unrated item of a sampled user is scored with predictRating; each recommended
+	 * 	  item must score at least the RANKED_ITEMS-th best of them, so ties may go either way
+	 * 	- the ranked scores use float similarities (see Prediction.recommendItems), hence TOLERANCE
+	 */
+	private static void verifyRanking(UserPool users, ItemPool items, Prediction pr, Random random) {
+		List<Integer> ids = new ArrayList<Integer>(users.getUsers());
+		for (int s = 0; s < RANKED_USERS; s++) {
+			int userId = ids.get(random.nextInt(ids.size()));
+			User user = users.getUser(userId);
+			for (int k : new int[] {5, 20}) {
+				Map<Integer, Double> scores = new HashMap<Integer, Double>();
+				for (int itemId : items.getItemIds()) {
+					if (!user.isRated(itemId)) scores.put(itemId, pr.predictRating(userId, itemId, k));
+				}
+				List<Double> sorted = new ArrayList<Double>(scores.values());
+				sorted.sort(null);
+				double bar = sorted.get(Math.max(0, sorted.size() - RANKED_ITEMS));
+				
+				for (int itemId : pr.recommendItems(userId, RANKED_ITEMS, k)) {
+					Double score = scores.get(itemId);
+					if (score == null || score < bar - TOLERANCE) {
+						fail("user " + userId + ", k=" + k + ": recommended item " + itemId + " predicts " + score
+								+ ", below the " + RANKED_ITEMS + "th best prediction " + bar);
+					}
+				}
+			}
+		}
+	}
+	
+	private static long key(int userId, int itemId) {
+		return ((long) userId << 32) | itemId;
+	}
+	
+	private static void fail(String message) {
+		if (failureCount.incrementAndGet() <= MAX_REPORTED) failures.add(message);
+	}
+}
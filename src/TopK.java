@@ -0,0 +1,181 @@
+/**
+ * This class selects the K best (id, score) pairs without boxing or full sorts
+ * 	- streaming: offer() keeps the best K in a fixed-size min-heap, O(n log k)
+ * 	- in place: selectDescending() uses quickselect, better when K is a large share of n
+ * Pairs are ranked by score (descending), ties by id (ascending), so results are deterministic
+ * @author Yibang Chen
+ *
+ */
+public class TopK {
+	
+	private final int capacity;
+	private final int[] ids;
+	private final double[] scores;
+	private int size = 0;
+	
+	/**
+	 * The constructor
+	 * @param k : number of pairs to keep
+	 */
+	public TopK(int k) {
+		this.capacity = Math.max(0, k);
+		ids = new int[capacity];
+		scores = new double[capacity];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	/**
+	 * true if (id1, score1) ranks below (id2, score2): lower score, then higher id
+	 */
+	private static boolean below(int id1, double score1, int id2, double score2) {
+		if (score1 != score2) return score1 < score2;
+		return id1 > id2;
+	}
+	
+	/**
+	 * This method offers a pair; it is kept only while it is among the best K
+	 * @param id
+	 * @param score
+	 */
+	public void offer(int id, double score) {
+		if (size < capacity) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >> 1;
+				if (!below(id, score, ids[parent], scores[parent])) break;
+				ids[i] = ids[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			scores[i] = score;
+		} else if (capacity > 0 && below(ids[0], scores[0], id, score)) {
+			siftDown(id, score, size);
+		}
+	}
+	
+	private void siftDown(int id, double score, int n) {
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) break;
+			if (child + 1 < n && below(ids[child + 1], scores[child + 1], ids[child], scores[child])) child++;
+			if (!below(ids[child], scores[child], id, score)) break;
+			ids[i] = ids[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		ids[i] = id;
+		scores[i] = score;
+	}
+	
+	/**
+	 * This method empties the selector into the arrays, best pair first
+	 * @param outIds : at least size() long
+	 * @param outScores : at least size() long
+	 * @return the number of pairs written
+	 */
+	public int drainDescending(int[] outIds, double[] outScores) {
+		int count = size;
+		for (int n = size; n > 0; n--) {
+			outIds[n - 1] = ids[0];
+			outScores[n - 1] = scores[0];
+			siftDown(ids[n - 1], scores[n - 1], n - 1);
+		}
+		size = 0;
+		return count;
+	}
+	
+	/**
+	 * This method reorders the first n pairs so the best k come first, best pair first
+	 * 	- quickselect moves the best k to the front in expected O(n); only those k are then sorted
+	 * @param ids
+	 * @param scores : parallel to ids
+	 * @param n : number of valid pairs
+	 * @param k
+	 * @return min(k, n), the number of selected pairs
+	 */
+	public static int selectDescending(int[] ids, double[] scores, int n, int k) {
+		if (k <= 0 || n <= 0) return 0;
+		if (k < n) {
+			int left = 0, right = n - 1;
+			while (left < right) {
+				int pivot = partition(ids, scores, left, right);
+				if (pivot == k - 1) break;
+				if (pivot < k - 1) left = pivot + 1;
+				else right = pivot - 1;
+			}
+		} else {
+			k = n;
+		}
+		sort(ids, scores, 0, k - 1);
+		return k;
+	}
+	
+	/**
+	 * This method partitions around the median of three, better pairs to the left
+	 * @return the final position of the pivot
+	 */
+	private static int partition(int[] ids, double[] scores, int left, int right) {
+		int mid = (left + right) >>> 1;
+		if (below(ids[mid], scores[mid], ids[left], scores[left])) swap(ids, scores, left, mid);
+		if (below(ids[right], scores[right], ids[left], scores[left])) swap(ids, scores, left, right);
+		if (below(ids[right], scores[right], ids[mid], scores[mid])) swap(ids, scores, mid, right);
+		swap(ids, scores, mid, right);
+		
+		int pivotId = ids[right];
+		double pivotScore = scores[right];
+		int store = left;
+		for (int i = left; i < right; i++) {
+			if (below(pivotId, pivotScore, ids[i], scores[i])) {
+				swap(ids, scores, i, store++);
+			}
+		}
+		swap(ids, scores, store, right);
+		return store;
+	}
+	
+	/**
+	 * This method sorts a range best pair first (quicksort, insertion sort for short ranges)
+	 */
+	private static void sort(int[] ids, double[] scores, int left, int right) {
+		while (right - left > 16) {
+			int pivot = partition(ids, scores, left, right);
+			if (pivot - left < right - pivot) {
+				sort(ids, scores, left, pivot - 1);
+				left = pivot + 1;
+			} else {
+				sort(ids, scores, pivot + 1, right);
+				right = pivot - 1;
+			}
+		}
+		for (int i = left + 1; i <= right; i++) {
+			int id = ids[i];
+			double score = scores[i];
+			int j = i - 1;
+			while (j >= left && below(ids[j], scores[j], id, score)) {
+				ids[j + 1] = ids[j];
+				scores[j + 1] = scores[j];
+				j--;
+			}
+			ids[j + 1] = id;
+			scores[j + 1] = score;
+		}
+	}
+	
+	private static void swap(int[] ids, double[] scores, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
@@ -1,98 +1,529 @@
-import java.util.Map;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.HashMap;
 
+/**
+ * This class stores the ratings of a single user
+ * 	- rated item ids are kept in a sorted int array
+ * 	- ratings are kept in a parallel float array
+ * so that two users can be compared by walking both arrays once (merge-join)
+ * The ratings are published as an immutable Profile through a volatile field:
+ * readers never lock and always see arrays, size and sums that belong together,
+ * while writers of the same user are serialized on the user.
+ * A user attached to a snapshot reads its ratings off-heap until its first write copies them.
+ * A compacted user (see compact) keeps its ratings as CompactRatings; a write re-encodes them
+ * @author Yibang Chen
+ *
+ */
 public class User {
 	
+	private static final int INITIAL_CAPACITY = 8;
+	
+	/**
+	 * This class is an immutable snapshot of a user's ratings
+	 * 	- a later append may write past size into the same arrays, never below it,
+	 * 	  so a snapshot stays valid for as long as it is held
+	 * 	- the ratings are heap arrays, a range of off-heap buffers (see RatingSnapshot) or
+	 * 	  CompactRatings; kernels read them by position with getItemIdAt and getRatingAt,
+	 * 	  or in order with a Cursor
+	 */
+	public static final class Profile {
+		private final int[] itemIds;
+		private final float[] ratings;
+		private final IntBuffer itemIdBuffer;
+		private final FloatBuffer ratingBuffer;
+		private final CompactRatings compact;
+		private final int offset;
+		private final int size;
+		private final double ratingSum;
+		private final double squareSum;
+		private final int version;
+		
+		private Profile(int[] itemIds, float[] ratings, int size, double ratingSum, double squareSum, int version) {
+			this.itemIds = itemIds;
+			this.ratings = ratings;
+			this.itemIdBuffer = null;
+			this.ratingBuffer = null;
+			this.compact = null;
+			this.offset = 0;
+			this.size = size;
+			this.ratingSum = ratingSum;
+			this.squareSum = squareSum;
+			this.version = version;
+		}
+		
+		private Profile(CompactRatings compact, double ratingSum, double squareSum, int version) {
+			this.itemIds = null;
+			this.ratings = null;
+			this.itemIdBuffer = null;
+			this.ratingBuffer = null;
+			this.compact = compact;
+			this.offset = 0;
+			this.size = compact.size();
+			this.ratingSum = ratingSum;
+			this.squareSum = squareSum;
+			this.version = version;
+		}
+		
+		private Profile(IntBuffer itemIdBuffer, FloatBuffer ratingBuffer, int offset, int size,
+				double ratingSum, double squareSum) {
+			this.itemIds = null;
+			this.ratings = null;
+			this.itemIdBuffer = itemIdBuffer;
+			this.ratingBuffer = ratingBuffer;
+			this.compact = null;
+			this.offset = offset;
+			this.size = size;
+			this.ratingSum = ratingSum;
+			this.squareSum = squareSum;
+			this.version = 0;
+		}
+		
+		/**
+		 * This method returns the number of rated items
+		 * @return
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * This method returns the item id at a position; item ids ascend with the position
+		 * @param position : 0 <= position < size()
+		 * @return
+		 */
+		public int getItemIdAt(int position) {
+			if (itemIds != null) return itemIds[position];
+			return compact != null ? compact.getItemIdAt(position) : itemIdBuffer.get(offset + position);
+		}
+		
+		/**
+		 * This method returns the rating at a position, parallel to getItemIdAt
+		 * @param position : 0 <= position < size()
+		 * @return
+		 */
+		public float getRatingAt(int position) {
+			if (ratings != null) return ratings[position];
+			return compact != null ? compact.getRatingAt(position) : ratingBuffer.get(offset + position);
+		}
+		
+		/**
+		 * This method returns a cursor before the first rating
+		 * @return
+		 */
+		public Cursor cursor() {
+			return new Cursor(this);
+		}
+		
+		/**
+		 * This method tells if the ratings are read from off-heap buffers
+		 * @return
+		 */
+		public boolean isOffHeap() {
+			return itemIds == null && compact == null;
+		}
+		
+		/**
+		 * This method tells if the ratings are kept as CompactRatings
+		 * @return
+		 */
+		public boolean isCompact() {
+			return compact != null;
+		}
+		
+		/**
+		 * This method returns the bytes the ratings take: the heap arrays with their spare capacity,
+		 * the off-heap range, or the compact encoding; without object headers
+		 * @return
+		 */
+		public long getByteSize() {
+			if (itemIds != null) return 4L * itemIds.length + 4L * ratings.length;
+			return compact != null ? compact.getByteSize() : 8L * size;
+		}
+		
+		public int getVersion() {
+			return version;
+		}
+		
+		public boolean isRated(int itemId) {
+			return indexOf(itemId) >= 0;
+		}
+		
+		public float getRating(int itemId) {
+			int index = indexOf(itemId);
+			if (index >= 0)
+				return getRatingAt(index);
+			return 0;
+		}
+		
+		public float getAverageRating() {
+			if (size == 0) return 0;
+			return (float) (ratingSum / size);
+		}
+		
+		public double getMagnitude() {
+			return Math.sqrt(squareSum);
+		}
+		
+		/**
+		 * This method returns the sum of the ratings, from which getAverageRating is derived
+		 * @return
+		 */
+		double getRatingSum() {
+			return ratingSum;
+		}
+		
+		/**
+		 * This method returns the sum of the squared ratings, from which getMagnitude is derived
+		 * @return
+		 */
+		double getSquareSum() {
+			return squareSum;
+		}
+		
+		private int indexOf(int itemId) {
+			if (itemIds != null) return Arrays.binarySearch(itemIds, 0, size, itemId);
+			if (compact != null) return compact.indexOf(itemId);
+			int low = 0, high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int value = itemIdBuffer.get(offset + mid);
+				if (value < itemId) low = mid + 1;
+				else if (value > itemId) high = mid - 1;
+				else return mid;
+			}
+			return -(low + 1);
+		}
+		
+		/**
+		 * This method copies the ratings into heap arrays
+		 */
+		private void copyTo(int[] itemIdsCopy, float[] ratingsCopy) {
+			for (Cursor cursor = cursor(); cursor.next();) {
+				itemIdsCopy[cursor.getPosition()] = cursor.getItemId();
+				ratingsCopy[cursor.getPosition()] = cursor.getRating();
+			}
+		}
+	}
+	
+	/**
+	 * This class reads the ratings of a profile in position order, e.g. for a merge-join:
+	 * 	for (Cursor cursor = profile.cursor(); cursor.next();) ... cursor.getItemId() ...
+	 * 	- on a compact profile every step decodes one varint, where getItemIdAt decodes
+	 * 	  from the start of the block
+	 * 	- on the other layouts it reads by position
+	 */
+	public static final class Cursor {
+		private final Profile profile;
+		private final int[] itemIds;
+		private final float[] ratings;
+		private final byte[] itemBytes;
+		private final byte[] ratingCodes;
+		private final int size;
+		private int position = -1;
+		private int offset = 0;
+		private int itemId = 0;
+		
+		private Cursor(Profile profile) {
+			this.profile = profile;
+			this.itemIds = profile.itemIds;
+			this.ratings = profile.ratings;
+			this.itemBytes = profile.compact != null ? profile.compact.itemBytes : null;
+			this.ratingCodes = profile.compact != null ? profile.compact.ratingCodes : null;
+			this.size = profile.size;
+		}
+		
+		/**
+		 * This method moves to the next rating
+		 * @return false if there is none
+		 */
+		public boolean next() {
+			if (++position >= size) return false;
+			if (itemIds != null) {
+				itemId = itemIds[position];
+				return true;
+			}
+			if (itemBytes == null) {
+				itemId = profile.getItemIdAt(position);
+				return true;
+			}
+			int value = itemBytes[offset++];
+			if (value < 0) {
+				value &= 0x7F;
+				int shift = 7;
+				byte b;
+				do {
+					b = itemBytes[offset++];
+					value |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+			}
+			itemId = (position & (CompactRatings.BLOCK_SIZE - 1)) == 0 ? value : itemId + value;
+			return true;
+		}
+		
+		public int getPosition() {
+			return position;
+		}
+		
+		public int getItemId() {
+			return itemId;
+		}
+		
+		public float getRating() {
+			if (ratings != null) return ratings[position];
+			return ratingCodes != null ? (ratingCodes[position] & 0xFF) * 0.5f : profile.getRatingAt(position);
+		}
+	}
+	
 	private int userId;
-	private Map<Integer, Float> ratings = null;
-	private float averageRating = -1;
-	private double magnitude = -1;
+	private volatile Profile profile;
 		
 	public User(int userId) {
 		this.userId = userId;
-		ratings = new HashMap<Integer, Float>();
+		profile = new Profile(new int[INITIAL_CAPACITY], new float[INITIAL_CAPACITY], 0, 0, 0, 0);
+	}
+	
+	/**
+	 * This constructor restores a user from a snapshot
+	 * @param userId
+	 * @param itemIds : sorted ascending, owned by the new user
+	 * @param ratings : parallel to itemIds, owned by the new user
+	 * @param ratingSum : sum of the ratings, as recorded in the snapshot
+	 * @param squareSum : sum of the squared ratings, as recorded in the snapshot
+	 */
+	User(int userId, int[] itemIds, float[] ratings, double ratingSum, double squareSum) {
+		this.userId = userId;
+		profile = new Profile(itemIds, ratings, itemIds.length, ratingSum, squareSum, 0);
+	}
+	
+	/**
+	 * This constructor attaches a user to a range of off-heap buffers, without copying
+	 * 	- the statistics come from the snapshot, so the ratings are not read until they are used
+	 * @param userId
+	 * @param itemIds : item ids of all users, sorted ascending within the range
+	 * @param ratings : parallel to itemIds
+	 * @param offset : start of the user's range
+	 * @param size : length of the user's range
+	 * @param ratingSum : sum of the ratings, as recorded in the snapshot
+	 * @param squareSum : sum of the squared ratings, as recorded in the snapshot
+	 */
+	User(int userId, IntBuffer itemIds, FloatBuffer ratings, int offset, int size, double ratingSum, double squareSum) {
+		this.userId = userId;
+		profile = new Profile(itemIds, ratings, offset, size, ratingSum, squareSum);
 	}
 	
 	public int getUserId() {
 		return userId;
 	}
 	
-	public void addRating(int itemId, float rating) {
-		ratings.put(itemId, rating);
+	/**
+	 * This method returns the current ratings of the user
+	 * 	- kernels that read several statistics take one profile and read everything from it
+	 * @return
+	 */
+	public Profile getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * This method adds or replaces the rating of an item
+	 * 	- ratings files are sorted by item id per user, so appending is the common case:
+	 * 	  it writes into the spare capacity and publishes a longer profile
+	 * 	- a replacement or an insertion copies the arrays, so readers of the old profile are unaffected
+	 * 	- an off-heap or compact profile is copied to the heap first; a compact one is encoded
+	 * 	  again afterwards, which is O(size) per write
+	 * 	- the sums behind getAverageRating and getMagnitude are updated in O(1)
+	 * @param itemId
+	 * @param rating
+	 * @return the previous rating of the item; NaN if the item was not rated
+	 */
+	public synchronized float addRating(int itemId, float rating) {
+		Profile current = profile;
+		int[] itemIds = current.itemIds;
+		float[] ratings = current.ratings;
+		int size = current.size;
+		double ratingSum = current.ratingSum;
+		double squareSum = current.squareSum;
+		float previous = Float.NaN;
+		boolean copied = false;
+		
+		if (itemIds == null) {
+			// the first write to an off-heap user copies its ratings to the heap, with room to grow;
+			// a compact user is decoded on every write
+			itemIds = new int[grow(size)];
+			ratings = new float[itemIds.length];
+			current.copyTo(itemIds, ratings);
+			copied = true;
+		}
+		
+		if (size == 0 || itemIds[size-1] < itemId) {
+			if (size == itemIds.length) {
+				int newCapacity = grow(size);
+				itemIds = Arrays.copyOf(itemIds, newCapacity);
+				ratings = Arrays.copyOf(ratings, newCapacity);
+			}
+			itemIds[size] = itemId;
+			ratings[size] = rating;
+			size++;
+		} else {
+			int index = Arrays.binarySearch(itemIds, 0, size, itemId);
+			if (index >= 0) {
+				previous = ratings[index];
+				if (!copied) ratings = ratings.clone();
+				ratings[index] = rating;
+				ratingSum -= previous;
+				squareSum -= previous * previous;
+			} else {
+				int insertAt = -index - 1;
+				int newCapacity = size < itemIds.length ? itemIds.length : grow(size);
+				int[] newItemIds = new int[newCapacity];
+				float[] newRatings = new float[newCapacity];
+				System.arraycopy(itemIds, 0, newItemIds, 0, insertAt);
+				System.arraycopy(ratings, 0, newRatings, 0, insertAt);
+				System.arraycopy(itemIds, insertAt, newItemIds, insertAt + 1, size - insertAt);
+				System.arraycopy(ratings, insertAt, newRatings, insertAt + 1, size - insertAt);
+				newItemIds[insertAt] = itemId;
+				newRatings[insertAt] = rating;
+				itemIds = newItemIds;
+				ratings = newRatings;
+				size++;
+			}
+		}
+		ratingSum += rating;
+		squareSum += rating * rating;
+		
+		Profile next = new Profile(itemIds, ratings, size, ratingSum, squareSum, current.version + 1);
+		if (current.isCompact()) {
+			CompactRatings encoded = CompactRatings.encode(next);
+			if (encoded != null) next = new Profile(encoded, ratingSum, squareSum, next.version);
+		}
+		profile = next;
+		return previous;
+	}
+	
+	private static int grow(int capacity) {
+		return Math.max(capacity + 1, capacity + (capacity >> 1));
+	}
+	
+	/**
+	 * This method returns a counter that changes whenever a rating is added or replaced
+	 * 	- caches use it to detect results computed from older ratings
+	 * @return
+	 */
+	public int getVersion() {
+		return profile.version;
 	}
 	
 	public boolean isRated(int itemId) {
-		return ratings.containsKey(itemId);
+		return profile.isRated(itemId);
 	}
 	
 	public float getRating(int itemId) {
-		if (ratings.containsKey(itemId))
-			return ratings.get(itemId);
-		return 0;
+		return profile.getRating(itemId);
 	}
 	
+	/**
+	 * This method returns a read-only view of the items rated at the time of the call, in ascending order
+	 * @return
+	 */
 	public Set<Integer> getRatedItems() {
-		return ratings.keySet();
+		final Profile rated = profile;
+		return new AbstractSet<Integer>() {
+			@Override
+			public boolean contains(Object o) {
+				return (o instanceof Integer) && rated.isRated((Integer) o);
+			}
+			
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<Integer>() {
+					private int next = 0;
+					
+					public boolean hasNext() {
+						return next < rated.size;
+					}
+					
+					public Integer next() {
+						if (next >= rated.size) throw new NoSuchElementException();
+						return rated.getItemIdAt(next++);
+					}
+				};
+			}
+			
+			@Override
+			public int size() {
+				return rated.size;
+			}
+		};
 	}
 	
 	/**
-	 * This method calculates the average rating of a user
+	 * This method returns the number of rated items
 	 * @return
 	 */
-	public float getAverageRating() {
-		if (this.averageRating < 0)
-			this.setAverageRating();
-		
-		return averageRating;
+	public int getRatingCount() {
+		return profile.size;
 	}
 	
 	/**
-	 * This method calculates the average rating for all items of a user
+	 * This method releases the spare capacity of the rating arrays once loading is done
 	 */
-	private void setAverageRating() {
-		if (ratings.isEmpty()) this.averageRating = 0;
-		float total = 0;
+	public synchronized void trimToSize() {
+		Profile current = profile;
+		if (current.itemIds == null || current.itemIds.length == current.size) return;
+		profile = new Profile(Arrays.copyOf(current.itemIds, current.size), Arrays.copyOf(current.ratings, current.size),
+				current.size, current.ratingSum, current.squareSum, current.version);
+	}
+	
+	/**
+	 * This method encodes the ratings as CompactRatings, see UserPool.setCompact
+	 * 	- a user with a rating that is not a multiple of 0.5 keeps its layout
+	 * 	- the version is kept: the ratings are the same
+	 * @return true if the ratings are compact afterwards
+	 */
+	public synchronized boolean compact() {
+		Profile current = profile;
+		if (current.isCompact()) return true;
 		
-		for (int item : ratings.keySet()) {
-			total += ratings.get(item);
-		}
-		this.averageRating = total/ratings.size();
+		CompactRatings encoded = CompactRatings.encode(current);
+		if (encoded == null) return false;
+		profile = new Profile(encoded, current.ratingSum, current.squareSum, current.version);
+		return true;
 	}
 	
 	/**
-	 * This method calculates the magnitude of the user's rating vector
+	 * This method returns the average rating of a user
+	 * 	- kept up to date by addRating, O(1)
 	 * @return
 	 */
-	public double getMagnitude() {
-		if (this.magnitude < 0)
-			this.setMagnitude();
-		
-		return magnitude;
+	public float getAverageRating() {
+		return profile.getAverageRating();
 	}
 	
 	/**
-	 * This method calculates the magnitude of all ratings of an user
+	 * This method returns the magnitude of the user's rating vector
+	 * 	- kept up to date by addRating, O(1)
+	 * @return
 	 */
-	private void setMagnitude() {
-		float sum = 0;
-		for (int item: ratings.keySet()) {
-			float val = ratings.get(item);
-			sum += val * val;
-		}
-		
-		magnitude = Math.sqrt(sum);
+	public double getMagnitude() {
+		return profile.getMagnitude();
 	}
 	
 	/**
 	 * This method prints all ratings that an user has
 	 */
 	public void printAllRatings() {
-		System.out.println("All items: " + ratings.keySet());
+		Profile current = profile;
+		System.out.println("All items: " + this.getRatedItems());
 		
-		for (int item : ratings.keySet()) {
-			System.out.println(item + ": " + ratings.get(item));
+		for (int i = 0; i < current.size; i++) {
+			System.out.println(current.getItemIdAt(i) + ": " + current.getRatingAt(i));
 		}
-		System.out.println("Average: " + this.getAverageRating());
+		System.out.println("Average: " + current.getAverageRating());
 	}
 }
@@ -4,6 +4,7 @@ import java.util.Scanner;
 public class UserInterface {
 	
 	public static final Scanner sc = new Scanner(System.in);
+	private static final int SIMILARITY_CACHE_SIZE = 1 << 20;
 	
 	public static void main(String args[]){
 		
@@ -13,6 +14,7 @@ public class UserInterface {
 		String usage = "***********What functionalities would you like to try?\r\n"
 					+  "1. Predict a user's rating for a movie\r\n"
 					+  "2. Recommand movies for a user\r\n"
+					+  "3. Add or change a user's rating for a movie\r\n"
 					+  "Please enter the corresponding number: \r\n"
 					+  "(enter 'quit' to exit)\r\n";
 		
@@ -20,15 +22,17 @@ public class UserInterface {
 		UserPool users = UserPool.getInstance();
 		ItemPool movies = ItemPool.getInstance();
 		
-		if (dataType.equals(".data")) {			
-			reader.parseMovieData("movies.dat", movies, "::");
-			reader.parseRatingData("ratings_sample.dat", users, "::");
-		} else if (dataType.equals(".csv")) {			
-			reader.parseMovieData("movies.csv", movies, ",");
-			reader.parseRatingData("ratings.csv", users, ",");
+		if (dataType.equals(".dat")) {
+			reader.importData("movies.dat", "ratings_sample.dat", "::", "ratings_sample.snapshot", users, movies);
+		} else if (dataType.equals(".csv")) {
+			reader.importData("movies.csv", "ratings.csv", ",", "ratings.snapshot", users, movies);
 		}
 		
+		users.enableSimilarityCache(SIMILARITY_CACHE_SIZE, SimilarityCache.Policy.LRU);
 		Prediction pr = new Prediction();
+		BaselineModel baseline = BaselineModel.fit(users, movies);
+		RatingIngestor.getInstance().addListener(baseline);
+		pr.setBaselineModel(baseline);
 		
 		while (true) {
 			String input;
@@ -48,6 +52,17 @@ public class UserInterface {
 				
 				pr.printRecommend(userId, itemSize, size);
 			}
+			else if (input.equals("3")) {
+				int userId = getUserId();
+				int itemId = getItemId();
+				float rating = getRating();
+				
+				if (RatingIngestor.getInstance().addRating(userId, itemId, rating)) {
+					System.out.println("Rating is stored.\r\n");
+				} else {
+					System.out.println("Item " + itemId + " does not exist.\r\n");
+				}
+			}
 			else if (input.equals("quit")) break;
 			else System.out.println("Invalid input!");
 		}
@@ -121,6 +136,26 @@ public class UserInterface {
 		return id;
 	}
 	
+	/**
+	 * This method asks the user to provide a valid rating score
+	 * 	- re-prompts until the rating is on the scale RatingIngestor.addRating accepts
+	 * @return
+	 */
+	private static float getRating(){
+		while (true) {
+			System.out.println("Please enter the rating score (" + RatingIngestor.MIN_RATING + " to "
+					+ RatingIngestor.MAX_RATING + "): ");
+			float rating;
+			try {
+				rating = Float.parseFloat(sc.nextLine());
+			} catch (Exception e) {
+				rating = Float.NaN;
+			}
+			if (RatingIngestor.isValidRating(rating)) return rating;
+			System.out.println("Invalid input. Please retry.");
+		}
+	}
+	
 	/**
 	 * This method asks the user to provide size of neighbors for predicting an item
 	 * @return
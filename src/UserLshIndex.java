@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * This class is an approximate nearest-neighbor index over users (locality-sensitive hashing)
+ * 	- HYPERPLANE: random-hyperplane LSH of the mean-centered rating vectors, for cosine/Pearson
+ * 	- MINHASH: MinHash of the rated-item sets, for overlap (Jaccard)
+ * A signature has bands * rows hashes; two users are candidates if all rows of any band agree.
+ * More rows per band means fewer, closer candidates (faster); more bands means higher recall.
+ * Candidates are only a pre-filter: findNeighbors rescores them with the exact similarity.
+ * The hyperplanes and hash functions are derived from item ids, so nothing per item is stored.
+ * Users added after the index was built can be queried, but are not returned as candidates
+ * until the index is rebuilt
+ * @author Yibang Chen
+ *
+ */
+public class UserLshIndex {
+	
+	public enum Kind { HYPERPLANE, MINHASH }
+	
+	private static final int USERS_PER_TASK = 256;
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+	
+	private final Kind kind;
+	private final int bands;
+	private final int rows;
+	private final long seed;
+	private final int[] userIds;
+	private final long[][] buckets;
+	
+	private UserLshIndex(Kind kind, int bands, int rows, long seed, int[] userIds, long[][] buckets) {
+		this.kind = kind;
+		this.bands = bands;
+		this.rows = rows;
+		this.seed = seed;
+		this.userIds = userIds;
+		this.buckets = buckets;
+	}
+	
+	/**
+	 * This method hashes all users into the index, using all available cores
+	 * @param users
+	 * @param kind : HYPERPLANE or MINHASH
+	 * @param bands : number of bands; more bands give higher recall
+	 * @param rows : hashes per band, 1 to 32; more rows give fewer candidates
+	 * @param seed : seed of the hyperplanes / hash functions
+	 * @return the index
+	 */
+	public static UserLshIndex build(final UserPool users, Kind kind, final int bands, final int rows, long seed) {
+		if (rows < 1 || rows > 32) throw new IllegalArgumentException("rows must be in [1, 32]: " + rows);
+		
+		final int[] ids = new int[users.getUsers().size()];
+		int n = 0;
+		for (int id : users.getUsers()) ids[n++] = id;
+		Arrays.sort(ids);
+		
+		// one entry per (band, user): band key in the high 32 bits, user position in the low 32 bits
+		final UserLshIndex index = new UserLshIndex(kind, bands, rows, seed, ids, new long[bands][n]);
+		final int count = n;
+		int tasks = (n + USERS_PER_TASK - 1) / USERS_PER_TASK;
+		IntStream.range(0, tasks).parallel().forEach(task -> {
+			int[] keys = new int[bands];
+			int end = Math.min(count, (task + 1) * USERS_PER_TASK);
+			for (int u = task * USERS_PER_TASK; u < end; u++) {
+				index.bandKeys(users.getUser(ids[u]), keys);
+				for (int b = 0; b < bands; b++) {
+					index.buckets[b][u] = ((long) keys[b] << 32) | u;
+				}
+			}
+		});
+		for (long[] band : index.buckets) {
+			Arrays.parallelSort(band);
+		}
+		return index;
+	}
+	
+	public Kind getKind() {
+		return kind;
+	}
+	
+	public int getBands() {
+		return bands;
+	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	public int getUserCount() {
+		return userIds.length;
+	}
+	
+	/**
+	 * This method finds the candidate neighbors of a user: indexed users sharing a bucket in any band
+	 * @param user
+	 * @return user ids, ascending; the user itself is not included
+	 */
+	public int[] getCandidates(User user) {
+		int[] keys = new int[bands];
+		bandKeys(user, keys);
+		
+		int[] found = new int[16];
+		int count = 0;
+		for (int b = 0; b < bands; b++) {
+			long[] band = buckets[b];
+			long first = (long) keys[b] << 32;
+			int p = lowerBound(band, first);
+			while (p < band.length && (band[p] >>> 32) == (first >>> 32)) {
+				int id = userIds[(int) band[p++]];
+				if (id == user.getUserId()) continue;
+				if (count == found.length) found = Arrays.copyOf(found, count * 2);
+				found[count++] = id;
+			}
+		}
+		
+		Arrays.sort(found, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || found[unique - 1] != found[i]) found[unique++] = found[i];
+		}
+		return Arrays.copyOf(found, unique);
+	}
+	
+	/**
+	 * This method finds the most similar users of a user among the candidates of the index
+	 * 	- every candidate is rescored with UserPool's exact similarity
+	 * 	- users with similarity 0 are dropped, as in NeighborGraph
+	 * @param users
+	 * @param userId
+	 * @param k : maximum number of users to return
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return user ids, most similar first
+	 */
+	public List<Integer> findNeighbors(UserPool users, int userId, int k, boolean cosine) {
+		List<Integer> result = new ArrayList<Integer>();
+		User user = users.getUser(userId);
+		if (user == null) return result;
+		
+		TopK top = new TopK(k);
+		for (int candidate : getCandidates(user)) {
+			double sim = cosine ? users.findCosineSimilarity(userId, candidate) : users.findSimilarity(userId, candidate);
+			if (sim != 0) top.offer(candidate, sim);
+		}
+		
+		int[] ids = new int[top.size()];
+		int count = top.drainDescending(ids, new double[top.size()]);
+		for (int i = 0; i < count; i++) {
+			result.add(ids[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * This method measures the recall of findNeighbors against the exact search of NeighborGraph
+	 * @param users
+	 * @param items
+	 * @param sampleUserIds : users whose neighbors are compared
+	 * @param k : number of neighbors
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return share of the exact top-K neighbors that the index also returns, over all samples
+	 */
+	public double measureRecall(UserPool users, ItemPool items, int[] sampleUserIds, int k, boolean cosine) {
+		long exactCount = 0, foundCount = 0;
+		for (int userId : sampleUserIds) {
+			List<Integer> exact = NeighborGraph.findNeighbors(users, items, userId, k, cosine);
+			List<Integer> approximate = findNeighbors(users, userId, k, cosine);
+			exactCount += exact.size();
+			for (int id : exact) {
+				if (approximate.contains(id)) foundCount++;
+			}
+		}
+		return exactCount == 0 ? 1 : (double) foundCount / exactCount;
+	}
+	
+	/**
+	 * This method computes the band keys of a user's signature
+	 * @param user
+	 * @param keys : receives one key per band
+	 */
+	private void bandKeys(User user, int[] keys) {
+		User.Profile profile = user.getProfile();
+		int n = profile.size();
+		
+		if (kind == Kind.HYPERPLANE) {
+			// each 64-bit item hash gives the +1/-1 coordinates of the item on 64 hyperplanes
+			int planes = bands * rows;
+			double[] projections = new double[planes];
+			double average = profile.getAverageRating();
+			for (int i = 0; i < n; i++) {
+				double weight = profile.getRatingAt(i) - average;
+				if (weight == 0) continue;
+				long bits = 0;
+				for (int p = 0; p < planes; p++) {
+					if ((p & 63) == 0) bits = mix(seed + (p >>> 6) * GOLDEN + profile.getItemIdAt(i));
+					projections[p] += (bits >>> (p & 63) & 1) == 0 ? -weight : weight;
+				}
+			}
+			for (int b = 0; b < bands; b++) {
+				int key = 0;
+				for (int r = 0; r < rows; r++) {
+					if (projections[b * rows + r] > 0) key |= 1 << r;
+				}
+				keys[b] = key;
+			}
+		} else {
+			for (int b = 0; b < bands; b++) {
+				long key = b;
+				for (int r = 0; r < rows; r++) {
+					long hashSeed = mix(seed + (b * rows + r + 1) * GOLDEN);
+					long min = Long.MAX_VALUE;
+					for (int i = 0; i < n; i++) {
+						min = Math.min(min, mix(hashSeed ^ profile.getItemIdAt(i)));
+					}
+					key = mix(key * GOLDEN + min);
+				}
+				keys[b] = (int) key;
+			}
+		}
+	}
+	
+	/**
+	 * This method finds the first position of a sorted array whose value is at least a key
+	 */
+	private static int lowerBound(long[] values, long key) {
+		int low = 0, high = values.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+	
+	/**
+	 * This method is the SplitMix64 finalizer: a fast, well-distributed 64-bit hash
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
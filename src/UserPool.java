@@ -1,23 +1,34 @@
-import java.util.Map;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.stream.IntStream;
 
 /**
  * This singleton class is a collection of users
  * It has methods that involves ONLY users
+ * Users are kept by dense internal index (see IdIndex): the userId to index mapping stays at
+ * this boundary, and looking a user up is an array load, not a hash probe.
+ * Reads never lock: every user publishes its ratings as an immutable profile;
+ * writers of different users run in parallel.
+ * With the compact backend (setCompact), loaded ratings are kept as CompactRatings
  * @author Yibang Chen
  *
  */
 public class UserPool {
 	
-	private static UserPool instance = null;
-	private Map<Integer, User> users;
+	private static final UserPool instance = new UserPool();
+	private static final int DEFAULT_NEIGHBOR_SIZE = 20;
+	
+	private volatile IdIndex<User> users;
+	private volatile NeighborGraph pearsonNeighbors = null;
+	private volatile NeighborGraph cosineNeighbors = null;
+	private volatile SimilarityCache pearsonCache = null;
+	private volatile SimilarityCache cosineCache = null;
+	private volatile UserLshIndex lshIndex = null;
+	private volatile boolean compact = false;
 	
 	private UserPool() {
-		users = new HashMap<Integer, User>();
+		users = new IdIndex<User>();
 	}
 	
 	/**
@@ -25,26 +36,172 @@ public class UserPool {
 	 * @return
 	 */
 	public static UserPool getInstance() {
-		if (instance == null) instance = new UserPool();
 		return instance;
 	}
 	
 	public Set<Integer> getUsers() {
-		return users.keySet();
+		return users.asIdSet();
+	}
+	
+	/**
+	 * This method removes all users and everything derived from them
+	 */
+	public void clear() {
+		users = new IdIndex<User>();
+		pearsonNeighbors = null;
+		cosineNeighbors = null;
+		lshIndex = null;
+		SimilarityCache cache = pearsonCache;
+		if (cache != null) cache.clear();
+		cache = cosineCache;
+		if (cache != null) cache.clear();
 	}
 	
 	public void addUser(User newUser){
 		users.put(newUser.getUserId(), newUser);
 	}
 	
+	/**
+	 * This method gets a user, creating it if it is new
+	 * 	- atomic, so parallel writers never create the same user twice
+	 * @param userId
+	 * @return
+	 */
+	public User getOrCreateUser(int userId) {
+		return users.computeIfAbsent(userId, User::new);
+	}
+	
 	public boolean isUserAdded(int userId){
-		return users.containsKey(userId);
+		return users.indexOf(userId) >= 0;
 	}
 	
 	public User getUser(int userId){
 		return users.get(userId);
 	}
 	
+	/**
+	 * This method returns the number of users; their internal indexes are 0 to getUserCount() - 1
+	 * @return
+	 */
+	public int getUserCount() {
+		return users.size();
+	}
+	
+	/**
+	 * This method finds the internal index of a user
+	 * 	- indexes are dense and never change, so per-user data can be kept in arrays
+	 * @param userId
+	 * @return the index; -1 if the user is not added
+	 */
+	public int indexOf(int userId) {
+		return users.indexOf(userId);
+	}
+	
+	/**
+	 * This method gets a user by internal index
+	 * @param index : 0 <= index < getUserCount()
+	 * @return
+	 */
+	public User getUserByIndex(int index) {
+		return users.getByIndex(index);
+	}
+	
+	/**
+	 * This method selects the compact backend: one byte per rating and varint-coded item ids
+	 * 	- when turned on, the users already loaded are encoded, in parallel; users loaded later
+	 * 	  are encoded by trimToSize (at the end of parsing) and by loadSnapshot
+	 * 	- a write to a compact user encodes it again; users created by writes keep the heap layout
+	 * 	  until the next trimToSize
+	 * 	- when turned off, the users keep their layout until they are loaded again
+	 * See CompactRatings for the encoding and the users that cannot be encoded
+	 * @param compact
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+		if (!compact) return;
+		
+		final IdIndex<User> all = users;
+		IntStream.range(0, all.size()).parallel().forEach(i -> all.getByIndex(i).compact());
+	}
+	
+	public boolean isCompact() {
+		return compact;
+	}
+	
+	/**
+	 * This method returns the bytes the ratings of all users take, see User.Profile.getByteSize
+	 * @return
+	 */
+	public long getRatingBytes() {
+		IdIndex<User> all = users;
+		long bytes = 0;
+		for (int i = 0; i < all.size(); i++) {
+			bytes += all.getByIndex(i).getProfile().getByteSize();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * This method adds all users of a snapshot, with their ratings and statistics
+	 * @param snapshot
+	 */
+	public void loadSnapshot(RatingSnapshot snapshot) {
+		loadSnapshot(snapshot, false);
+	}
+	
+	/**
+	 * This method adds all users of a snapshot, with their ratings and statistics
+	 * @param snapshot
+	 * @param offHeap : true to read the ratings straight from the mapped snapshot instead of copying
+	 * 	them to the heap; the heap then holds only the User objects. With the compact backend
+	 * 	the users are encoded on the heap instead
+	 */
+	public void loadSnapshot(RatingSnapshot snapshot, boolean offHeap) {
+		for (int u = 0; u < snapshot.getUserCount(); u++) {
+			int start = snapshot.getUserStart(u);
+			if (offHeap || compact) {
+				User user = new User(snapshot.getUserId(u), snapshot.getRatedItemBuffer(),
+						snapshot.getRatingValueBuffer(), start, snapshot.getUserEnd(u) - start,
+						snapshot.getUserRatingSum(u), snapshot.getUserSquareSum(u));
+				if (compact) user.compact();
+				addUser(user);
+				continue;
+			}
+			int[] itemIds = new int[snapshot.getUserEnd(u) - start];
+			float[] ratings = new float[itemIds.length];
+			snapshot.copyRatedItems(start, itemIds);
+			snapshot.copyRatingValues(start, ratings);
+			
+			addUser(new User(snapshot.getUserId(u), itemIds, ratings,
+					snapshot.getUserRatingSum(u), snapshot.getUserSquareSum(u)));
+		}
+	}
+	
+	/**
+	 * This method turns on caching of similarity scores (both Pearson and cosine)
+	 * 	- a cached score is dropped as soon as either user adds or changes a rating
+	 * @param maxEntries : maximum number of pairs cached per similarity metric
+	 * @param policy : the eviction policy
+	 */
+	public void enableSimilarityCache(int maxEntries, SimilarityCache.Policy policy) {
+		pearsonCache = new SimilarityCache(maxEntries, policy);
+		cosineCache = new SimilarityCache(maxEntries, policy);
+	}
+	
+	public void disableSimilarityCache() {
+		pearsonCache = null;
+		cosineCache = null;
+	}
+	
+	/**
+	 * This method gets the similarity cache of a metric, e.g. to read its counters
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return the cache; null if caching is disabled
+	 */
+	public SimilarityCache getSimilarityCache(boolean cosine) {
+		return cosine ? cosineCache : pearsonCache;
+	}
+	
 	/**
 	 * This method finds the similarity score between 2 users
 	 * @param userId1
@@ -52,26 +209,101 @@ public class UserPool {
 	 * @return
 	 */
 	public double findSimilarity(int userId1, int userId2){
+		if (!Metrics.ENABLED) return lookupSimilarity(userId1, userId2);
+		
+		long start = System.nanoTime();
+		double similarity = lookupSimilarity(userId1, userId2);
+		Metrics.SIMILARITY.record(System.nanoTime() - start);
+		return similarity;
+	}
+	
+	private double lookupSimilarity(int userId1, int userId2) {
+		User user1 = this.getUser(userId1);
+		User user2 = this.getUser(userId2);
+		if (user1 == null || user2 == null) return 0;
+		
+		SimilarityCache cache = pearsonCache;
+		if (cache == null) return computeSimilarity(user1.getProfile(), user2.getProfile());
+		
+		double cached = cache.get(user1, user2);
+		if (!Double.isNaN(cached)) return cached;
+		
+		// the score is cached under the versions of the profiles it is computed from
+		User.Profile profile1 = user1.getProfile();
+		User.Profile profile2 = user2.getProfile();
+		double similarity = computeSimilarity(profile1, profile2);
+		cache.put(user1, user2, profile1.getVersion(), profile2.getVersion(), similarity);
+		return similarity;
+	}
+	
+	/**
+	 * This method computes the Pearson similarity score between 2 users
+	 * 	- the common items are found by a merge-join over the sorted rating arrays
+	 * 	- compact profiles are merged with cursors, which decode the item ids in order
+	 * @param user1
+	 * @param user2
+	 * @return
+	 */
+	private double computeSimilarity(User.Profile user1, User.Profile user2) {
+		if (user1.isCompact() || user2.isCompact()) return computeCompactSimilarity(user1, user2);
+		
+		double avg1 = user1.getAverageRating();
+		double avg2 = user2.getAverageRating();
+		
+		int n1 = user1.size();
+		int n2 = user2.size();
 		
 		double sum12 = 0;
 		double sum1 = 0;
 		double sum2 = 0;
 		
-		Set<Integer> commonItems = this.getCommonItems(userId1, userId2);
-		if (commonItems == null) return 0;
-		if (commonItems.isEmpty()) return 0;
+		int i = 0, j = 0;
+		while (i < n1 && j < n2) {
+			int item1 = user1.getItemIdAt(i);
+			int item2 = user2.getItemIdAt(j);
+			if (item1 < item2) {
+				i++;
+			} else if (item1 > item2) {
+				j++;
+			} else {
+				double diff1 = user1.getRatingAt(i++) - avg1;
+				double diff2 = user2.getRatingAt(j++) - avg2;
+				sum12 += diff1 * diff2;
+				sum1 += diff1 * diff1;
+				sum2 += diff2 * diff2;
+			}
+		}
 		
-		User user1 = this.getUser(userId1);
-		User user2 = this.getUser(userId2);
+		if (sum1 * sum2 == 0) return 0;
+		return sum12/(Math.sqrt(sum1) * Math.sqrt(sum2));
+	}
+	
+	private double computeCompactSimilarity(User.Profile user1, User.Profile user2) {
 		double avg1 = user1.getAverageRating();
 		double avg2 = user2.getAverageRating();
 		
-		for (int item : commonItems){
-			float rate1 = user1.getRating(item);
-			float rate2 = user2.getRating(item);
-			sum12 += (rate1 - avg1) * (rate2 - avg2);
-			sum1 += (rate1 - avg1) * (rate1 - avg1);
-			sum2 += (rate2 - avg2) * (rate2 - avg2);
+		double sum12 = 0;
+		double sum1 = 0;
+		double sum2 = 0;
+		
+		User.Cursor cursor1 = user1.cursor();
+		User.Cursor cursor2 = user2.cursor();
+		boolean more = cursor1.next() && cursor2.next();
+		while (more) {
+			int item1 = cursor1.getItemId();
+			int item2 = cursor2.getItemId();
+			if (item1 < item2) {
+				more = cursor1.next();
+			} else if (item1 > item2) {
+				more = cursor2.next();
+			} else {
+				double diff1 = cursor1.getRating() - avg1;
+				double diff2 = cursor2.getRating() - avg2;
+				sum12 += diff1 * diff2;
+				sum1 += diff1 * diff1;
+				sum2 += diff2 * diff2;
+				more = cursor1.next() && cursor2.next();
+			}
 		}
 		
 		if (sum1 * sum2 == 0) return 0;
@@ -85,65 +317,202 @@ public class UserPool {
 	 * @return
 	 */
 	public double findCosineSimilarity(int userId1, int userId2) {
-
+		if (!Metrics.ENABLED) return lookupCosineSimilarity(userId1, userId2);
+		
+		long start = System.nanoTime();
+		double similarity = lookupCosineSimilarity(userId1, userId2);
+		Metrics.COSINE_SIMILARITY.record(System.nanoTime() - start);
+		return similarity;
+	}
+	
+	private double lookupCosineSimilarity(int userId1, int userId2) {
 		User user1 = this.getUser(userId1);
 		User user2 = this.getUser(userId2);
+		if (user1 == null || user2 == null) return 0;
 		
+		SimilarityCache cache = cosineCache;
+		if (cache == null) return computeCosineSimilarity(user1.getProfile(), user2.getProfile());
+		
+		double cached = cache.get(user1, user2);
+		if (!Double.isNaN(cached)) return cached;
+		
+		// the score is cached under the versions of the profiles it is computed from
+		User.Profile profile1 = user1.getProfile();
+		User.Profile profile2 = user2.getProfile();
+		double similarity = computeCosineSimilarity(profile1, profile2);
+		cache.put(user1, user2, profile1.getVersion(), profile2.getVersion(), similarity);
+		return similarity;
+	}
+	
+	/**
+	 * This method computes the cosine similarity score between 2 users
+	 * 	- the common items are found by a merge-join over the sorted rating arrays
+	 * 	- compact profiles are merged with cursors, as computeSimilarity
+	 * @param user1
+	 * @param user2
+	 * @return
+	 */
+	private double computeCosineSimilarity(User.Profile user1, User.Profile user2) {
 		double magnitude1 = user1.getMagnitude();
 		double magnitude2 = user2.getMagnitude();
-		double dotProduct = 0;
-		
 		if (magnitude1 == 0 || magnitude2 == 0) return 0;
+		if (user1.isCompact() || user2.isCompact()) {
+			return computeCompactDotProduct(user1, user2)/(magnitude1 * magnitude2);
+		}
+		
+		int n1 = user1.size();
+		int n2 = user2.size();
 		
-		Set<Integer> commonItems = this.getCommonItems(userId1, userId2);
-		if (commonItems == null) return 0;
-		if (commonItems.isEmpty()) return 0;
+		double dotProduct = 0;
 		
-		for (int item: commonItems) {
-			dotProduct += user1.getRating(item) * user2.getRating(item);
+		int i = 0, j = 0;
+		while (i < n1 && j < n2) {
+			int item1 = user1.getItemIdAt(i);
+			int item2 = user2.getItemIdAt(j);
+			if (item1 < item2) {
+				i++;
+			} else if (item1 > item2) {
+				j++;
+			} else {
+				dotProduct += user1.getRatingAt(i++) * user2.getRatingAt(j++);
+			}
 		}
 		
 		return dotProduct/(magnitude1 * magnitude2);
 	}
+	
+	private double computeCompactDotProduct(User.Profile user1, User.Profile user2) {
+		double dotProduct = 0;
 		
+		User.Cursor cursor1 = user1.cursor();
+		User.Cursor cursor2 = user2.cursor();
+		boolean more = cursor1.next() && cursor2.next();
+		while (more) {
+			int item1 = cursor1.getItemId();
+			int item2 = cursor2.getItemId();
+			if (item1 < item2) {
+				more = cursor1.next();
+			} else if (item1 > item2) {
+				more = cursor2.next();
+			} else {
+				dotProduct += cursor1.getRating() * cursor2.getRating();
+				more = cursor1.next() && cursor2.next();
+			}
+		}
+		return dotProduct;
+	}
+	
 	/**
-	 * This method finds the common items rated by 2 users
-	 * @param userId1
-	 * @param userId2
-	 * @return Set of common items
+	 * This method releases spare capacity in every user's rating arrays
+	 * 	- called once after all rating files are parsed
+	 * 	- with the compact backend, it encodes the users instead
 	 */
-	private Set<Integer> getCommonItems(int userId1, int userId2){
-		Set<Integer> commonItems = new HashSet<Integer>();
-		
-		try {
-			commonItems.addAll(this.getUser(userId1).getRatedItems());
-			commonItems.retainAll(this.getUser(userId2).getRatedItems());
-		} catch (Exception e) {
-			System.out.println("Error at getCommonItems method in UserPool class: ");
-			System.out.println(e.toString());
+	public void trimToSize() {
+		IdIndex<User> all = users;
+		for (int i = 0; i < all.size(); i++) {
+			User user = all.getByIndex(i);
+			if (!compact || !user.compact()) user.trimToSize();
 		}
-		
-		return commonItems;
 	}
 	
+	/**
+	 * This method builds the top-K neighbor graphs (Pearson and cosine) of all users
+	 * 	- this is an offline step; it uses all available cores
+	 * @param k : maximum number of neighbors kept per user
+	 */
+	public void buildNeighborGraphs(int k) {
+		ItemPool items = ItemPool.getInstance();
+		pearsonNeighbors = NeighborGraph.build(this, items, k, false);
+		cosineNeighbors = NeighborGraph.build(this, items, k, true);
+	}
+	
+	/**
+	 * This method installs a precomputed (e.g. loaded from disk) neighbor graph
+	 * @param graph : replaces the graph of the same similarity metric
+	 */
+	public void setNeighborGraph(NeighborGraph graph) {
+		if (graph.isCosine()) cosineNeighbors = graph;
+		else pearsonNeighbors = graph;
+	}
+	
+	/**
+	 * This method gets the precomputed neighbor graph of a similarity metric
+	 * @param cosine : true for cosine similarity; false for Pearson similarity
+	 * @return the graph; null if not built or loaded
+	 */
+	public NeighborGraph getNeighborGraph(boolean cosine) {
+		return cosine ? cosineNeighbors : pearsonNeighbors;
+	}
+	
+	/**
+	 * This method builds the approximate nearest-neighbor index of all users
+	 * 	- this is an offline step; it uses all available cores
+	 * @param kind : HYPERPLANE (rating vectors) or MINHASH (rated-item sets)
+	 * @param bands : number of bands; more bands give higher recall
+	 * @param rows : hashes per band; more rows give fewer candidates
+	 * @param seed
+	 */
+	public void buildLshIndex(UserLshIndex.Kind kind, int bands, int rows, long seed) {
+		lshIndex = UserLshIndex.build(this, kind, bands, rows, seed);
+	}
+	
+	/**
+	 * This method installs or drops the approximate nearest-neighbor index
+	 * @param index : null to search exactly again
+	 */
+	public void setLshIndex(UserLshIndex index) {
+		lshIndex = index;
+	}
+	
+	public UserLshIndex getLshIndex() {
+		return lshIndex;
+	}
+	
+	/**
+	 * This method finds the most similar users (Pearson) of a user
+	 * 	- answered from the precomputed graph, so at most getK() of the graph users are returned
+	 * 	- without a graph, candidates from the LSH index (if built) are rescored exactly
+	 * 	- otherwise, the neighbors of this one user are computed online
+	 * @param userId
+	 * @param numOfNeighbors : maximum number of users to return
+	 * @param similarityThreadshold : minimum similarity of a returned user
+	 * @return user ids, most similar first
+	 */
 	public List<Integer> findSimilarUsers(int userId, int numOfNeighbors, double similarityThreadshold){
-		//NOT IMPLEMENTED
-		return null;
+		if (pearsonNeighbors != null) {
+			return pearsonNeighbors.getNeighbors(userId, numOfNeighbors, similarityThreadshold);
+		}
+		
+		List<Integer> neighbors = lshIndex != null
+				? lshIndex.findNeighbors(this, userId, numOfNeighbors, false)
+				: NeighborGraph.findNeighbors(this, ItemPool.getInstance(), userId, numOfNeighbors, false);
+		List<Integer> result = new ArrayList<Integer>();
+		for (int id : neighbors) {
+			if (findSimilarity(userId, id) < similarityThreadshold) break;
+			result.add(id);
+		}
+		return result;
 	}
 	
 	public List<Integer> findSimilarUsers(int userId, int numOfNeighbors){
-		//NOT IMPLEMENTED
-		return null;
+		return findSimilarUsers(userId, numOfNeighbors, Double.NEGATIVE_INFINITY);
 	}
 	
 	public List<Integer> findSimilarUsers(int userId, double similarityThreadshold){
-		//NOT IMPLEMENTED
-		return null;
+		return findSimilarUsers(userId, defaultNeighborCount(), similarityThreadshold);
 	}
 	
 	public List<Integer> findSimilarUsers(int userId){
-		//NOT IMPLEMENTED
-		return null;
+		return findSimilarUsers(userId, defaultNeighborCount(), Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * This method returns the number of neighbors used when the caller does not give one
+	 * @return K of the Pearson graph if built; DEFAULT_NEIGHBOR_SIZE otherwise
+	 */
+	private int defaultNeighborCount() {
+		if (pearsonNeighbors != null) return pearsonNeighbors.getK();
+		return DEFAULT_NEIGHBOR_SIZE;
 	}
 	
 }